@@ -30,6 +30,8 @@ import com.google.android.media.tv.companionlibrary.model.Program;
 import com.google.android.media.tv.companionlibrary.model.TifExtension;
 import com.google.android.media.tv.companionlibrary.utils.TvContractUtils;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -112,6 +114,8 @@ public class SampleJobService extends EpgSyncJobService {
      */
     private final static String DEEPLINK_SUFFIX = "-DeepLink";
 
+    private static final int PROGRAM_FETCH_PARALLELISM = 4;
+
 
 
     /**
@@ -142,10 +146,9 @@ public class SampleJobService extends EpgSyncJobService {
     @Override
     public List<Channel> getChannels() {
         // Add channels through an XMLTV file
-        XmlTvParser.TvListing listings = RichFeedUtil.getRichTvListings(this);
         List<Channel> channelList = new ArrayList<>();
 
-        for (Channel channel : listings.getChannels()) {
+        for (Channel channel : RichFeedUtil.getRichTvChannels(this)) {
             // The first two channels in the XML feed are intended to be used with a deeplink integration
             // See res/raw/rich_tv_input_xmltv_feed.xml for the channel and program data
             if (channel.getDisplayName().endsWith(DEEPLINK_SUFFIX)) {
@@ -251,6 +254,25 @@ public class SampleJobService extends EpgSyncJobService {
         return channelList;
     }
 
+    /**
+     * Streams the programs of the XMLTV channels into the EPG while the feed is parsed, so the
+     * whole feed never has to be held in memory. A remote feed is read from its download in the
+     * cache directory while it has not changed.
+     */
+    @Override
+    public InputStream openProgramFeed() throws IOException {
+        return RichFeedUtil.openFeed(this);
+    }
+
+    /**
+     * The programs of a channel are built in memory, or taken from the parsed listing, which is
+     * loaded once, so they can be fetched for a few channels at the same time.
+     */
+    @Override
+    public int getProgramFetchParallelism() {
+        return PROGRAM_FETCH_PARALLELISM;
+    }
+
     @Override
     public List<Program> getProgramsForChannel(Uri channelUri, Channel channel, long startMs,
                                                long endMs) {
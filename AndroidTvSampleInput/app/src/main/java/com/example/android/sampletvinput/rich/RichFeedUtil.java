@@ -18,17 +18,33 @@ package com.example.android.sampletvinput.rich;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.example.android.sampletvinput.R;
+import com.google.android.media.tv.companionlibrary.TvListingSnapshot;
 import com.google.android.media.tv.companionlibrary.XmlTvParser;
+import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.Program;
 
 import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Static helper methods for fetching the channel feed.
@@ -39,7 +55,7 @@ public class RichFeedUtil {
     // A key for the channel display number used in the app link intent from the xmltv_feed.
     public static final String EXTRA_DISPLAY_NUMBER = "display-number";
 
-    private static XmlTvParser.TvListing sSampleTvListing;
+    private static volatile XmlTvParser.TvListing sSampleTvListing;
 
     // For this sample we will use the local XML TV feed. In your real app, you will want to use a
     // remote feed to provide your users with up to date channel listings.
@@ -47,28 +63,241 @@ public class RichFeedUtil {
 
     private static final int URLCONNECTION_CONNECTION_TIMEOUT_MS = 3000;  // 3 sec
     private static final int URLCONNECTION_READ_TIMEOUT_MS = 10000;  // 10 sec
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    // A remote feed is downloaded to the cache directory, and read from there until it changes.
+    // The parsed listing is kept next to it, keyed by the ETag or content hash of the feed it was
+    // parsed from.
+    private static final String FEED_FILE_NAME = "rich_tv_feed.xml";
+    private static final String SNAPSHOT_FILE_NAME = "rich_tv_listing.snapshot";
+    private static final String PREFERENCES_NAME = "rich_feed";
+    private static final String PREFERENCE_FEED_KEY = "feed_key";
+    private static final String ETAG_KEY_PREFIX = "etag:";
+    private static final String LOCAL_KEY_PREFIX = "local:";
+    // A remote feed which has just been checked with the server is used without asking again for
+    // a while, so that the channels and the program passes of a sync make a single request.
+    private static final long FEED_VALIDATION_TTL_MS = 1000 * 60 * 5;  // 5 min
+
+    // Downloads of the feed are serialized with their own lock, and the listing is parsed with
+    // another one, so that callers which only need the cached listing or a validated feed do not
+    // wait for network requests.
+    private static final Object sFeedLock = new Object();
+    private static final Object sListingLock = new Object();
+    private static volatile Feed sValidatedFeed;
+
+    // Channels and programs which cannot be parsed are dropped rather than failing the feed.
+    private static final XmlTvParser.ParseOptions PARSE_OPTIONS =
+            new XmlTvParser.ParseOptions.Builder()
+                    .setLenient(true)
+                    .build();
 
     private RichFeedUtil() {
     }
 
-    public static XmlTvParser.TvListing getRichTvListings(Context context) {
-        Uri catalogUri = USE_LOCAL_XML_FEED
+    public static Uri getCatalogUri(Context context) {
+        return USE_LOCAL_XML_FEED
                 ? Uri.parse("android.resource://" + context.getPackageName() + "/"
                 + R.raw.rich_tv_input_xmltv_feed)
                 : Uri.parse(context.getResources().getString(R.string.rich_input_feed_url))
                 .normalizeScheme();
-        if (sSampleTvListing != null) {
+    }
+
+    public static XmlTvParser.TvListing getRichTvListings(Context context) {
+        XmlTvParser.TvListing cachedListing = sSampleTvListing;
+        if (cachedListing != null) {
+            return cachedListing;
+        }
+        synchronized (sListingLock) {
+            if (sSampleTvListing == null) {
+                sSampleTvListing = readRichTvListings(context);
+            }
             return sSampleTvListing;
         }
+    }
 
-        try (InputStream inputStream = getInputStream(context, catalogUri)) {
-            sSampleTvListing = XmlTvParser.parse(inputStream);
+    private static XmlTvParser.TvListing readRichTvListings(Context context) {
+        Uri catalogUri = getCatalogUri(context);
+        // Load the listing from the snapshot of the last parse while the feed is unchanged, so a
+        // new process does not have to parse the feed again.
+        File snapshot = getSnapshotFile(context);
+        try {
+            Feed feed = fetchFeed(context, catalogUri);
+            XmlTvParser.TvListing listing = TvListingSnapshot.read(snapshot, feed.key);
+            if (listing == null) {
+                try (InputStream inputStream = feed.open(context)) {
+                    listing = XmlTvParser.parse(inputStream, PARSE_OPTIONS);
+                }
+                if (listing != null) {
+                    if (!listing.getParseErrors().isEmpty()) {
+                        Log.w(TAG, "Dropped invalid records of " + catalogUri + ": "
+                                + listing.getParseErrors());
+                    }
+                    TvListingSnapshot.write(snapshot, feed.key, listing);
+                }
+            }
+            return listing;
         } catch (IOException e) {
             Log.e(TAG, "Error in fetching " + catalogUri, e);
         } catch (XmlTvParser.XmlTvParseException e) {
             Log.e(TAG, "Error in parsing " + catalogUri, e);
         }
-        return sSampleTvListing;
+        return null;
+    }
+
+    /**
+     * Returns the channels of the feed without keeping its programs in memory. The programs are
+     * streamed separately by {@link com.example.android.sampletvinput.SampleJobService}.
+     */
+    public static List<Channel> getRichTvChannels(Context context) {
+        XmlTvParser.TvListing cachedListing = sSampleTvListing;
+        if (cachedListing != null) {
+            return cachedListing.getChannels();
+        }
+        Uri catalogUri = getCatalogUri(context);
+        final List<Channel> channels = new ArrayList<>();
+        try {
+            // Only the channels are read from the snapshot while the feed is unchanged.
+            Feed feed = fetchFeed(context, catalogUri);
+            List<Channel> snapshotChannels =
+                    TvListingSnapshot.readChannels(getSnapshotFile(context), feed.key);
+            if (snapshotChannels != null) {
+                return snapshotChannels;
+            }
+            try (InputStream inputStream = feed.open(context)) {
+                XmlTvParser.parse(inputStream, new XmlTvParser.XmlTvHandler() {
+                    @Override
+                    public void onChannel(Channel channel) {
+                        channels.add(channel);
+                    }
+
+                    @Override
+                    public void onProgram(Program program) {
+                    }
+
+                    @Override
+                    public void onEnd() {
+                    }
+                }, PARSE_OPTIONS);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error in fetching " + catalogUri, e);
+        } catch (XmlTvParser.XmlTvParseException e) {
+            Log.e(TAG, "Error in parsing " + catalogUri, e);
+        }
+        return channels;
+    }
+
+    /**
+     * Opens the current feed for a sync of its programs. A remote feed is only downloaded again
+     * once it has changed.
+     */
+    public static InputStream openFeed(Context context) throws IOException {
+        return fetchFeed(context, getCatalogUri(context)).open(context);
+    }
+
+    private static File getSnapshotFile(Context context) {
+        return new File(context.getCacheDir(), SNAPSHOT_FILE_NAME);
+    }
+
+    /**
+     * Makes sure the current content of the feed can be read. A remote feed is streamed to the
+     * cache directory, and hashed on the way if it has no ETag, so it is never held in memory.
+     * It is only downloaded again when the server reports that it has changed, and the server is
+     * asked at most once per {@link #FEED_VALIDATION_TTL_MS}.
+     *
+     * @return The feed.
+     */
+    private static Feed fetchFeed(Context context, Uri uri) throws IOException {
+        if (ContentResolver.SCHEME_ANDROID_RESOURCE.equals(uri.getScheme())
+                || ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            // A local feed is identified by its version, and read from where it is.
+            return new Feed(getLocalFeedKey(context, uri), uri, null, 0);
+        }
+        Feed feed = sValidatedFeed;
+        if (isRecentlyValidated(feed, uri)) {
+            return feed;
+        }
+        synchronized (sFeedLock) {
+            // The feed may have been validated while this thread waited for the lock.
+            feed = sValidatedFeed;
+            if (!isRecentlyValidated(feed, uri)) {
+                feed = downloadFeed(context, uri);
+                sValidatedFeed = feed;
+            }
+            return feed;
+        }
+    }
+
+    private static boolean isRecentlyValidated(Feed feed, Uri uri) {
+        return feed != null && feed.uri.equals(uri)
+                && SystemClock.elapsedRealtime() - feed.validatedAtMs < FEED_VALIDATION_TTL_MS
+                && feed.file.exists();
+    }
+
+    /**
+     * Downloads a remote feed to the cache directory, unless the server reports that the copy
+     * there is current.
+     */
+    private static Feed downloadFeed(Context context, Uri uri) throws IOException {
+        SharedPreferences preferences =
+                context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        File feedFile = new File(context.getCacheDir(), FEED_FILE_NAME);
+        String cachedKey = feedFile.exists()
+                ? preferences.getString(PREFERENCE_FEED_KEY, null) : null;
+        URLConnection urlConnection = new URL(uri.toString()).openConnection();
+        urlConnection.setConnectTimeout(URLCONNECTION_CONNECTION_TIMEOUT_MS);
+        urlConnection.setReadTimeout(URLCONNECTION_READ_TIMEOUT_MS);
+        if (cachedKey != null && cachedKey.startsWith(ETAG_KEY_PREFIX)) {
+            urlConnection.setRequestProperty("If-None-Match",
+                    cachedKey.substring(ETAG_KEY_PREFIX.length()));
+        }
+        if (cachedKey != null && urlConnection instanceof HttpURLConnection
+                && ((HttpURLConnection) urlConnection).getResponseCode()
+                        == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return new Feed(cachedKey, uri, feedFile, SystemClock.elapsedRealtime());
+        }
+        File tempFile = new File(feedFile.getPath() + ".tmp");
+        MessageDigest digest = TvListingSnapshot.newContentDigest();
+        try (InputStream in = new DigestInputStream(urlConnection.getInputStream(), digest);
+                OutputStream out = new FileOutputStream(tempFile)) {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        String etag = urlConnection.getHeaderField("ETag");
+        String key = etag != null ? ETAG_KEY_PREFIX + etag
+                : TvListingSnapshot.getContentHash(digest);
+        // The key is dropped while the file is replaced, so it never identifies another content.
+        preferences.edit().remove(PREFERENCE_FEED_KEY).commit();
+        if (!tempFile.renameTo(feedFile)) {
+            tempFile.delete();
+            throw new IOException("Unable to rename " + tempFile + " to " + feedFile);
+        }
+        preferences.edit().putString(PREFERENCE_FEED_KEY, key).apply();
+        return new Feed(key, uri, feedFile, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Returns a key for a feed in a resource or a file, which changes when the app is updated or
+     * the file is modified.
+     */
+    private static String getLocalFeedKey(Context context, Uri uri) throws IOException {
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            File file = new File(uri.getPath());
+            return LOCAL_KEY_PREFIX + uri + '/' + file.length() + '/' + file.lastModified();
+        }
+        try {
+            PackageInfo packageInfo = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0);
+            return LOCAL_KEY_PREFIX + uri + '/' + packageInfo.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            throw new IOException(e);
+        }
     }
 
     public static InputStream getInputStream(Context context, Uri uri) throws IOException {
@@ -86,4 +315,33 @@ public class RichFeedUtil {
 
         return inputStream == null ? null : new BufferedInputStream(inputStream);
     }
+
+    /**
+     * The key which identifies the content of the feed, and where to read it.
+     */
+    private static class Feed {
+        final String key;
+        final Uri uri;
+        /** The downloaded content of a remote feed, or {@code null} for a local feed. */
+        final File file;
+        /** When the server last confirmed that the file is current. */
+        final long validatedAtMs;
+
+        Feed(String key, Uri uri, File file, long validatedAtMs) {
+            this.key = key;
+            this.uri = uri;
+            this.file = file;
+            this.validatedAtMs = validatedAtMs;
+        }
+
+        InputStream open(Context context) throws IOException {
+            InputStream inputStream = file != null
+                    ? new BufferedInputStream(new FileInputStream(file))
+                    : getInputStream(context, uri);
+            if (inputStream == null) {
+                throw new IOException("No content");
+            }
+            return inputStream;
+        }
+    }
 }
@@ -0,0 +1,90 @@
+package com.google.android.media.tv.companionlibrary;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.LongSparseArray;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChannelValueStoreTest {
+    private static final String PREFERENCES = "channel_value_store_test";
+    private static final String KEY = "input";
+
+    private SharedPreferences mPreferences;
+
+    @Before
+    public void setUp() {
+        mPreferences = InstrumentationRegistry.getInstrumentation().getTargetContext()
+                .getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        mPreferences.edit().clear().commit();
+    }
+
+    @After
+    public void tearDown() {
+        mPreferences.edit().clear().commit();
+    }
+
+    @Test
+    public void testSavesValuesOfChannelsAsOnePreference() {
+        ChannelValueStore store = ChannelValueStore.load(mPreferences, KEY, 2);
+        store.put(1, 10, Long.MIN_VALUE);
+        store.put(2, -20, 21);
+        store.save(channels(1, 2));
+        assertEquals(1, mPreferences.getAll().size());
+        ChannelValueStore loaded = ChannelValueStore.load(mPreferences, KEY, 2);
+        assertArrayEquals(new long[] {10, Long.MIN_VALUE}, loaded.get(1));
+        assertArrayEquals(new long[] {-20, 21}, loaded.get(2));
+        assertNull(loaded.get(3));
+    }
+
+    @Test
+    public void testDropsRemovedChannels() {
+        ChannelValueStore store = ChannelValueStore.load(mPreferences, KEY, 1);
+        store.put(1, 10);
+        store.put(2, 20);
+        store.put(3, 30);
+        store.remove(2);
+        // Channel 3 is no longer a channel of the input.
+        store.save(channels(1, 2));
+        ChannelValueStore loaded = ChannelValueStore.load(mPreferences, KEY, 1);
+        assertArrayEquals(new long[] {10}, loaded.get(1));
+        assertNull(loaded.get(2));
+        assertNull(loaded.get(3));
+    }
+
+    @Test
+    public void testDoesNotWriteUnchangedValues() {
+        ChannelValueStore store = ChannelValueStore.load(mPreferences, KEY, 1);
+        store.put(1, 10);
+        store.save(channels(1));
+        mPreferences.edit().putString(KEY, "written elsewhere").commit();
+        store.put(1, 10);
+        store.save(channels(1));
+        assertEquals("written elsewhere", mPreferences.getString(KEY, null));
+    }
+
+    @Test
+    public void testIgnoresMalformedValues() {
+        mPreferences.edit().putString(KEY, "1,10;2;x,30;4,40").commit();
+        ChannelValueStore store = ChannelValueStore.load(mPreferences, KEY, 1);
+        assertArrayEquals(new long[] {10}, store.get(1));
+        assertNull(store.get(2));
+        assertArrayEquals(new long[] {40}, store.get(4));
+    }
+
+    private static LongSparseArray<Boolean> channels(long... channelIds) {
+        LongSparseArray<Boolean> channels = new LongSparseArray<>();
+        for (long channelId : channelIds) {
+            channels.put(channelId, Boolean.TRUE);
+        }
+        return channels;
+    }
+}
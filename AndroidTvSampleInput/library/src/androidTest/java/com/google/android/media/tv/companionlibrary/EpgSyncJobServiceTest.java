@@ -0,0 +1,60 @@
+package com.google.android.media.tv.companionlibrary;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+
+import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.Program;
+
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Tests the default implementations of the hooks of {@link EpgSyncJobService}.
+ */
+public class EpgSyncJobServiceTest {
+    private static final long MINUTE_MS = 60 * 1000;
+
+    private final EpgSyncJobService mService = new EpgSyncJobService() {
+        @Override
+        public List<Channel> getChannels() {
+            return null;
+        }
+
+        @Override
+        public List<Program> getProgramsForChannel(Uri channelUri, Channel channel,
+                long startMs, long endMs) {
+            return null;
+        }
+    };
+
+    @Test
+    public void testDefaultMetadataCheckRequiresOverlap() {
+        Program oldProgram = program("News", 0, 30);
+        assertTrue(mService.shouldUpdateProgramMetadata(oldProgram, program("News", 15, 45)));
+        assertTrue(mService.shouldUpdateProgramMetadata(oldProgram, program("News", 30, 60)));
+        assertFalse(mService.shouldUpdateProgramMetadata(oldProgram, program("News", 31, 61)));
+        assertFalse(mService.shouldUpdateProgramMetadata(oldProgram, program("Weather", 0, 30)));
+    }
+
+    @Test
+    public void testDefaultMetadataCheckAcceptsMissingTitles() {
+        assertTrue(mService.shouldUpdateProgramMetadata(program(null, 0, 30),
+                program(null, 0, 30)));
+        assertFalse(mService.shouldUpdateProgramMetadata(program(null, 0, 30),
+                program("News", 0, 30)));
+        assertFalse(mService.shouldUpdateProgramMetadata(program("News", 0, 30),
+                program(null, 0, 30)));
+    }
+
+    private static Program program(String title, long startMinute, long endMinute) {
+        return new Program.Builder()
+                .setTitle(title)
+                .setStartTimeUtcMillis(startMinute * MINUTE_MS)
+                .setEndTimeUtcMillis(endMinute * MINUTE_MS)
+                .build();
+    }
+}
@@ -0,0 +1,138 @@
+package com.google.android.media.tv.companionlibrary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.content.ContentValues;
+import android.database.MatrixCursor;
+import android.media.tv.TvContract;
+import android.os.Build;
+
+import com.google.android.media.tv.companionlibrary.model.Program;
+import com.google.android.media.tv.companionlibrary.utils.RowFingerprint;
+
+import org.junit.Test;
+
+/**
+ * Tests that programs read from the EPG and new programs have the same fingerprint if they would
+ * write the same row.
+ */
+public class ProgramRowsTest {
+
+    @Test
+    public void testFingerprintOfProgramMatchesRow() {
+        Program program = newProgram("News", "Today's headlines");
+        MatrixCursor cursor = new MatrixCursor(Program.PROJECTION);
+        addRow(cursor, Program.PROJECTION, 7, program.toContentValues());
+        cursor.moveToFirst();
+        assertEquals(program.getFingerprint(), Program.getFingerprint(cursor));
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N);
+        assertEquals(program.getFingerprint(),
+                (long) program.toContentValues().getAsLong(Program.COLUMN_FINGERPRINT));
+    }
+
+    @Test
+    public void testFingerprintCoversEveryColumn() {
+        assertNotEquals(newProgram("News", "Today's headlines").getFingerprint(),
+                newProgram("News", "Yesterday's headlines").getFingerprint());
+        // A value which moves from one column to the next one is a different row.
+        String[] columns = {TvContract.Programs.COLUMN_TITLE,
+                TvContract.Programs.COLUMN_EPISODE_TITLE};
+        ContentValues values = new ContentValues();
+        values.put(TvContract.Programs.COLUMN_TITLE, "ab");
+        ContentValues shifted = new ContentValues();
+        shifted.put(TvContract.Programs.COLUMN_TITLE, "a");
+        shifted.put(TvContract.Programs.COLUMN_EPISODE_TITLE, "b");
+        assertNotEquals(RowFingerprint.of(values, columns), RowFingerprint.of(shifted, columns));
+    }
+
+    @Test
+    public void testFingerprintIsNotCopied() {
+        Program program = newProgram("News", null);
+        Program copy = new Program.Builder(program).setTitle("Weather").build();
+        assertNotEquals(program.getFingerprint(), copy.getFingerprint());
+    }
+
+    @Test
+    public void testAddReadsSlimColumns() {
+        MatrixCursor cursor = new MatrixCursor(ProgramRows.PROJECTION);
+        for (int i = 0; i < 40; i++) {
+            addRow(cursor, ProgramRows.PROJECTION, 100 + i,
+                    newProgram("Show " + i, null).toContentValues());
+        }
+        ProgramRows rows = new ProgramRows(3);
+        while (cursor.moveToNext()) {
+            assertEquals(3, ProgramRows.getChannelId(cursor));
+            rows.add(cursor);
+        }
+        assertEquals(40, rows.size());
+        assertEquals(139, rows.getId(39));
+        assertEquals(1000, rows.getStartTimeUtcMillis(39));
+        assertEquals(2000, rows.getEndTimeUtcMillis(39));
+        assertTrue(rows.matches(39, newProgram("Show 39", null).getFingerprint()));
+        assertFalse(rows.matches(39, newProgram("Show 38", null).getFingerprint()));
+    }
+
+    @Test
+    public void testRowWithoutFingerprintDoesNotMatch() {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N);
+        ContentValues values = newProgram("News", null).toContentValues();
+        values.putNull(Program.COLUMN_FINGERPRINT);
+        MatrixCursor cursor = new MatrixCursor(ProgramRows.PROJECTION);
+        addRow(cursor, ProgramRows.PROJECTION, 1, values);
+        cursor.moveToFirst();
+        ProgramRows rows = new ProgramRows(3);
+        rows.add(cursor);
+        assertFalse(rows.matches(0, newProgram("News", null).getFingerprint()));
+    }
+
+    @Test
+    public void testUpdateValuesHoldOnlyChangedColumns() {
+        Program oldProgram = new Program.Builder(newProgram("News", "Today's headlines"))
+                .setPosterArtUri("http://example.com/news.png")
+                .build();
+        Program newProgram = new Program.Builder(oldProgram)
+                .setDescription("Corrected headlines")
+                .setEndTimeUtcMillis(2500)
+                .build();
+        ContentValues values = ProgramRows.getUpdateValues(oldProgram,
+                newProgram.toContentValues());
+        assertEquals("Corrected headlines",
+                values.getAsString(TvContract.Programs.COLUMN_SHORT_DESCRIPTION));
+        assertEquals(2500, (long) values.getAsLong(
+                TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS));
+        assertFalse(values.containsKey(TvContract.Programs.COLUMN_TITLE));
+        assertFalse(values.containsKey(TvContract.Programs.COLUMN_POSTER_ART_URI));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            // The fingerprint is always written, as the old row may not have one.
+            assertEquals(newProgram.getFingerprint(),
+                    (long) values.getAsLong(Program.COLUMN_FINGERPRINT));
+            assertEquals(3, values.size());
+        } else {
+            assertEquals(2, values.size());
+        }
+    }
+
+    private static Program newProgram(String title, String description) {
+        return new Program.Builder()
+                .setChannelId(3)
+                .setTitle(title)
+                .setDescription(description)
+                .setStartTimeUtcMillis(1000)
+                .setEndTimeUtcMillis(2000)
+                .build();
+    }
+
+    private static void addRow(MatrixCursor cursor, String[] projection, long id,
+            ContentValues values) {
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = values.get(projection[i]);
+        }
+        row[0] = id;
+        cursor.addRow(row);
+    }
+}
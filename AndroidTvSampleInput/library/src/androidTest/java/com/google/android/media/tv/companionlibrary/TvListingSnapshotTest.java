@@ -0,0 +1,167 @@
+package com.google.android.media.tv.companionlibrary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+
+import com.google.android.media.tv.companionlibrary.model.Channel;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Tests that a {@link TvListingSnapshot} restores the listing it was written from.
+ */
+public class TvListingSnapshotTest {
+    private static final String TAG = "TvListingSnapshotTest";
+    private static final int CHANNEL_COUNT = 100;
+    private static final int PROGRAMS_PER_CHANNEL = 24 * 14;
+    private static final long PROGRAM_DURATION_MS = 60 * 60 * 1000;
+
+    private static byte[] sFeed;
+    private static String sKey;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void createFeed() {
+        StringBuilder feed =
+                new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<tv>\n");
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            feed.append("  <channel id=\"channel.").append(channel).append("\">\n")
+                    .append("    <display-name>Channel ").append(channel)
+                    .append(" \u00e9\u4e2d</display-name>\n")
+                    .append("    <display-number>").append(channel)
+                    .append("</display-number>\n")
+                    .append("    <icon src=\"https://example.com/logo/").append(channel)
+                    .append(".png\"/>\n")
+                    .append("    <app-link text=\"More\" color=\"#546E7A\" poster-uri=\"https://")
+                    .append("example.com/poster.png\" intent-uri=\"intent:#Intent;end\">\n")
+                    .append("      <icon src=\"https://example.com/app.png\"/>\n")
+                    .append("    </app-link>\n")
+                    .append("  </channel>\n");
+        }
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            for (int program = 0; program < PROGRAMS_PER_CHANNEL; program++) {
+                feed.append("  <programme channel=\"channel.").append(channel)
+                        .append("\" start=\"").append(timestamp(program))
+                        .append("\" stop=\"").append(timestamp(program + 1))
+                        .append("\" video-type=\"HLS\" video-src=\"https://example.com/")
+                        .append(channel).append('/').append(program).append(".m3u8\">\n")
+                        .append("    <title>Program ").append(program % 24).append("</title>\n")
+                        .append("    <desc>Description of program ").append(program % 24)
+                        .append("</desc>\n")
+                        .append("    <icon src=\"https://example.com/").append(program % 24)
+                        .append(".png\"/>\n");
+                if (program % 3 != 0) {
+                    feed.append("    <rating system=\"com.android.tv\">\n")
+                            .append("      <value>com.android.tv/US_TV/US_TV_PG</value>\n")
+                            .append("    </rating>\n");
+                }
+                feed.append("  </programme>\n");
+            }
+        }
+        feed.append("</tv>\n");
+        sFeed = feed.toString().getBytes(StandardCharsets.UTF_8);
+        sKey = TvListingSnapshot.getContentHash(sFeed);
+    }
+
+    @Test
+    public void testReadRestoresWrittenListing() throws Exception {
+        XmlTvParser.TvListing expected = XmlTvParser.parse(new ByteArrayInputStream(sFeed));
+        assertNotNull(expected);
+        File file = mFolder.newFile();
+        assertTrue(TvListingSnapshot.write(file, sKey, expected));
+        assertEquals(sKey, TvListingSnapshot.readKey(file));
+
+        XmlTvParser.TvListing actual = TvListingSnapshot.read(file, sKey);
+        assertNotNull(actual);
+        assertEquals(expected.getAllPrograms(), actual.getAllPrograms());
+        assertEquals(expected.getChannels().size(), actual.getChannels().size());
+        for (int i = 0; i < expected.getChannels().size(); i++) {
+            Channel expectedChannel = expected.getChannels().get(i);
+            Channel actualChannel = actual.getChannels().get(i);
+            assertEquals(expectedChannel, actualChannel);
+            assertEquals(expectedChannel.getChannelLogo(), actualChannel.getChannelLogo());
+            assertEquals(expectedChannel.getAppLinkText(), actualChannel.getAppLinkText());
+            assertEquals(expectedChannel.getAppLinkColor(), actualChannel.getAppLinkColor());
+            assertEquals(expectedChannel.getAppLinkIconUri(), actualChannel.getAppLinkIconUri());
+            assertEquals(expectedChannel.getAppLinkPosterArtUri(),
+                    actualChannel.getAppLinkPosterArtUri());
+            assertEquals(expectedChannel.getAppLinkIntentUri(),
+                    actualChannel.getAppLinkIntentUri());
+            assertEquals(expected.getPrograms(expectedChannel),
+                    actual.getPrograms(actualChannel));
+        }
+    }
+
+    @Test
+    public void testReadChannelsRestoresOnlyChannels() throws Exception {
+        XmlTvParser.TvListing listing = XmlTvParser.parse(new ByteArrayInputStream(sFeed));
+        File file = mFolder.newFile();
+        assertTrue(TvListingSnapshot.write(file, sKey, listing));
+        assertEquals(listing.getChannels(), TvListingSnapshot.readChannels(file, sKey));
+        assertNull(TvListingSnapshot.readChannels(file,
+                TvListingSnapshot.getContentHash(new byte[] {1})));
+    }
+
+    @Test
+    public void testReadRejectsOtherKeyAndDamagedFiles() throws Exception {
+        XmlTvParser.TvListing listing = XmlTvParser.parse(new ByteArrayInputStream(sFeed));
+        File file = mFolder.newFile();
+        assertTrue(TvListingSnapshot.write(file, sKey, listing));
+        String otherKey = TvListingSnapshot.getContentHash(new byte[] {1});
+        assertNotEquals(sKey, otherKey);
+        assertNull(TvListingSnapshot.read(file, otherKey));
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(randomAccessFile.length() / 2);
+        }
+        assertNull(TvListingSnapshot.read(file, sKey));
+        assertNull(TvListingSnapshot.read(new File(mFolder.getRoot(), "missing"), sKey));
+        assertNull(TvListingSnapshot.readKey(mFolder.newFile()));
+    }
+
+    @Test
+    public void benchmarkReadAgainstParse() throws Exception {
+        File file = mFolder.newFile();
+        TvListingSnapshot.write(file, sKey,
+                XmlTvParser.parse(new ByteArrayInputStream(sFeed)));
+        for (int i = 0; i < 3; i++) {
+            XmlTvParser.parse(new ByteArrayInputStream(sFeed));
+            TvListingSnapshot.read(file, sKey);
+        }
+        long start = System.nanoTime();
+        XmlTvParser.parse(new ByteArrayInputStream(sFeed));
+        long parseNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        TvListingSnapshot.read(file, sKey);
+        long readNanos = System.nanoTime() - start;
+        Log.i(TAG, String.format(Locale.US,
+                "%d byte feed: parse %d ms, %d byte snapshot: read %d ms", sFeed.length,
+                parseNanos / 1000000, file.length(), readNanos / 1000000));
+    }
+
+    private static String timestamp(int slot) {
+        long millis = 1500000000000L + slot * PROGRAM_DURATION_MS;
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss Z", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+}
@@ -0,0 +1,141 @@
+package com.google.android.media.tv.companionlibrary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import android.util.Log;
+
+import com.google.android.media.tv.companionlibrary.model.Program;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Tests the parsing of programs with elements the parser does not use, such as the
+ * {@code <credits>} of real-world feeds.
+ */
+public class XmlTvParserFieldsTest {
+    private static final String TAG = "XmlTvParserFieldsTest";
+    private static final int CHANNEL_COUNT = 100;
+    private static final int PROGRAMS_PER_CHANNEL = 100;
+    private static final int CREDITS_PER_PROGRAM = 30;
+    private static final long PROGRAM_DURATION_MS = 60 * 60 * 1000;
+
+    private static byte[] sFeed;
+
+    @BeforeClass
+    public static void createFeed() {
+        StringBuilder feed =
+                new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<tv>\n");
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            feed.append("  <channel id=\"channel.").append(channel).append("\">\n")
+                    .append("    <display-name>Channel ").append(channel)
+                    .append("</display-name>\n")
+                    .append("    <display-number>").append(channel)
+                    .append("</display-number>\n")
+                    .append("  </channel>\n");
+        }
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            for (int program = 0; program < PROGRAMS_PER_CHANNEL; program++) {
+                feed.append("  <programme channel=\"channel.").append(channel)
+                        .append("\" start=\"").append(timestamp(program))
+                        .append("\" stop=\"").append(timestamp(program + 1))
+                        .append("\" video-src=\"https://example.com/").append(channel)
+                        .append('/').append(program).append(".mp4\">\n")
+                        .append("    <title lang=\"en\">Program ").append(program)
+                        .append("</title>\n")
+                        .append("    <sub-title lang=\"en\">Part ").append(program)
+                        .append("</sub-title>\n")
+                        .append("    <desc lang=\"en\">Description of program ")
+                        .append(program).append("</desc>\n")
+                        .append("    <credits>\n");
+                for (int credit = 0; credit < CREDITS_PER_PROGRAM; credit++) {
+                    feed.append("      <actor role=\"Role ").append(credit).append("\">Actor ")
+                            .append(credit).append("<image type=\"person\">https://example.com/")
+                            .append(credit).append(".jpg</image></actor>\n");
+                }
+                feed.append("      <director>Director</director>\n")
+                        .append("      <writer>Writer</writer>\n")
+                        .append("    </credits>\n")
+                        .append("    <date>2015</date>\n")
+                        .append("    <category lang=\"en\">Drama</category>\n")
+                        .append("    <episode-num system=\"xmltv_ns\">1.").append(program)
+                        .append(".</episode-num>\n")
+                        .append("    <video><present>yes</present><aspect>16:9</aspect>")
+                        .append("<quality>HDTV</quality></video>\n")
+                        .append("    <audio><stereo>stereo</stereo></audio>\n")
+                        .append("    <icon src=\"https://example.com/").append(program)
+                        .append(".png\"/>\n")
+                        .append("    <Rating system=\"com.android.tv\">\n")
+                        .append("      <value>com.android.tv/US_TV/US_TV_PG</value>\n")
+                        .append("    </Rating>\n")
+                        .append("    <star-rating><value>3/5</value></star-rating>\n")
+                        .append("  </programme>\n");
+            }
+        }
+        feed.append("</tv>\n");
+        sFeed = feed.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testParseSkipsUnusedElements() throws Exception {
+        XmlTvParser.TvListing listing = XmlTvParser.parse(new ByteArrayInputStream(sFeed));
+        assertNotNull(listing);
+        assertEquals(CHANNEL_COUNT * PROGRAMS_PER_CHANNEL, listing.getAllPrograms().size());
+        Program program = listing.getAllPrograms().get(1);
+        assertEquals("Program 1", program.getTitle());
+        assertEquals("Description of program 1", program.getDescription());
+        assertEquals("https://example.com/1.png", program.getPosterArtUri());
+        assertEquals(1, program.getContentRatings().length);
+    }
+
+    @Test
+    public void testParseOnlySelectedFields() throws Exception {
+        XmlTvParser.ParseOptions options = new XmlTvParser.ParseOptions.Builder()
+                .setProgramFields(XmlTvParser.ParseOptions.FIELD_POSTER_ART)
+                .build();
+        XmlTvParser.TvListing listing = XmlTvParser.parse(new ByteArrayInputStream(sFeed),
+                options);
+        assertNotNull(listing);
+        Program program = listing.getAllPrograms().get(1);
+        assertEquals("Program 1", program.getTitle());
+        assertNull(program.getDescription());
+        assertEquals("https://example.com/1.png", program.getPosterArtUri());
+        assertEquals(0, program.getContentRatings().length);
+    }
+
+    @Test
+    public void benchmarkCredits() throws Exception {
+        XmlTvParser.ParseOptions titleOnly = new XmlTvParser.ParseOptions.Builder()
+                .setProgramFields(0)
+                .build();
+        long allNanos = Long.MAX_VALUE;
+        long titleNanos = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            XmlTvParser.parse(new ByteArrayInputStream(sFeed));
+            allNanos = Math.min(allNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            XmlTvParser.parse(new ByteArrayInputStream(sFeed), titleOnly);
+            titleNanos = Math.min(titleNanos, System.nanoTime() - start);
+        }
+        Log.i(TAG, String.format(Locale.US,
+                "%d bytes with credits: all fields %d ms, title only %d ms", sFeed.length,
+                allNanos / 1000000, titleNanos / 1000000));
+    }
+
+    private static String timestamp(int slot) {
+        long millis = 1500000000000L + slot * PROGRAM_DURATION_MS;
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss Z", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+}
@@ -0,0 +1,154 @@
+package com.google.android.media.tv.companionlibrary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+
+import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.Program;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Tests that the programs of a parsed {@link XmlTvParser.TvListing} share their repeated values,
+ * and measures the heap this saves.
+ */
+public class XmlTvParserInternTest {
+    private static final String TAG = "XmlTvParserInternTest";
+    private static final int CHANNEL_COUNT = 200;
+    private static final int DAYS = 14;
+    private static final int PROGRAMS_PER_CHANNEL = 24 * DAYS;
+    /** Number of distinct shows each channel loops through. */
+    private static final int SHOWS_PER_CHANNEL = 24;
+    private static final long PROGRAM_DURATION_MS = 60 * 60 * 1000;
+    private static final long FEED_START_MS = 1500000000000L;
+
+    private static byte[] sFeed;
+
+    @BeforeClass
+    public static void createFeed() {
+        StringBuilder feed =
+                new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<tv>\n");
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            feed.append("  <channel id=\"channel.").append(channel).append("\">\n")
+                    .append("    <display-name>Channel ").append(channel)
+                    .append("</display-name>\n")
+                    .append("    <display-number>").append(channel)
+                    .append("</display-number>\n")
+                    .append("  </channel>\n");
+        }
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            for (int program = 0; program < PROGRAMS_PER_CHANNEL; program++) {
+                int show = program % SHOWS_PER_CHANNEL;
+                feed.append("  <programme channel=\"channel.").append(channel)
+                        .append("\" start=\"").append(timestamp(program))
+                        .append("\" stop=\"").append(timestamp(program + 1))
+                        .append("\" video-type=\"HLS\" video-src=\"https://example.com/")
+                        .append(channel).append('/').append(show).append(".m3u8\">\n")
+                        .append("    <title>Show ").append(channel).append('.').append(show)
+                        .append("</title>\n")
+                        .append("    <desc>An episode of show ").append(show)
+                        .append(", which is about the things that happen in it and is quite")
+                        .append(" long for a description.</desc>\n")
+                        .append("    <icon src=\"https://example.com/artwork/").append(channel)
+                        .append('/').append(show).append(".png\"/>\n")
+                        .append("    <rating system=\"com.android.tv\">\n")
+                        .append("      <value>com.android.tv/US_TV/US_TV_PG</value>\n")
+                        .append("    </rating>\n")
+                        .append("  </programme>\n");
+            }
+        }
+        feed.append("</tv>\n");
+        sFeed = feed.toString().getBytes();
+    }
+
+    @Test
+    public void testListingSharesRepeatedValues() throws Exception {
+        XmlTvParser.TvListing listing = XmlTvParser.parse(new ByteArrayInputStream(sFeed));
+        assertNotNull(listing);
+        List<Program> programs = listing.getPrograms(listing.getChannels().get(0));
+        Program first = programs.get(1);
+        Program repeat = programs.get(1 + SHOWS_PER_CHANNEL);
+        assertEquals(first.getTitle(), repeat.getTitle());
+        assertSame(first.getTitle(), repeat.getTitle());
+        assertSame(first.getDescription(), repeat.getDescription());
+        assertSame(first.getPosterArtUri(), repeat.getPosterArtUri());
+
+        // Each listing has its own values, which are released with it.
+        XmlTvParser.TvListing other = XmlTvParser.parse(new ByteArrayInputStream(sFeed));
+        assertNotNull(other);
+        assertNotSame(first.getTitle(),
+                other.getPrograms(other.getChannels().get(0)).get(1).getTitle());
+    }
+
+    /**
+     * Logs the heap held by a listing, with its repeated values shared, and by the same programs
+     * collected from the streaming parse, which does not share them. Nothing is asserted about
+     * the sizes: run it on a device and compare the logged values.
+     */
+    @Test
+    public void benchmarkListingHeap() throws Exception {
+        long before = usedHeap();
+        List<Program> plainPrograms = parsePrograms();
+        long plainBytes = usedHeap() - before;
+        assertEquals(CHANNEL_COUNT * PROGRAMS_PER_CHANNEL, plainPrograms.size());
+        plainPrograms = null;
+
+        before = usedHeap();
+        XmlTvParser.TvListing listing = XmlTvParser.parse(new ByteArrayInputStream(sFeed));
+        long internedBytes = usedHeap() - before;
+        assertTrue(listing != null
+                && listing.getAllPrograms().size() == CHANNEL_COUNT * PROGRAMS_PER_CHANNEL);
+        Log.i(TAG, String.format(Locale.US, "Listing of %d channels over %d days: "
+                        + "%d KB without interning, %d KB with interning",
+                CHANNEL_COUNT, DAYS, plainBytes / 1024, internedBytes / 1024));
+    }
+
+    private static List<Program> parsePrograms() throws Exception {
+        final List<Program> programs = new ArrayList<>();
+        XmlTvParser.parse(new ByteArrayInputStream(sFeed), new XmlTvParser.XmlTvHandler() {
+            @Override
+            public void onChannel(Channel channel) {
+            }
+
+            @Override
+            public void onProgram(Program program) {
+                programs.add(program);
+            }
+
+            @Override
+            public void onEnd() {
+            }
+        });
+        return programs;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static String timestamp(int slot) {
+        long millis = FEED_START_MS + slot * PROGRAM_DURATION_MS;
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss Z", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+}
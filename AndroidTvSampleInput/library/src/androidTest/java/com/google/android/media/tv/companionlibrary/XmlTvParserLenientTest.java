@@ -0,0 +1,122 @@
+package com.google.android.media.tv.companionlibrary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.Program;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that a lenient parse drops invalid channels and programs, and counts them.
+ */
+public class XmlTvParserLenientTest {
+    private static final String FEED = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+            + "<tv>\n"
+            + "  <channel id=\"good\"><display-name>Good</display-name></channel>\n"
+            + "  <channel id=\"no-name\"><display-number>2</display-number></channel>\n"
+            + "  <channel id=\"bad-color\"><display-name>Bad color</display-name>"
+            + "<app-link text=\"Open\" color=\"not a color\"><icon src=\"a.png\"/></app-link>"
+            + "</channel>\n"
+            + "  <programme channel=\"good\" start=\"20170101000000 +0000\""
+            + " stop=\"20170101010000 +0000\"><title>First</title>"
+            + "<icon src=\"first.png\"/></programme>\n"
+            + "  <programme channel=\"good\" stop=\"20170101020000 +0000\">"
+            + "<title>No start</title><credits><actor>Actor</actor></credits></programme>\n"
+            + "  <programme channel=\"good\" start=\"yesterday\""
+            + " stop=\"20170101030000 +0000\"><title>Bad start</title></programme>\n"
+            + "  <programme channel=\"good\" start=\"20170101030000 +0000\""
+            + " stop=\"20170101040000 +0000\"><title>No icon</title></programme>\n"
+            + "  <programme channel=\"good\" start=\"20170101040000 +0000\""
+            + " stop=\"20170101050000 +0000\"><title>Empty icon</title><icon/>"
+            + "<desc>After the icon</desc></programme>\n"
+            + "  <programme channel=\"good\" start=\"20170101050000 +0000\""
+            + " stop=\"20170101060000 +0000\"><title>Last</title></programme>\n"
+            + "</tv>\n";
+
+    private static final XmlTvParser.ParseOptions LENIENT = new XmlTvParser.ParseOptions.Builder()
+            .setLenient(true)
+            .build();
+
+    @Test
+    public void testStrictParseFailsOnInvalidRecord() throws Exception {
+        try {
+            XmlTvParser.parse(open());
+            fail("An invalid channel should fail a strict parse");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testLenientParseDropsInvalidRecords() throws Exception {
+        XmlTvParser.TvListing listing = XmlTvParser.parse(open(), LENIENT);
+        assertNotNull(listing);
+        assertEquals(1, listing.getChannels().size());
+        List<String> titles = new ArrayList<>();
+        for (Program program : listing.getAllPrograms()) {
+            titles.add(program.getTitle());
+        }
+        assertEquals("[First, No icon, Last]", titles.toString());
+
+        XmlTvParser.ParseErrors errors = listing.getParseErrors();
+        assertEquals(2, errors.getDroppedChannelCount());
+        assertEquals(3, errors.getDroppedProgramCount());
+        // No display name, no start time and an empty icon
+        assertEquals(3, errors.getCount(XmlTvParser.ParseErrors.ERROR_MISSING_FIELD));
+        assertEquals(1, errors.getCount(XmlTvParser.ParseErrors.ERROR_INVALID_TIME));
+        // The color of the app link
+        assertEquals(1, errors.getCount(XmlTvParser.ParseErrors.ERROR_INVALID_VALUE));
+    }
+
+    @Test
+    public void testErrorListener() throws Exception {
+        final List<XmlTvParser.ParseErrors> reported = new ArrayList<>();
+        final List<Program> programs = new ArrayList<>();
+        assertTrue(XmlTvParser.parse(open(), new ErrorCollector(reported, programs), LENIENT));
+        assertEquals(1, reported.size());
+        assertEquals(3, reported.get(0).getDroppedProgramCount());
+        assertEquals(3, programs.size());
+    }
+
+    private static InputStream open() {
+        return new ByteArrayInputStream(FEED.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static class ErrorCollector
+            implements XmlTvParser.XmlTvHandler, XmlTvParser.ErrorListener {
+        private final List<XmlTvParser.ParseErrors> mReported;
+        private final List<Program> mPrograms;
+
+        ErrorCollector(List<XmlTvParser.ParseErrors> reported, List<Program> programs) {
+            mReported = reported;
+            mPrograms = programs;
+        }
+
+        @Override
+        public void onChannel(Channel channel) {
+        }
+
+        @Override
+        public void onProgram(Program program) {
+            mPrograms.add(program);
+        }
+
+        @Override
+        public void onErrors(XmlTvParser.ParseErrors errors) {
+            mReported.add(errors);
+        }
+
+        @Override
+        public void onEnd() {
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.google.android.media.tv.companionlibrary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+
+import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.Program;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Tests the channels and programs selected by {@link XmlTvParser.ParseOptions}.
+ */
+public class XmlTvParserOptionsTest {
+    private static final String TAG = "XmlTvParserOptionsTest";
+    private static final int CHANNEL_COUNT = 100;
+    private static final int PROGRAMS_PER_CHANNEL = 24 * 14;
+    private static final long PROGRAM_DURATION_MS = 60 * 60 * 1000;
+    private static final long FEED_START_MS = 1500000000000L;
+    /** Channel 0 repeats its programs. */
+    private static final int REPEATING_CHANNEL = 0;
+
+    private static byte[] sFeed;
+
+    @BeforeClass
+    public static void createFeed() {
+        StringBuilder feed =
+                new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<tv>\n");
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            feed.append("  <channel id=\"channel.").append(channel).append('"');
+            if (channel == REPEATING_CHANNEL) {
+                feed.append(" repeat-programs=\"true\"");
+            }
+            feed.append(">\n")
+                    .append("    <display-name>Channel ").append(channel)
+                    .append("</display-name>\n")
+                    .append("    <display-number>").append(channel)
+                    .append("</display-number>\n")
+                    .append("  </channel>\n");
+        }
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            for (int program = 0; program < PROGRAMS_PER_CHANNEL; program++) {
+                feed.append("  <programme channel=\"channel.").append(channel)
+                        .append("\" start=\"").append(timestamp(program))
+                        .append("\" stop=\"").append(timestamp(program + 1))
+                        .append("\" video-type=\"HLS\" video-src=\"https://example.com/")
+                        .append(channel).append('/').append(program).append(".m3u8\">\n")
+                        .append("    <title>Program ").append(program).append("</title>\n")
+                        .append("    <desc>Description of program ").append(program)
+                        .append("</desc>\n")
+                        .append("    <icon src=\"https://example.com/").append(program)
+                        .append(".png\"/>\n")
+                        .append("    <rating system=\"com.android.tv\">\n")
+                        .append("      <value>com.android.tv/US_TV/US_TV_PG</value>\n")
+                        .append("    </rating>\n")
+                        .append("  </programme>\n");
+            }
+        }
+        feed.append("</tv>\n");
+        sFeed = feed.toString().getBytes();
+    }
+
+    @Test
+    public void testTimeWindowSkipsProgramsOutsideWindow() throws Exception {
+        // Programs 10 to 20 overlap the window
+        long startMs = FEED_START_MS + 10 * PROGRAM_DURATION_MS + 1;
+        long endMs = FEED_START_MS + 20 * PROGRAM_DURATION_MS;
+        XmlTvParser.TvListing listing = XmlTvParser.parse(new ByteArrayInputStream(sFeed),
+                new XmlTvParser.ParseOptions.Builder().setTimeWindow(startMs, endMs).build());
+        assertNotNull(listing);
+        assertEquals(CHANNEL_COUNT, listing.getChannels().size());
+        for (Channel channel : listing.getChannels()) {
+            if (channel.getDisplayNumber().equals(String.valueOf(REPEATING_CHANNEL))) {
+                assertTrue(channel.getInternalProviderData().isRepeatable());
+                assertEquals(PROGRAMS_PER_CHANNEL, listing.getPrograms(channel).size());
+                continue;
+            }
+            // The sync keeps the programs of the channel at their own times.
+            assertFalse(channel.getInternalProviderData().isRepeatable());
+            for (Program program : listing.getPrograms(channel)) {
+                assertTrue(program.getEndTimeUtcMillis() > startMs);
+                assertTrue(program.getStartTimeUtcMillis() <= endMs);
+            }
+            assertEquals(11, listing.getPrograms(channel).size());
+        }
+    }
+
+    @Test
+    public void testChannelIdsSkipOtherChannels() throws Exception {
+        XmlTvParser.TvListing listing = XmlTvParser.parse(new ByteArrayInputStream(sFeed),
+                new XmlTvParser.ParseOptions.Builder()
+                        .setChannelIds(Arrays.asList("channel.3", "channel.7"))
+                        .build());
+        assertNotNull(listing);
+        assertEquals(2, listing.getChannels().size());
+        assertEquals(2 * PROGRAMS_PER_CHANNEL, listing.getAllPrograms().size());
+        for (Channel channel : listing.getChannels()) {
+            assertEquals(PROGRAMS_PER_CHANNEL, listing.getPrograms(channel).size());
+        }
+    }
+
+    @Test
+    public void testFingerprintsDoNotDependOnTimeWindow() throws Exception {
+        FingerprintCollector all = new FingerprintCollector();
+        assertTrue(XmlTvParser.parse(new ByteArrayInputStream(sFeed), all));
+        assertEquals(CHANNEL_COUNT, all.mFingerprints.size());
+        assertEquals(CHANNEL_COUNT * PROGRAMS_PER_CHANNEL, all.mProgramCount);
+
+        FingerprintCollector window = new FingerprintCollector();
+        assertTrue(XmlTvParser.parse(new ByteArrayInputStream(sFeed), window,
+                new XmlTvParser.ParseOptions.Builder()
+                        .setTimeWindow(FEED_START_MS, FEED_START_MS + PROGRAM_DURATION_MS)
+                        .build()));
+        assertEquals(all.mFingerprints, window.mFingerprints);
+
+        String changedFeed = new String(sFeed, "UTF-8")
+                .replace("https://example.com/7/3.m3u8", "https://example.com/7/3b.m3u8");
+        FingerprintCollector changed = new FingerprintCollector();
+        assertTrue(XmlTvParser.parse(
+                new ByteArrayInputStream(changedFeed.getBytes("UTF-8")), changed));
+        for (Map.Entry<Integer, Long> entry : all.mFingerprints.entrySet()) {
+            if (entry.getKey() == "channel.7".hashCode()) {
+                assertNotEquals(entry.getValue(), changed.mFingerprints.get(entry.getKey()));
+            } else {
+                assertEquals(entry.getValue(), changed.mFingerprints.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void testFingerprintsCoverParsedValuesAndRepeatFlag() throws Exception {
+        FingerprintCollector all = new FingerprintCollector();
+        assertTrue(XmlTvParser.parse(new ByteArrayInputStream(sFeed), all));
+
+        // The same programs, written with other markup
+        String rewrittenFeed = new String(sFeed, "UTF-8")
+                .replace("<programme channel=\"channel.7\"",
+                        "<!-- <programme channel=\"channel.8\"> -->"
+                                + "<programme CHANNEL=\"channel&#46;7\"")
+                .replace("<title>Program 3</title>", "<title><![CDATA[Program 3]]></title>");
+        FingerprintCollector rewritten = new FingerprintCollector();
+        assertTrue(XmlTvParser.parse(
+                new ByteArrayInputStream(rewrittenFeed.getBytes("UTF-8")), rewritten));
+        assertEquals(all.mFingerprints, rewritten.mFingerprints);
+
+        String notRepeatingFeed = new String(sFeed, "UTF-8")
+                .replace(" repeat-programs=\"true\"", "");
+        FingerprintCollector notRepeating = new FingerprintCollector();
+        assertTrue(XmlTvParser.parse(
+                new ByteArrayInputStream(notRepeatingFeed.getBytes("UTF-8")), notRepeating));
+        for (Map.Entry<Integer, Long> entry : all.mFingerprints.entrySet()) {
+            if (entry.getKey() == ("channel." + REPEATING_CHANNEL).hashCode()) {
+                assertNotEquals(entry.getValue(), notRepeating.mFingerprints.get(entry.getKey()));
+            } else {
+                assertEquals(entry.getValue(), notRepeating.mFingerprints.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void testFingerprintDoesNotDecodeProgramsOutsideWindow() throws Exception {
+        // An invalid program of channel 7, a day after the end of the feed
+        String invalidProgram = "  <programme channel=\"channel.7\" start=\""
+                + timestamp(PROGRAMS_PER_CHANNEL + 24) + "\" stop=\""
+                + timestamp(PROGRAMS_PER_CHANNEL + 25) + "\">\n"
+                + "    <title>Invalid</title>\n"
+                + "    <icon/>\n"
+                + "    <rating system=\"com.android.tv\"/>\n"
+                + "  </programme>\n";
+        String feed = new String(sFeed, "UTF-8");
+        int end = feed.indexOf("  <programme channel=\"channel.8\"");
+        String invalidFeed = feed.substring(0, end) + invalidProgram + feed.substring(end);
+        XmlTvParser.ParseOptions window = new XmlTvParser.ParseOptions.Builder()
+                .setTimeWindow(FEED_START_MS, FEED_START_MS + PROGRAM_DURATION_MS)
+                .setLenient(true)
+                .build();
+
+        // Outside of the window, the program is not validated, but it is fingerprinted.
+        FingerprintCollector outside = new FingerprintCollector();
+        assertTrue(XmlTvParser.parse(
+                new ByteArrayInputStream(invalidFeed.getBytes("UTF-8")), outside, window));
+        assertTrue(outside.mErrors.isEmpty());
+        FingerprintCollector changed = new FingerprintCollector();
+        assertTrue(XmlTvParser.parse(new ByteArrayInputStream(
+                invalidFeed.replace("<title>Invalid</title>", "<title>Changed</title>")
+                        .getBytes("UTF-8")), changed, window));
+        assertNotEquals(outside.mFingerprints.get("channel.7".hashCode()),
+                changed.mFingerprints.get("channel.7".hashCode()));
+
+        // Inside of the window, it is decoded, and dropped.
+        FingerprintCollector inside = new FingerprintCollector();
+        assertTrue(XmlTvParser.parse(
+                new ByteArrayInputStream(invalidFeed.getBytes("UTF-8")), inside,
+                new XmlTvParser.ParseOptions.Builder().setLenient(true).build()));
+        assertEquals(1, inside.mErrors.getDroppedProgramCount());
+    }
+
+    @Test
+    public void testStopConditionEndsParse() throws Exception {
+        StoppingHandler handler = new StoppingHandler(PROGRAMS_PER_CHANNEL + 5);
+        assertFalse(XmlTvParser.parse(new ByteArrayInputStream(sFeed), handler));
+        assertEquals(PROGRAMS_PER_CHANNEL + 5, handler.mProgramCount);
+        assertFalse(handler.mEnded);
+    }
+
+    @Test
+    public void benchmarkTimeWindow() throws Exception {
+        XmlTvParser.ParseOptions options = new XmlTvParser.ParseOptions.Builder()
+                .setTimeWindow(FEED_START_MS, FEED_START_MS + 24 * PROGRAM_DURATION_MS)
+                .build();
+        for (int i = 0; i < 3; i++) {
+            XmlTvParser.parse(new ByteArrayInputStream(sFeed));
+            XmlTvParser.parse(new ByteArrayInputStream(sFeed), options);
+        }
+        long start = System.nanoTime();
+        XmlTvParser.parse(new ByteArrayInputStream(sFeed));
+        long fullNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        XmlTvParser.parse(new ByteArrayInputStream(sFeed), options);
+        long windowNanos = System.nanoTime() - start;
+        Log.i(TAG, String.format(Locale.US, "%d bytes, full: %d ms, 1 day of 14: %d ms",
+                sFeed.length, fullNanos / 1000000, windowNanos / 1000000));
+    }
+
+    /**
+     * Collects the fingerprints of the channels, and checks that each one is reported after the
+     * programs of its channel.
+     */
+    private static class FingerprintCollector implements XmlTvParser.XmlTvHandler,
+            XmlTvParser.FingerprintListener, XmlTvParser.ErrorListener {
+        final Map<Integer, Long> mFingerprints = new HashMap<>();
+        int mProgramCount;
+        XmlTvParser.ParseErrors mErrors;
+        private long mChannelId = Long.MIN_VALUE;
+
+        @Override
+        public void onChannel(Channel channel) {
+        }
+
+        @Override
+        public void onProgram(Program program) {
+            assertFalse(mFingerprints.containsKey((int) program.getChannelId()));
+            mChannelId = program.getChannelId();
+            mProgramCount++;
+        }
+
+        @Override
+        public void onFingerprint(int originalNetworkId, long fingerprint) {
+            assertNull(mFingerprints.put(originalNetworkId, fingerprint));
+        }
+
+        @Override
+        public void onErrors(XmlTvParser.ParseErrors errors) {
+            mErrors = errors;
+        }
+
+        @Override
+        public void onEnd() {
+            assertTrue(mChannelId == Long.MIN_VALUE
+                    || mFingerprints.containsKey((int) mChannelId));
+        }
+    }
+
+    /** Stops the parse once it has received a number of programs. */
+    private static class StoppingHandler
+            implements XmlTvParser.XmlTvHandler, XmlTvParser.StopCondition {
+        private final int mMaxPrograms;
+        int mProgramCount;
+        boolean mEnded;
+
+        StoppingHandler(int maxPrograms) {
+            mMaxPrograms = maxPrograms;
+        }
+
+        @Override
+        public void onChannel(Channel channel) {
+        }
+
+        @Override
+        public void onProgram(Program program) {
+            mProgramCount++;
+        }
+
+        @Override
+        public void onEnd() {
+            mEnded = true;
+        }
+
+        @Override
+        public boolean shouldStopParsing() {
+            return mProgramCount >= mMaxPrograms;
+        }
+    }
+
+    private static String timestamp(int slot) {
+        long millis = FEED_START_MS + slot * PROGRAM_DURATION_MS;
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss Z", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+}
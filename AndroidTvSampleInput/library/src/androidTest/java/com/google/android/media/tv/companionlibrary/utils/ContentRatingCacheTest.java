@@ -0,0 +1,113 @@
+package com.google.android.media.tv.companionlibrary.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.media.tv.TvContentRating;
+import android.util.Log;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+/**
+ * Tests that {@link ContentRatingCache} converts ratings like the framework does.
+ */
+public class ContentRatingCacheTest {
+    private static final String TAG = "ContentRatingCacheTest";
+    private static final int BENCHMARK_ROW_COUNT = 100000;
+
+    private static final String[] RATINGS = {
+            "com.android.tv/US_TV/US_TV_PG",
+            "com.android.tv/US_TV/US_TV_14/US_TV_D/US_TV_L",
+            "com.android.tv/US_TV/US_TV_PG , com.android.tv/US_MV/US_MV_PG13",
+            "com.android.tv/US_TV/US_TV_Y,com.android.tv/US_TV/US_TV_G,",
+    };
+
+    @Test
+    public void testUnflattenAllMatchesRegexSplit() {
+        for (String ratings : RATINGS) {
+            assertArrayEquals(ratings, unflattenWithRegex(ratings),
+                    ContentRatingCache.unflattenAll(ratings));
+        }
+        assertNull(ContentRatingCache.unflattenAll(null));
+        assertNull(ContentRatingCache.unflattenAll(""));
+    }
+
+    @Test
+    public void testUnflattenReturnsSharedInstances() {
+        String ratings = new StringBuilder(RATINGS[2]).toString();
+        TvContentRating[] first = ContentRatingCache.unflattenAll(ratings);
+        assertSame(first, ContentRatingCache.unflattenAll(new StringBuilder(ratings).toString()));
+        assertSame(first[0], ContentRatingCache.unflatten(RATINGS[0]));
+    }
+
+    @Test
+    public void testStringToContentRatingsReturnsCopies() {
+        TvContentRating[] first = TvContractUtils.stringToContentRatings(RATINGS[2]);
+        first[0] = null;
+        TvContentRating[] second = TvContractUtils.stringToContentRatings(RATINGS[2]);
+        assertNotSame(first, second);
+        assertArrayEquals(ContentRatingCache.unflattenAll(RATINGS[2]), second);
+    }
+
+    @Test
+    public void testFlattenAllRoundTrips() {
+        for (String ratings : RATINGS) {
+            TvContentRating[] contentRatings = unflattenWithRegex(ratings);
+            String flattened = ContentRatingCache.flattenAll(contentRatings);
+            assertEquals(flattenWithFramework(contentRatings), flattened);
+            assertArrayEquals(contentRatings, ContentRatingCache.unflattenAll(flattened));
+        }
+        assertNull(ContentRatingCache.flattenAll(null));
+        assertNull(ContentRatingCache.flattenAll(new TvContentRating[0]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnflattenRejectsInvalidRating() {
+        ContentRatingCache.unflattenAll("com.android.tv");
+    }
+
+    @Test
+    public void benchmarkCursorRoundTrip() {
+        String[] rows = new String[BENCHMARK_ROW_COUNT];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new StringBuilder(RATINGS[i % RATINGS.length]).toString();
+        }
+        int checksum = 0;
+        long start = System.nanoTime();
+        for (String row : rows) {
+            checksum += flattenWithFramework(unflattenWithRegex(row)).length();
+        }
+        long frameworkNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (String row : rows) {
+            checksum -= ContentRatingCache.flattenAll(ContentRatingCache.unflattenAll(row))
+                    .length();
+        }
+        long cacheNanos = System.nanoTime() - start;
+        Log.i(TAG, String.format(Locale.US, "%d rows: framework %d ms, cache %d ms",
+                rows.length, frameworkNanos / 1000000, cacheNanos / 1000000));
+        assertEquals(0, checksum);
+    }
+
+    private static TvContentRating[] unflattenWithRegex(String ratings) {
+        String[] flattened = ratings.split("\\s*,\\s*");
+        TvContentRating[] contentRatings = new TvContentRating[flattened.length];
+        for (int i = 0; i < contentRatings.length; ++i) {
+            contentRatings[i] = TvContentRating.unflattenFromString(flattened[i]);
+        }
+        return contentRatings;
+    }
+
+    private static String flattenWithFramework(TvContentRating[] ratings) {
+        StringBuilder flattened = new StringBuilder(ratings[0].flattenToString());
+        for (int i = 1; i < ratings.length; ++i) {
+            flattened.append(',').append(ratings[i].flattenToString());
+        }
+        return flattened.toString();
+    }
+}
@@ -0,0 +1,58 @@
+package com.google.android.media.tv.companionlibrary.utils;
+
+import android.util.Log;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the time {@link XmlTvTimestampDecoder} and {@link SimpleDateFormat} take to decode a
+ * million timestamps. The results are logged, not asserted, as they depend on the device.
+ */
+public class XmlTvTimestampDecoderBenchmarkTest {
+    private static final String TAG = "XmlTvTimestampDecoderBenchmarkTest";
+    private static final int BENCHMARK_TIMESTAMP_COUNT = 1000000;
+
+    @Test
+    public void benchmarkDecodeAgainstSimpleDateFormat() throws ParseException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmss Z", Locale.US);
+        String[] timestamps = createTimestamps(BENCHMARK_TIMESTAMP_COUNT);
+        // Warm up both paths before measuring
+        long checksum = 0;
+        for (int i = 0; i < timestamps.length / 10; i++) {
+            checksum += dateFormat.parse(timestamps[i]).getTime();
+            checksum -= XmlTvTimestampDecoder.decode(timestamps[i]);
+        }
+        long start = System.nanoTime();
+        for (String timestamp : timestamps) {
+            checksum += dateFormat.parse(timestamp).getTime();
+        }
+        long simpleDateFormatNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (String timestamp : timestamps) {
+            checksum -= XmlTvTimestampDecoder.decode(timestamp);
+        }
+        long decoderNanos = System.nanoTime() - start;
+        Log.i(TAG, String.format(Locale.US,
+                "%d timestamps: SimpleDateFormat %d ms, XmlTvTimestampDecoder %d ms (checksum %d)",
+                timestamps.length, simpleDateFormatNanos / 1000000, decoderNanos / 1000000,
+                checksum));
+    }
+
+    private static String[] createTimestamps(int count) {
+        Random random = new Random(0);
+        String[] zones = {"+0000", "-0500", "+0100", "+0530", "-0800", "+0930"};
+        String[] timestamps = new String[count];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = String.format(Locale.US, "%04d%02d%02d%02d%02d%02d %s",
+                    2000 + random.nextInt(40), 1 + random.nextInt(12), 1 + random.nextInt(28),
+                    random.nextInt(24), random.nextInt(60), random.nextInt(60),
+                    zones[random.nextInt(zones.length)]);
+        }
+        return timestamps;
+    }
+}
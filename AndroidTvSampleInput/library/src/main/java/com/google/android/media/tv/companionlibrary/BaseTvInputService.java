@@ -258,6 +258,7 @@ public abstract class BaseTvInputService extends TvInputService {
                 mDbHandler.removeCallbacks(mGetCurrentProgramRunnable);
                 mGetCurrentProgramRunnable = new GetCurrentProgramRunnable(mChannelUri);
                 mDbHandler.post(mGetCurrentProgramRunnable);
+                mDbHandler.post(new RecordTuneRunnable(channelId));
             }
             return true;
         }
@@ -582,6 +583,22 @@ public abstract class BaseTvInputService extends TvInputService {
             return false;
         }
 
+        /**
+         * Records a tune in the {@link ViewingHistory}, which orders the channels of a sync.
+         */
+        private class RecordTuneRunnable implements Runnable {
+            private final long mChannelId;
+
+            RecordTuneRunnable(long channelId) {
+                mChannelId = channelId;
+            }
+
+            @Override
+            public void run() {
+                ViewingHistory.recordTune(mContext, mChannelId);
+            }
+        }
+
         private class GetCurrentProgramRunnable implements Runnable {
             private final Uri mChannelUri;
 
@@ -42,6 +42,7 @@ import android.widget.TextView;
 import com.google.android.media.tv.companionlibrary.model.Channel;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The ChannelSetupFragment class provides a simple extendable class to create a user interface
@@ -64,7 +65,8 @@ import java.util.ArrayList;
  * </p>
  * While channels are being scanned, the methods {@link #onChannelScanCompleted(int, int)} and
  * {@link #onScannedChannel(CharSequence, CharSequence)} will be called to provide status updates
- * during scans.
+ * during scans. Scanned channels are reported in batches, so
+ * {@link #onChannelScanCompleted(int, int)} may be called once for several channels.
  * This information can be provided to the user by calling
  * {@link #setDescription(CharSequence)}. Additionally, a progress bar will automatically
  * increment.
@@ -84,6 +86,7 @@ public abstract class ChannelSetupFragment extends Fragment {
     private ChannelAdapter mAdapter;
     private Button mCancelButton;
     private boolean mFinishedScan;
+    private boolean mFinishOnNowNext;
     private View mChannelScanLayout;
     private TextView mTitle;
     private ImageView mBadge;
@@ -112,16 +115,40 @@ public abstract class ChannelSetupFragment extends Fragment {
                             int channelCount = intent.
                                     getIntExtra(EpgSyncJobService.BUNDLE_KEY_CHANNEL_COUNT, 0);
                             updateScanProgress(++channelsScanned, channelCount);
-                            String channelDisplayName = intent.getStringExtra(
-                                    EpgSyncJobService.BUNDLE_KEY_SCANNED_CHANNEL_DISPLAY_NAME);
-                            String channelDisplayNumber = intent.getStringExtra(
-                                    EpgSyncJobService.BUNDLE_KEY_SCANNED_CHANNEL_DISPLAY_NUMBER);
+                            String[] channelDisplayNames = intent.getStringArrayExtra(
+                                    EpgSyncJobService.BUNDLE_KEY_SCANNED_CHANNEL_DISPLAY_NAMES);
+                            String[] channelDisplayNumbers = intent.getStringArrayExtra(
+                                    EpgSyncJobService.BUNDLE_KEY_SCANNED_CHANNEL_DISPLAY_NUMBERS);
+                            if (channelDisplayNames == null || channelDisplayNumbers == null) {
+                                // A single channel
+                                channelDisplayNames = new String[] {intent.getStringExtra(
+                                        EpgSyncJobService.BUNDLE_KEY_SCANNED_CHANNEL_DISPLAY_NAME)};
+                                channelDisplayNumbers = new String[] {intent.getStringExtra(
+                                        EpgSyncJobService
+                                                .BUNDLE_KEY_SCANNED_CHANNEL_DISPLAY_NUMBER)};
+                            }
                             if (DEBUG) {
-                                Log.d(TAG, "Sync status: Channel Scanned");
+                                Log.d(TAG, "Sync status: " + channelDisplayNames.length
+                                        + " Channels Scanned");
                                 Log.d(TAG, "Scanned " + channelsScanned + " out of " + channelCount);
                             }
-                            onScannedChannel(channelDisplayName, channelDisplayNumber);
-                            mAdapter.add(new Pair<>(channelDisplayName, channelDisplayNumber));
+                            List<Pair<String, String>> channels =
+                                    new ArrayList<>(channelDisplayNames.length);
+                            for (int i = 0; i < channelDisplayNames.length; i++) {
+                                onScannedChannel(channelDisplayNames[i], channelDisplayNumbers[i]);
+                                channels.add(new Pair<>(channelDisplayNames[i],
+                                        channelDisplayNumbers[i]));
+                            }
+                            // The whole batch is added with one update of the list.
+                            mAdapter.addAll(channels);
+                        } else if (syncStatus.equals(
+                                EpgSyncJobService.SYNC_NOW_NEXT_FINISHED)) {
+                            if (DEBUG) {
+                                Log.d(TAG, "Sync status: Current and next programs written");
+                            }
+                            if (mFinishOnNowNext) {
+                                finishScan(true);
+                            }
                         } else if (syncStatus.equals(EpgSyncJobService.SYNC_FINISHED)) {
                             if (DEBUG) {
                                 Log.d(TAG, "Sync status: Finished");
@@ -344,6 +371,18 @@ public abstract class ChannelSetupFragment extends Fragment {
         mChannelHolder.setVisibility(visible ? View.VISIBLE : View.GONE);
     }
 
+    /**
+     * Sets whether the scan finishes once the current and next programs of every channel have
+     * been written, instead of once the whole EPG window has been written. The rest of the window
+     * is still written by the sync job, so {@link #onScanFinished()} should not cancel it.
+     * @param finishOnNowNext If true, the scan finishes on
+     * {@link EpgSyncJobService#SYNC_NOW_NEXT_FINISHED}. Otherwise it finishes on
+     * {@link EpgSyncJobService#SYNC_FINISHED}.
+     */
+    public void setFinishOnNowNext(boolean finishOnNowNext) {
+        mFinishOnNowNext = finishOnNowNext;
+    }
+
     /**
      * This method will be called when a channel has been completely scanned. It can be overriden
      * to display custom information about this channel to the user.
@@ -417,8 +456,8 @@ public abstract class ChannelSetupFragment extends Fragment {
             return convertView;
         }
 
-        public void add(Pair<String, String> channelData) {
-            mChannels.add(channelData);
+        public void addAll(List<Pair<String, String>> channelData) {
+            mChannels.addAll(channelData);
             notifyDataSetChanged();
         }
     }
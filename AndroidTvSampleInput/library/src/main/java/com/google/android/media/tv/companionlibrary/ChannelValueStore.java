@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.util.Arrays;
+
+/**
+ * Remembers a few {@code long} values for each channel of an input, such as how far its programs
+ * have been written, across syncs.
+ * <p>
+ * The values of all channels are saved as one preference per input, which is only written if a
+ * value has changed since it was loaded, so a sync does not write one preference per channel.
+ * <p>
+ * The store is thread safe, as channels are written by the threads of an {@link EpgSyncPipeline}.
+ */
+final class ChannelValueStore {
+    private static final String TAG = "ChannelValueStore";
+    private static final char CHANNEL_SEPARATOR = ';';
+    private static final char VALUE_SEPARATOR = ',';
+
+    private final SharedPreferences mPreferences;
+    private final String mKey;
+    private final int mValueCount;
+    /** The values of each channel, keyed by its row id. */
+    private final LongSparseArray<long[]> mValues = new LongSparseArray<>();
+    private boolean mChanged;
+
+    private ChannelValueStore(SharedPreferences preferences, String key, int valueCount) {
+        mPreferences = preferences;
+        mKey = key;
+        mValueCount = valueCount;
+    }
+
+    /**
+     * Loads the values of the channels of an input.
+     *
+     * @param preferences The preferences which hold the values.
+     * @param key The preference of the input.
+     * @param valueCount The number of values of each channel.
+     */
+    static ChannelValueStore load(SharedPreferences preferences, String key, int valueCount) {
+        ChannelValueStore store = new ChannelValueStore(preferences, key, valueCount);
+        String saved = preferences.getString(key, null);
+        if (saved == null || saved.isEmpty()) {
+            return store;
+        }
+        for (String channel : saved.split(String.valueOf(CHANNEL_SEPARATOR))) {
+            String[] fields = channel.split(String.valueOf(VALUE_SEPARATOR));
+            if (fields.length != valueCount + 1) {
+                Log.w(TAG, "Ignoring values " + channel + " of " + key);
+                continue;
+            }
+            try {
+                long[] values = new long[valueCount];
+                for (int i = 0; i < valueCount; i++) {
+                    values[i] = Long.parseLong(fields[i + 1]);
+                }
+                store.mValues.put(Long.parseLong(fields[0]), values);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring values " + channel + " of " + key);
+            }
+        }
+        return store;
+    }
+
+    /**
+     * @return The values of the channel, or {@code null} if there are none. The array must not
+     * be modified.
+     */
+    synchronized long[] get(long channelId) {
+        return mValues.get(channelId);
+    }
+
+    /**
+     * Sets the values of the channel.
+     */
+    synchronized void put(long channelId, long... values) {
+        if (values.length != mValueCount) {
+            throw new IllegalArgumentException("Expected " + mValueCount + " values");
+        }
+        if (!Arrays.equals(mValues.get(channelId), values)) {
+            mValues.put(channelId, values.clone());
+            mChanged = true;
+        }
+    }
+
+    /**
+     * Forgets the values of the channel.
+     */
+    synchronized void remove(long channelId) {
+        int index = mValues.indexOfKey(channelId);
+        if (index >= 0) {
+            mValues.removeAt(index);
+            mChanged = true;
+        }
+    }
+
+    /**
+     * Keeps only the given channels, and saves the values if they have changed.
+     *
+     * @param channels The channels of the input, keyed by their row id.
+     */
+    synchronized void save(LongSparseArray<?> channels) {
+        for (int i = mValues.size() - 1; i >= 0; --i) {
+            if (channels.get(mValues.keyAt(i)) == null) {
+                mValues.removeAt(i);
+                mChanged = true;
+            }
+        }
+        if (!mChanged) {
+            return;
+        }
+        SharedPreferences.Editor editor = mPreferences.edit();
+        if (mValues.size() == 0) {
+            editor.remove(mKey);
+        } else {
+            StringBuilder saved = new StringBuilder();
+            for (int i = 0; i < mValues.size(); ++i) {
+                if (i > 0) {
+                    saved.append(CHANNEL_SEPARATOR);
+                }
+                saved.append(mValues.keyAt(i));
+                for (long value : mValues.valueAt(i)) {
+                    saved.append(VALUE_SEPARATOR).append(value);
+                }
+            }
+            editor.putString(mKey, saved.toString());
+        }
+        editor.apply();
+        mChanged = false;
+    }
+}
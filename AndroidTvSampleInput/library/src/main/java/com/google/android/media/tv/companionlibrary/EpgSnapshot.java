@@ -0,0 +1,273 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.media.tv.TvContract;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The programs of the channels of an input which are in the EPG at the start of a sync, and end
+ * within the sync window, as {@link ProgramRows}. They are read ahead of the sync, in chunks of
+ * channels taken in the order in which the channels are synced, with one query ordered by channel
+ * and start time for each chunk. This replaces one query per channel which also returns the past
+ * programs, without holding the programs of every channel at once.
+ * <p>
+ * Each query is read in one pass, and covers channels which have not been written by the sync
+ * yet. The cursor of a provider refills its window by running the query again, so it could skip
+ * or repeat rows once the programs of a channel in the query have been written. A channel is read
+ * at the latest when the sync first asks for its programs, which it does before writing them.
+ * A channel which has no rows in the result of its chunk has no programs in the window.
+ * <p>
+ * A chunk is read by the first thread which asks for one of its channels, and the threads which
+ * ask for the other channels of the chunk wait for that query. The snapshot itself is not locked
+ * during a query, so the channels of chunks which have been read are served meanwhile.
+ * <p>
+ * The programs of a channel can be taken once. After that, the channel may have been written,
+ * so its programs have to be read from the EPG again.
+ * <p>
+ * An incremental sync only reads the programs which start before the end of the near-term window
+ * it reconciles. A channel whose programs are needed further than that is read separately. The
+ * last programs of each channel are read as well, so that the sync can check that the EPG still
+ * ends where it was last written before it inserts the programs after that.
+ */
+final class EpgSnapshot {
+    private static final String TAG = "EpgSnapshot";
+
+    /** The most channels whose programs are read with one query. */
+    private static final int CHUNK_SIZE = 16;
+
+    private static final String SELECTION = TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS
+            + " >= ?";
+    private static final String BOUNDED_SELECTION = SELECTION + " AND ("
+            + TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS + " < ? OR "
+            + TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS + " >= ?)";
+    private static final String SORT_ORDER = TvContract.Programs.COLUMN_CHANNEL_ID + ", "
+            + TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS;
+
+    /** The channel has not been read. */
+    private static final byte STATE_UNREAD = 0;
+    /** The programs of the channel are in mPrograms. */
+    private static final byte STATE_READ = 1;
+    /** The programs of the channel have been taken or released, or could not be read. */
+    private static final byte STATE_DONE = 2;
+
+    private final ContentResolver mResolver;
+    /** The channels to read, in the order in which they are synced. */
+    private final long[] mChannelIds;
+    /** The index of each channel in mChannelIds, keyed by its row id. */
+    private final LongSparseArray<Integer> mIndexes;
+    /** Whether each chunk has been read, guarded by the lock of the chunk. */
+    private final boolean[] mChunksRead;
+    /** Held while the chunk with the same index is read, so that it is read once. */
+    private final Object[] mChunkLocks;
+    private final byte[] mStates;
+    /** The programs of each channel which have been read and not taken yet. */
+    private final LongSparseArray<ProgramRows> mPrograms = new LongSparseArray<>();
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final long mWindowEndMs;
+
+    private EpgSnapshot(ContentResolver resolver, long[] channelIds, String selection,
+            String[] selectionArgs, long windowEndMs) {
+        mResolver = resolver;
+        mChannelIds = channelIds;
+        mIndexes = new LongSparseArray<>(channelIds.length);
+        for (int i = 0; i < channelIds.length; i++) {
+            mIndexes.put(channelIds[i], i);
+        }
+        int chunkCount = (channelIds.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        mChunksRead = new boolean[chunkCount];
+        mChunkLocks = new Object[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            mChunkLocks[i] = new Object();
+        }
+        mStates = new byte[channelIds.length];
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mWindowEndMs = windowEndMs;
+    }
+
+    /**
+     * Prepares the snapshot of the given channels, whose programs which end at or after the start
+     * of the window are read when they are first needed.
+     *
+     * @param channelIds The row ids of the channels to read, in the order in which they are
+     * synced. The programs of other channels of the app are skipped.
+     * @param windowStartMs The start of the sync window.
+     * @param windowEndMs The time before which the programs to read start, or
+     * {@link Long#MAX_VALUE} to read every program after the start of the window.
+     * @param tailStartMs The time at or after which the programs which end are read even if they
+     * start after the end of the window, or {@link Long#MAX_VALUE} to read none of them.
+     * @return The snapshot. The channels of a chunk whose query fails have to be read separately.
+     */
+    static EpgSnapshot read(ContentResolver resolver, long[] channelIds,
+            long windowStartMs, long windowEndMs, long tailStartMs) {
+        boolean bounded = windowEndMs != Long.MAX_VALUE;
+        String selection = bounded ? BOUNDED_SELECTION : SELECTION;
+        String[] selectionArgs = bounded
+                ? new String[] {String.valueOf(windowStartMs), String.valueOf(windowEndMs),
+                        String.valueOf(tailStartMs)}
+                : new String[] {String.valueOf(windowStartMs)};
+        return new EpgSnapshot(resolver, channelIds, selection, selectionArgs, windowEndMs);
+    }
+
+    /**
+     * Returns the programs of a channel, and releases them.
+     *
+     * @param channelId The row id of the channel.
+     * @param untilMs The time before which the programs which are needed start.
+     * @return The programs of the channel which end within the window, in chronological order,
+     * followed by the last programs which have been read after the window, or
+     * {@code null} if they are not known. This is the case once they have been taken, or if the
+     * programs until the given time have not been read.
+     */
+    ProgramRows take(long channelId, long untilMs) {
+        ProgramRows programs = get(channelId);
+        release(channelId);
+        return untilMs <= mWindowEndMs ? programs : null;
+    }
+
+    /**
+     * Returns the end time of the last program of a channel in the EPG, to check that the
+     * programs written by an earlier sync are still there before more are appended after them.
+     *
+     * @param channelId The row id of the channel.
+     * @return The end time of the last program of the channel which has been read, or
+     * {@link Long#MIN_VALUE} if the channel has no programs in the window, or they are not known.
+     * The last program is only read if it ends at or after the start of the tail.
+     */
+    long getLastEndTimeMs(long channelId) {
+        ProgramRows programs = get(channelId);
+        return programs == null || programs.size() == 0 ? Long.MIN_VALUE
+                : programs.getEndTimeUtcMillis(programs.size() - 1);
+    }
+
+    /**
+     * @param channelId The row id of the channel.
+     * @param untilMs The end of the time range to check.
+     * @return Whether the EPG had no program of the channel in the window until the given time.
+     * This is {@code false} if the programs of the channel are not known.
+     */
+    boolean isEmpty(long channelId, long untilMs) {
+        ProgramRows programs = get(channelId);
+        return programs != null && programs.size() == 0 && untilMs <= mWindowEndMs;
+    }
+
+    /**
+     * Releases the programs of a channel which are not needed.
+     */
+    synchronized void release(long channelId) {
+        Integer index = mIndexes.get(channelId);
+        if (index != null) {
+            mStates[index] = STATE_DONE;
+        }
+        mPrograms.remove(channelId);
+    }
+
+    /**
+     * @return The programs of a channel, which are read with the other channels of its chunk if
+     * they have not been read yet, or {@code null} if they are not known.
+     */
+    private ProgramRows get(long channelId) {
+        Integer index = mIndexes.get(channelId);
+        if (index == null) {
+            return null;
+        }
+        int chunk = index / CHUNK_SIZE;
+        synchronized (mChunkLocks[chunk]) {
+            if (!mChunksRead[chunk]) {
+                readChunk(chunk);
+                mChunksRead[chunk] = true;
+            }
+        }
+        synchronized (this) {
+            return mStates[index] == STATE_READ ? mPrograms.get(channelId) : null;
+        }
+    }
+
+    /**
+     * Reads the programs of the channels of a chunk which have not been released, without
+     * holding the lock of the snapshot during the query.
+     */
+    private void readChunk(int chunkIndex) {
+        int firstIndex = chunkIndex * CHUNK_SIZE;
+        int endIndex = Math.min(firstIndex + CHUNK_SIZE, mChannelIds.length);
+        List<String> args = new ArrayList<>(mSelectionArgs.length + CHUNK_SIZE);
+        args.addAll(Arrays.asList(mSelectionArgs));
+        StringBuilder selection = new StringBuilder("(").append(mSelection).append(") AND ")
+                .append(TvContract.Programs.COLUMN_CHANNEL_ID).append(" IN (");
+        LongSparseArray<ProgramRows> chunk = new LongSparseArray<>();
+        synchronized (this) {
+            for (int i = firstIndex; i < endIndex; i++) {
+                if (mStates[i] != STATE_UNREAD) {
+                    continue;
+                }
+                long channelId = mChannelIds[i];
+                selection.append(chunk.size() == 0 ? "?" : ",?");
+                args.add(String.valueOf(channelId));
+                chunk.put(channelId, new ProgramRows(channelId));
+            }
+        }
+        if (chunk.size() == 0) {
+            return;
+        }
+        selection.append(')');
+        boolean read = false;
+        try (Cursor cursor = mResolver.query(TvContract.Programs.CONTENT_URI,
+                ProgramRows.PROJECTION, selection.toString(),
+                args.toArray(new String[args.size()]), SORT_ORDER)) {
+            if (cursor == null) {
+                throw new IllegalStateException("No cursor");
+            }
+            long channelId = -1;
+            ProgramRows rows = null;
+            while (cursor.moveToNext()) {
+                long rowChannelId = ProgramRows.getChannelId(cursor);
+                if (rowChannelId != channelId) {
+                    channelId = rowChannelId;
+                    rows = chunk.get(channelId);
+                }
+                if (rows != null) {
+                    rows.add(cursor);
+                }
+            }
+            read = true;
+        } catch (Exception e) {
+            // These channels are read separately.
+            Log.w(TAG, "Unable to read the programs of the sync window", e);
+        }
+        synchronized (this) {
+            for (int i = 0; i < chunk.size(); i++) {
+                int index = mIndexes.get(chunk.keyAt(i));
+                // Channels released during the query stay released.
+                if (mStates[index] == STATE_UNREAD) {
+                    mStates[index] = read ? STATE_READ : STATE_DONE;
+                    if (read) {
+                        mPrograms.put(chunk.keyAt(i), chunk.valueAt(i));
+                    }
+                }
+            }
+        }
+    }
+}
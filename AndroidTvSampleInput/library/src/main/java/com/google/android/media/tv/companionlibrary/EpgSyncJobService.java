@@ -23,6 +23,7 @@ import android.app.job.JobService;
 import android.content.ComponentName;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.OperationApplicationException;
@@ -32,6 +33,8 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.PersistableBundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import androidx.annotation.VisibleForTesting;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.util.Log;
@@ -43,8 +46,14 @@ import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
 import com.google.android.media.tv.companionlibrary.model.Program;
 import com.google.android.media.tv.companionlibrary.utils.TvContractUtils;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Service to handle callbacks from JobScheduler. This service will be called by the system to
@@ -64,6 +73,20 @@ import java.util.List;
  * {@link #setUpPeriodicSync(Context, String, ComponentName, long, long)}.
  * <p />
  * To sync manually, call {@link #requestImmediateSync(Context, String, long, ComponentName)}.
+ * <p />
+ * A sync which is stopped by JobScheduler, or which runs longer than a job may, records the
+ * channels it has written and continues from them in the next job.
+ * <p />
+ * Channels are synced in the order of how much they are watched, as recorded when a
+ * {@link BaseTvInputService} tunes to them. The programs of {@link #openProgramFeed()} are written
+ * while the feed is being parsed, in the same order, as far as a bounded number of programs read
+ * ahead of their turn allows.
+ * <p />
+ * Channels which have no programs in the EPG, such as after setup, first get their current and
+ * next programs, for every channel, before the rest of the window is written. The
+ * {@link #SYNC_NOW_NEXT_FINISHED} status is sent once these programs have been written. The
+ * programs of the channels of {@link #openProgramFeed()} are taken from a first pass over the
+ * feed, which only reads the programs of these few hours.
  */
 public abstract class EpgSyncJobService extends JobService {
     private static final String TAG = "EpgSyncJobService";
@@ -90,9 +113,28 @@ public abstract class EpgSyncJobService extends JobService {
     public static final String BUNDLE_KEY_SCANNED_CHANNEL_DISPLAY_NUMBER =
             EpgSyncJobService.class.getPackage().getName() +
                     ".bundle_key_scanned_channel_display_number";
+    /**
+     * The key representing the display names of the channels scanned since the last
+     * {@link #SYNC_SCANNED} broadcast, as a {@code String[]}. Scanned channels are reported in
+     * batches, at most a few times per second.
+     */
+    public static final String BUNDLE_KEY_SCANNED_CHANNEL_DISPLAY_NAMES =
+            EpgSyncJobService.class.getPackage().getName() +
+                    ".bundle_key_scanned_channel_display_names";
+    /**
+     * The key representing the display numbers of the channels scanned since the last
+     * {@link #SYNC_SCANNED} broadcast, as a {@code String[]} in the same order as
+     * {@link #BUNDLE_KEY_SCANNED_CHANNEL_DISPLAY_NAMES}.
+     */
+    public static final String BUNDLE_KEY_SCANNED_CHANNEL_DISPLAY_NUMBERS =
+            EpgSyncJobService.class.getPackage().getName() +
+                    ".bundle_key_scanned_channel_display_numbers";
     /** The key representing the error that occurred during an EPG sync */
     public static final String BUNDLE_KEY_ERROR_REASON =
             EpgSyncJobService.class.getPackage().getName() + ".bundle_key_error_reason";
+    /** The key representing the {@link SyncStats} of a sync, sent with {@link #SYNC_FINISHED}. */
+    public static final String BUNDLE_KEY_SYNC_STATS =
+            EpgSyncJobService.class.getPackage().getName() + ".bundle_key_sync_stats";
 
     /** The name for the {@link android.content.SharedPreferences} file used for storing syncing
      * metadata. */
@@ -101,9 +143,13 @@ public abstract class EpgSyncJobService extends JobService {
 
     /** The status of the job service when syncing has begun. */
     public static final String SYNC_STARTED = "sync_started";
-    /** The status of the job service when a channel has been scanned and the EPG for that channel
-     * has been populated. */
+    /** The status of the job service when channels have been scanned and the EPG for them has
+     * been populated. The name and number extras hold the last of these channels. */
     public static final String SYNC_SCANNED = "sync_scanned";
+    /** The status of the job service when the current and next programs of every channel which
+     * had no programs in the EPG have been written. The rest of the window is written after it,
+     * until {@link #SYNC_FINISHED}. */
+    public static final String SYNC_NOW_NEXT_FINISHED = "sync_now_next_finished";
     /** The status of the job service when syncing has completed. */
     public static final String SYNC_FINISHED = "sync_finished";
     /** The status of the job when a problem occurs during syncing. A {@link #SYNC_FINISHED}
@@ -125,16 +171,42 @@ public abstract class EpgSyncJobService extends JobService {
     /** Indicates an error occurred when updating programs in the database */
     public static final int ERROR_DATABASE_INSERT = 5;
 
+    /**
+     * The largest change of the start time of a program which may be updated in place by a sync.
+     * Only programs within this shift are compared with
+     * {@link #shouldUpdateProgramMetadata(Program, Program)}.
+     */
+    public static final long MAX_SCHEDULE_SHIFT_MILLIS = 1000 * 60 * 60 * 6; // 6 hours
+
     /** The default period between full EPG syncs, one day. */
     private static final long DEFAULT_SYNC_PERIOD_MILLIS = 1000 * 60 * 60 * 12; // 12 hour
     private static final long DEFAULT_IMMEDIATE_EPG_DURATION_MILLIS = 1000 * 60 * 60; // 1 Hour
     private static final long DEFAULT_PERIODIC_EPG_DURATION_MILLIS = 1000 * 60 * 60 * 48; // 48 Hour
+    private static final long DEFAULT_NEAR_TERM_DURATION_MILLIS = 1000 * 60 * 60 * 6; // 6 hours
 
     private static final int PERIODIC_SYNC_JOB_ID = 0;
     private static final int REQUEST_SYNC_JOB_ID = 1;
-    private static final int BATCH_OPERATION_COUNT = 100;
+    private static final int CONTINUE_SYNC_JOB_ID = 2;
+    /** Threads which compare the programs of channels while others are written. */
+    private static final int SYNC_THREAD_COUNT =
+            Math.max(2, Runtime.getRuntime().availableProcessors());
     private static final long OVERRIDE_DEADLINE_MILLIS = 1000;  // 1 second
+    // JobScheduler stops a job after 10 minutes. The sync yields before, and continues in a new
+    // job from its checkpoint.
+    private static final long SYNC_SLICE_MILLIS = 1000 * 60 * 8; // 8 minutes
+    /**
+     * The most programs of an XMLTV feed held while the channels before them in the sync order
+     * are read.
+     */
+    private static final int MAX_BUFFERED_FEED_PROGRAMS = 5000;
+    /** The window fetched to find the current and next programs of a channel. */
+    private static final long NOW_NEXT_DURATION_MILLIS = 1000 * 60 * 60 * 3; // 3 hours
+    private static final int NOW_NEXT_PROGRAM_COUNT = 2;
     private static final String BUNDLE_KEY_SYNC_PERIOD = "bundle_key_sync_period";
+    private static final String PREFERENCE_SYNC_STATS = PREFERENCE_EPG_SYNC + ".sync_stats";
+    private static final String BUNDLE_KEY_FULL_RECONCILE_PERIOD =
+            "bundle_key_full_reconcile_period";
+    private static final String BUNDLE_KEY_NEAR_TERM_DURATION = "bundle_key_near_term_duration";
 
     private final SparseArray<EpgSyncTask> mTaskArray = new SparseArray<>();
     private static final Object mContextLock = new Object();
@@ -149,6 +221,11 @@ public abstract class EpgSyncJobService extends JobService {
 
     /**
      * Returns the programs that will appear for each channel.
+     * <p />
+     * This is called on a background thread, for one channel at a time unless
+     * {@link #getProgramFetchParallelism()} allows more. For a channel which has no programs in the
+     * EPG, and is not in {@link #openProgramFeed()}, it is first called with a window of a few
+     * hours, to write the current and next programs.
      *
      * @param channelUri The Uri corresponding to the channel.
      * @param channel The channel your programs will appear on.
@@ -161,6 +238,48 @@ public abstract class EpgSyncJobService extends JobService {
     public abstract List<Program> getProgramsForChannel(Uri channelUri, Channel channel,
             long startMs, long endMs);
 
+    /**
+     * Opens an XMLTV feed whose programs are written to the EPG while the feed is being parsed,
+     * one channel at a time, instead of being returned by
+     * {@link #getProgramsForChannel(Uri, Channel, long, long)}. This keeps large feeds from being
+     * held in memory during a sync.
+     * <p />
+     * Programs are matched to the channels returned by {@link #getChannels()} through
+     * {@link Channel#getOriginalNetworkId()}, and are expected to be grouped by channel in the
+     * feed. {@link #getProgramsForChannel(Uri, Channel, long, long)} is still called for channels
+     * which have no programs in the feed.
+     * <p />
+     * The channels of the feed are written in the order of how much they are watched, together
+     * with the other channels, as far as a bounded number of programs can be held until the turn
+     * of their channel comes. Channels are known to be in the feed from its {@code <channel>}
+     * elements; the other channels are fetched while the feed is parsed. Putting the most popular
+     * channels first in the feed keeps programs from waiting for their turn.
+     * <p />
+     * If some channels have no programs in the EPG, such as after setup, the feed is opened twice
+     * in a sync: first to write their current and next programs, then for the whole window.
+     *
+     * @return The XMLTV feed, or {@code null} to fetch the programs of every channel through
+     * {@link #getProgramsForChannel(Uri, Channel, long, long)}. The stream is closed by the sync.
+     */
+    public InputStream openProgramFeed() throws IOException {
+        return null;
+    }
+
+    /**
+     * Returns for how many channels {@link #getProgramsForChannel(Uri, Channel, long, long)} may
+     * be called at the same time.
+     * <p />
+     * By default, it is called for one channel at a time, as it was before the sync compared and
+     * wrote channels in the background, so an implementation does not need to be thread safe.
+     * The programs which have been fetched are still compared and written while the next channel
+     * is fetched. Return a larger number to fetch the programs of several channels concurrently,
+     * such as from a network service, if the method is thread safe.
+     *
+     * @return The number of channels whose programs may be fetched concurrently, at least 1.
+     */
+    public int getProgramFetchParallelism() {
+        return 1;
+    }
 
     @Override
     public void onCreate() {
@@ -194,6 +313,10 @@ public abstract class EpgSyncJobService extends JobService {
         return true;
     }
 
+    /**
+     * Cancels the sync. The job is rescheduled, and resumes from the channels which have been
+     * written.
+     */
     @Override
     public boolean onStopJob(JobParameters params) {
         synchronized (mTaskArray) {
@@ -204,7 +327,7 @@ public abstract class EpgSyncJobService extends JobService {
                 mTaskArray.delete(params.getJobId());
             }
         }
-        return false;
+        return true;
     }
 
     /**
@@ -212,13 +335,25 @@ public abstract class EpgSyncJobService extends JobService {
      * {@code newProgram} program but should update metadata. This updates the database instead
      * of deleting and inserting a new program to keep the user's intent, eg. recording this
      * program.
+     * <p />
+     * The sync only asks about programs whose start times are at most
+     * {@link #MAX_SCHEDULE_SHIFT_MILLIS} apart, and pairs the programs of a channel in
+     * chronological order with as few deletes and inserts as possible. An implementation which
+     * compares program IDs instead of times also keeps programs which have been pushed back by a
+     * late running event further than their length.
+     * <p />
+     * If this is not overridden, the sync does not call it, and updates programs with the same
+     * title within {@link #MAX_SCHEDULE_SHIFT_MILLIS}, even if they no longer overlap.
+     * <p />
+     * This is called on background threads, but never concurrently with itself, while the
+     * programs of other channels are being fetched.
      */
     public boolean shouldUpdateProgramMetadata(Program oldProgram, Program newProgram) {
         // NOTE: Here, we update the old program if it has the same title and overlaps with the
         // new program. The test logic is just an example and you can modify this. E.g. check
         // whether the both programs have the same program ID if your EPG supports any ID for
         // the programs.
-        return oldProgram.getTitle().equals(newProgram.getTitle())
+        return TextUtils.equals(oldProgram.getTitle(), newProgram.getTitle())
                 && oldProgram.getStartTimeUtcMillis() <= newProgram.getEndTimeUtcMillis()
                 && newProgram.getStartTimeUtcMillis() <= oldProgram.getEndTimeUtcMillis();
     }
@@ -262,12 +397,45 @@ public abstract class EpgSyncJobService extends JobService {
      */
     public static void setUpPeriodicSync(Context context, String inputId,
             ComponentName jobServiceComponent, long fullSyncPeriod, long syncDuration) {
+        // Every run reconciles the whole window.
+        setUpPeriodicSync(context, inputId, jobServiceComponent, fullSyncPeriod, syncDuration,
+                0, DEFAULT_NEAR_TERM_DURATION_MILLIS);
+    }
+
+    /**
+     * Initializes a job that will periodically update the app's channels and programs.
+     * <p />
+     * With a full reconcile period, most runs of the job are incremental: they only reconcile the
+     * programs of the near future with the EPG, and insert the programs after the last ones
+     * written for each channel. The programs in between are left as they are until they come
+     * near, or until the whole window is reconciled again, so changes to them in your programs
+     * can take up to the full reconcile period to reach the EPG.
+     *
+     * @param context Application's context.
+     * @param inputId Component name for the app's TvInputService. This can be received through an
+     * Intent extra parameter {@link TvInputInfo#EXTRA_INPUT_ID}.
+     * @param jobServiceComponent The {@link EpgSyncJobService} component name that will run.
+     * @param fullSyncPeriod The period between when the job will run a full background sync in
+     * milliseconds.
+     * @param syncDuration The duration of EPG content to fetch in milliseconds. For a manual sync,
+     * this should be relatively short. For a background sync this should be long.
+     * @param fullReconcilePeriod The period between runs which reconcile the whole window with the
+     * EPG in milliseconds, such as a week. Use {@code 0} to reconcile the whole window on every
+     * run, as {@link #setUpPeriodicSync(Context, String, ComponentName, long, long)} does.
+     * @param nearTermDuration The duration of EPG content which incremental runs reconcile with
+     * the EPG in milliseconds.
+     */
+    public static void setUpPeriodicSync(Context context, String inputId,
+            ComponentName jobServiceComponent, long fullSyncPeriod, long syncDuration,
+            long fullReconcilePeriod, long nearTermDuration) {
         if (jobServiceComponent.getClass().isAssignableFrom(EpgSyncJobService.class)) {
             throw new IllegalArgumentException("This class does not extend EpgSyncJobService");
         }
         PersistableBundle persistableBundle = new PersistableBundle();
         persistableBundle.putString(EpgSyncJobService.BUNDLE_KEY_INPUT_ID, inputId);
         persistableBundle.putLong(EpgSyncJobService.BUNDLE_KEY_SYNC_PERIOD, syncDuration);
+        persistableBundle.putLong(BUNDLE_KEY_FULL_RECONCILE_PERIOD, fullReconcilePeriod);
+        persistableBundle.putLong(BUNDLE_KEY_NEAR_TERM_DURATION, nearTermDuration);
         JobInfo.Builder builder = new JobInfo.Builder(PERIODIC_SYNC_JOB_ID, jobServiceComponent);
         JobInfo jobInfo = builder
                 .setExtras(persistableBundle)
@@ -349,12 +517,47 @@ public abstract class EpgSyncJobService extends JobService {
         jobScheduler.cancelAll();
     }
 
+    /**
+     * Returns the stats of the last run of the sync of an input, including a run which has been
+     * stopped, or which continues in another job.
+     *
+     * @param context Application's context.
+     * @param inputId Component name for the app's TvInputService.
+     * @return The stats, or {@code null} if the input has not been synced yet.
+     */
+    public static SyncStats getLastSyncStats(Context context, String inputId) {
+        String value = context.getSharedPreferences(PREFERENCE_SYNC_STATS, Context.MODE_PRIVATE)
+                .getString(inputId, null);
+        return value != null ? SyncStats.unflatten(value) : null;
+    }
+
     /**
      * @hide
      */
     public class EpgSyncTask extends AsyncTask<Void, Void, Void> {
         private final JobParameters params;
         private String mInputId;
+        private final AtomicInteger mChannelsScanned = new AtomicInteger();
+        private EpgSyncPipeline mPipeline;
+        private EpgSnapshot mSnapshot;
+        private SyncCheckpoint mCheckpoint;
+        private SyncHorizonStore mHorizons;
+        /** The end of the window which is reconciled with the EPG. */
+        private long mReconcileEndMs;
+        private long mSliceEndTimeMs;
+        private volatile boolean mYielded;
+        private final SyncStats mStats = new SyncStats(System.currentTimeMillis());
+        private ScanProgressReporter mProgress;
+        /** Limits the concurrent calls to {@link #getProgramsForChannel}. */
+        private Semaphore mFetchPermits;
+        /**
+         * Serializes the calls to {@link #shouldUpdateProgramMetadata}, if it is overridden. It is
+         * not shared with the fetches, so comparisons never wait for the network.
+         */
+        private final Object mMetadataLock = new Object();
+        private boolean mOverridesMetadataCheck;
+        /** The time the parse of the program feed has waited for the pipeline. */
+        private long mFeedSubmitNanos;
 
         public EpgSyncTask(JobParameters params) {
             this.params = params;
@@ -362,8 +565,10 @@ public abstract class EpgSyncJobService extends JobService {
 
         @Override
         public Void doInBackground(Void... voids) {
+            mSliceEndTimeMs = SystemClock.elapsedRealtime() + SYNC_SLICE_MILLIS;
             PersistableBundle extras = params.getExtras();
             mInputId = extras.getString(BUNDLE_KEY_INPUT_ID);
+            mProgress = new ScanProgressReporter(mContext, mInputId);
             if (mInputId == null) {
                 broadcastError(ERROR_INPUT_ID_NULL);
                 return null;
@@ -374,10 +579,12 @@ public abstract class EpgSyncJobService extends JobService {
                 return null;
             }
 
+            long startNanos = System.nanoTime();
             List<Channel> tvChannels = getChannels();
+            mStats.addPhaseTime(SyncStats.PHASE_GET_CHANNELS, startNanos);
 
             // Insert/Update channels
-            TvContractUtils.updateChannelsWithTif(mContext, mInputId, tvChannels);
+            TvContractUtils.updateChannelsWithTif(mContext, mInputId, tvChannels, mStats);
 
             LongSparseArray<Channel> channelMap = TvContractUtils.buildChannelMap(
                     mContext.getContentResolver(), mInputId);
@@ -392,80 +599,339 @@ public abstract class EpgSyncJobService extends JobService {
             // Default to one hour sync
             long durationMs = extras.getLong(
                     BUNDLE_KEY_SYNC_PERIOD, DEFAULT_IMMEDIATE_EPG_DURATION_MILLIS);
-            long startMs = System.currentTimeMillis();
-            long endMs = startMs + durationMs;
+            // A sync which has been stopped is resumed in the same window.
+            mCheckpoint = SyncCheckpoint.load(mContext, mInputId, System.currentTimeMillis(),
+                    durationMs);
+            SyncStats earlierStats = mCheckpoint.getStats();
+            if (earlierStats != null) {
+                mStats.addEarlierJobs(earlierStats);
+            }
+            long startMs = mCheckpoint.getStartTimeMs();
+            long endMs = mCheckpoint.getEndTimeMs();
+            mHorizons = SyncHorizonStore.load(mContext, mInputId);
+            long fullReconcilePeriodMs = extras.getLong(BUNDLE_KEY_FULL_RECONCILE_PERIOD, 0);
+            boolean incremental = fullReconcilePeriodMs > 0
+                    && startMs - mHorizons.getLastFullSyncTimeMs() < fullReconcilePeriodMs;
+            mReconcileEndMs = incremental ? startMs + extras.getLong(
+                    BUNDLE_KEY_NEAR_TERM_DURATION, DEFAULT_NEAR_TERM_DURATION_MILLIS) : endMs;
+            if (DEBUG) {
+                Log.d(TAG, (incremental ? "Incremental" : "Full") + " sync until " + endMs);
+            }
+            OperationBatcher batcher = new OperationBatcher(new OperationBatcher.BatchWriter() {
+                @Override
+                public void applyBatch(ArrayList<ContentProviderOperation> operations)
+                        throws RemoteException, OperationApplicationException {
+                    long startNanos = System.nanoTime();
+                    try {
+                        mContext.getContentResolver().applyBatch(TvContract.AUTHORITY, operations);
+                    } finally {
+                        mStats.addPhaseTime(SyncStats.PHASE_APPLY_BATCH, startNanos);
+                    }
+                }
+            }, OperationBatcher.DEFAULT_MAX_TRANSACTION_SIZE,
+                    OperationBatcher.DEFAULT_MAX_TRANSACTION_OPERATIONS);
+            mPipeline = new EpgSyncPipeline(batcher, SYNC_THREAD_COUNT);
+            mFetchPermits = new Semaphore(Math.max(1, getProgramFetchParallelism()));
+            mOverridesMetadataCheck = overridesMetadataCheck();
+            LongSparseArray<Channel> programChannels = new LongSparseArray<>();
+            long tailStartMs = Long.MAX_VALUE;
             for (int i = 0; i < channelMap.size(); ++i) {
-                if (channelMap.valueAt(i).getInternalProviderData() != null &&
-                        channelMap.valueAt(i).getInternalProviderData().getExternalIdValue() != null) {
-                    // Skip program insertion for channels with external metadata
-                } else {
-                    Uri channelUri = TvContract.buildChannelUri(channelMap.keyAt(i));
+                if (mCheckpoint.isCompleted(channelMap.keyAt(i))) {
+                    mChannelsScanned.incrementAndGet();
+                } else if (!hasExternalMetadata(channelMap.valueAt(i))
+                        && (!incremental || isIncremental(channelMap.keyAt(i)))) {
+                    // Channels which are fully reconciled are read separately.
+                    programChannels.put(channelMap.keyAt(i), channelMap.valueAt(i));
+                    if (incremental) {
+                        tailStartMs = Math.min(tailStartMs,
+                                mHorizons.getHorizonMs(channelMap.keyAt(i)));
+                    }
+                }
+            }
+            if (DEBUG && mCheckpoint.isResumed()) {
+                Log.d(TAG, "Resuming sync after " + mChannelsScanned.get() + " channels");
+            }
+            // The channels the user watches are synced first.
+            int[] syncOrder = ViewingHistory.read(ViewingHistory.getFile(mContext))
+                    .getSyncOrder(channelMap, System.currentTimeMillis());
+            long[] programChannelIds = new long[programChannels.size()];
+            int programChannelCount = 0;
+            for (int i : syncOrder) {
+                if (programChannels.get(channelMap.keyAt(i)) != null) {
+                    programChannelIds[programChannelCount++] = channelMap.keyAt(i);
+                }
+            }
+            // The programs of the channels are read a few channels at a time, in the sync order,
+            // before they are written. An incremental sync only needs the programs of the near
+            // future, and the last one which starts there, which is at most as long as a
+            // schedule shift. The programs which end at the horizons are read as well, to check
+            // that they are still there.
+            mSnapshot = EpgSnapshot.read(mContext.getContentResolver(), programChannelIds,
+                    startMs,
+                    incremental ? mReconcileEndMs + MAX_SCHEDULE_SHIFT_MILLIS : Long.MAX_VALUE,
+                    tailStartMs);
+            FeedFingerprintStore fingerprints = FeedFingerprintStore.load(mContext, mInputId);
+            try {
+                syncNowNext(channelMap, syncOrder, startMs, endMs);
+                if (isCancelled()) {
+                    broadcastError(ERROR_EPG_SYNC_CANCELED);
+                    return null;
+                }
+                Intent intent = new Intent(ACTION_SYNC_STATUS_CHANGED);
+                intent.putExtra(BUNDLE_KEY_INPUT_ID, mInputId);
+                intent.putExtra(SYNC_STATUS, SYNC_NOW_NEXT_FINISHED);
+                LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
+
+                // Then the rest of the window is written, channel by channel. The channels which
+                // are left are the ones of a feed which could not be read to its end.
+                LongSparseArray<Channel> syncedChannels =
+                        syncProgramFeed(channelMap, syncOrder, fingerprints, startMs, endMs);
+                for (int i : syncOrder) {
                     if (isCancelled()) {
                         broadcastError(ERROR_EPG_SYNC_CANCELED);
                         return null;
                     }
-                    List<Program> programs = getProgramsForChannel(channelUri, channelMap.valueAt(i),
-                            startMs, endMs);
-                    if (DEBUG) {
-                        Log.d(TAG, programs.toString());
+                    if (syncedChannels.get(channelMap.keyAt(i)) != null
+                            || mCheckpoint.isCompleted(channelMap.keyAt(i))) {
+                        // Programs are written while the feed is parsed, or have been written
+                        // before the sync was stopped.
+                        continue;
                     }
-                    for (int index = 0; index < programs.size(); index++) {
-                        if (programs.get(index).getChannelId() == -1) {
-                            // Automatically set the channel id if not set
-                            programs.set(index,
-                                    new Program.Builder(programs.get(index))
-                                            .setChannelId(channelMap.valueAt(i).getId())
-                                            .build());
-                        }
+                    if (shouldYield()) {
+                        break;
                     }
-
-                    // Double check if the job is cancelled, so that this task can be finished faster
-                    // after cancel() is called.
-                    if (isCancelled()) {
-                        broadcastError(ERROR_EPG_SYNC_CANCELED);
-                        return null;
+                    Channel channel = channelMap.valueAt(i);
+                    if (hasExternalMetadata(channel)) {
+                        // Skip program insertion for channels with external metadata
+                        broadcastChannelScanned(channel, channelMap.size());
+                    } else {
+                        mPipeline.submit(channel.getId(), new ChannelProgramsTask(channel,
+                                channelMap.size(), startMs, endMs));
                     }
-                    updatePrograms(channelUri,
-                            getPrograms(channelMap.valueAt(i), programs, startMs, endMs));
                 }
-
-                Intent intent = new Intent(ACTION_SYNC_STATUS_CHANGED);
-                intent.putExtra(EpgSyncJobService.BUNDLE_KEY_INPUT_ID, mInputId);
-                intent.putExtra(EpgSyncJobService.BUNDLE_KEY_CHANNELS_SCANNED, i);
-                intent.putExtra(EpgSyncJobService.BUNDLE_KEY_CHANNEL_COUNT, channelMap.size());
-                intent.putExtra(EpgSyncJobService.BUNDLE_KEY_SCANNED_CHANNEL_DISPLAY_NAME,
-                        channelMap.valueAt(i).getDisplayName());
-                intent.putExtra(EpgSyncJobService.BUNDLE_KEY_SCANNED_CHANNEL_DISPLAY_NUMBER,
-                        channelMap.valueAt(i).getDisplayNumber());
-                intent.putExtra(EpgSyncJobService.SYNC_STATUS, EpgSyncJobService.SYNC_SCANNED);
-                LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
+                mPipeline.await();
+                if (!mYielded) {
+                    mCheckpoint.clear();
+                    if (!incremental) {
+                        mHorizons.setLastFullSyncTimeMs(startMs);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // The task has been cancelled while it was waiting for the pipeline.
+                broadcastError(ERROR_EPG_SYNC_CANCELED);
+                return null;
+            } finally {
+                mPipeline.shutdown();
+                // Every channel written so far has to be recorded, even if the sync did not
+                // complete, to match the EPG.
+                fingerprints.save(channelMap);
+                mHorizons.save(channelMap);
+                mStats.addCount(SyncStats.COUNTER_ROWS_INSERTED, batcher.getInsertCount());
+                mStats.addCount(SyncStats.COUNTER_ROWS_UPDATED, batcher.getUpdateCount());
+                mStats.addCount(SyncStats.COUNTER_ROWS_DELETED, batcher.getDeleteCount());
+                mStats.addCount(SyncStats.COUNTER_TRANSACTIONS, batcher.getTransactionCount());
+                mStats.addCount(SyncStats.COUNTER_TRANSACTION_BYTES, batcher.getByteCount());
+                // A sync which continues in another job adds up its stats over the jobs.
+                mCheckpoint.setStats(mStats);
+                mCheckpoint.save();
+                if (DEBUG) {
+                    Log.d(TAG, "Applied " + batcher.getOperationCount() + " operations in "
+                            + batcher.getTransactionCount() + " transactions ("
+                            + batcher.getOperationsPerTransaction() + " per transaction, "
+                            + batcher.getSplitCount() + " split)");
+                }
+            }
+            if (isCancelled()) {
+                broadcastError(ERROR_EPG_SYNC_CANCELED);
             }
             return null;
         }
 
+        /**
+         * Writes the current and next programs of the channels which have no programs in the EPG,
+         * such as after setup or after the data of the EPG has been cleared, and waits until they
+         * have been written. Only the channels which have not been written by an earlier sync, or
+         * whose programs could not be written, are checked. These few programs of every channel fit in a handful of
+         * transactions, so the guide is filled long before the whole window has been synced.
+         * <p>
+         * The programs of the channels of the program feed are read from the feed, over the window
+         * of the current and next programs, instead of fetching each of them.
+         *
+         * @param channelMap The channels of this input, keyed by their row id.
+         * @param syncOrder The indexes of the channels in the order to sync them.
+         * @param startMs The start time of the range to sync.
+         * @param endMs The end time of the range to sync.
+         */
+        private void syncNowNext(LongSparseArray<Channel> channelMap, int[] syncOrder,
+                long startMs, long endMs) throws InterruptedException {
+            long nowNextEndMs = Math.min(endMs, startMs + NOW_NEXT_DURATION_MILLIS);
+            // Channels which have programs in the EPG, or which are not in the snapshot, such as
+            // the ones with external metadata, are left to the full sync. Only the channels which
+            // have no recorded horizon are checked, so the snapshot does not read the programs of
+            // every channel before they are needed.
+            long startNanos = System.nanoTime();
+            LongSparseArray<Channel> emptyChannels = new LongSparseArray<>();
+            for (int i : syncOrder) {
+                long channelId = channelMap.keyAt(i);
+                if (mHorizons.getHorizonMs(channelId) == Long.MIN_VALUE
+                        && mSnapshot.isEmpty(channelId, startMs)) {
+                    emptyChannels.put(channelId, channelMap.valueAt(i));
+                }
+            }
+            mStats.addPhaseTime(SyncStats.PHASE_OLD_PROGRAM_READ, startNanos);
+            if (emptyChannels.size() == 0) {
+                return;
+            }
+            // The programs of the channels of the program feed are taken from a pass over the
+            // feed which only reads the programs of the near future.
+            startNanos = System.nanoTime();
+            long submitNanos = mFeedSubmitNanos;
+            NowNextFeedHandler handler =
+                    new NowNextFeedHandler(emptyChannels, startMs, nowNextEndMs);
+            try (InputStream feed = openProgramFeed()) {
+                if (feed != null) {
+                    XmlTvParser.parse(feed, handler, new XmlTvParser.ParseOptions.Builder()
+                            .setTimeWindow(startMs, nowNextEndMs)
+                            .setLenient(true)
+                            .build());
+                }
+            } catch (IOException | XmlTvParser.XmlTvParseException e) {
+                Log.e(TAG, "Failed to read the program feed", e);
+            }
+            // The time the parse waited for the pipeline is counted by the phases of the channels.
+            mStats.addPhaseTime(SyncStats.PHASE_FEED_FETCH,
+                    startNanos + mFeedSubmitNanos - submitNanos);
+            for (int i : syncOrder) {
+                if (isCancelled()) {
+                    return;
+                }
+                Channel channel = channelMap.valueAt(i);
+                if (emptyChannels.get(channel.getId()) != null && !handler.isInFeed(channel)) {
+                    mPipeline.submit(channel.getId(),
+                            new NowNextProgramsTask(channel, null, false, startMs, nowNextEndMs));
+                }
+            }
+            mPipeline.await();
+        }
+
+        /**
+         * Streams the programs of {@link #openProgramFeed()} into the EPG pipeline, one channel at
+         * a time, in the sync order. The channels which are not in the feed are passed to the
+         * pipeline on their turn, while the feed is parsed.
+         *
+         * @param channelMap The channels of this input, keyed by their row id.
+         * @param syncOrder The indexes of the channels in the order to sync them.
+         * @param fingerprints The fingerprints of the programs of each channel in the last feed.
+         * @param startMs The start time of the range to sync.
+         * @param endMs The end time of the range to sync.
+         * @return The channels which have been passed to the pipeline, or skipped, keyed by their
+         * row id. None of them are if there is no feed.
+         */
+        private LongSparseArray<Channel> syncProgramFeed(LongSparseArray<Channel> channelMap,
+                int[] syncOrder, FeedFingerprintStore fingerprints, long startMs, long endMs)
+                throws InterruptedException {
+            long startNanos = System.nanoTime();
+            long submitNanos = mFeedSubmitNanos;
+            FeedProgramHandler handler = new FeedProgramHandler(channelMap, syncOrder,
+                    fingerprints, startMs, endMs);
+            try (InputStream feed = openProgramFeed()) {
+                if (feed != null) {
+                    // A program which cannot be parsed is dropped, instead of failing the sync
+                    // of every program after it until the feed is fixed.
+                    XmlTvParser.parse(feed, handler, new XmlTvParser.ParseOptions.Builder()
+                            .setTimeWindow(startMs, endMs)
+                            .setLenient(true)
+                            .build());
+                }
+            } catch (IOException | XmlTvParser.XmlTvParseException e) {
+                Log.e(TAG, "Failed to read the program feed", e);
+            }
+            mStats.addPhaseTime(SyncStats.PHASE_FEED_FETCH,
+                    startNanos + mFeedSubmitNanos - submitNanos);
+            handler.finish();
+            return handler.getSyncedChannels();
+        }
+
+        /**
+         * Passes the task of a channel to the pipeline while the program feed is parsed. The time
+         * this waits for the pipeline to take it is not part of {@link SyncStats#PHASE_FEED_FETCH}.
+         */
+        private void submitFeedPrograms(long channelId, EpgSyncPipeline.Task task)
+                throws InterruptedException {
+            long startNanos = System.nanoTime();
+            try {
+                mPipeline.submit(channelId, task);
+            } finally {
+                mFeedSubmitNanos += System.nanoTime() - startNanos;
+            }
+        }
+
+        /**
+         * @return Whether the time of this job is running out, in which case no more channels are
+         * synced. The channels which have been written are recorded in the checkpoint, and the
+         * sync continues in a new job.
+         */
+        private boolean shouldYield() {
+            if (!mYielded && SystemClock.elapsedRealtime() >= mSliceEndTimeMs) {
+                Log.i(TAG, "Sync of " + mInputId + " continues in a new job");
+                mYielded = true;
+            }
+            return mYielded;
+        }
+
+        private void broadcastChannelScanned(Channel channel, int channelCount) {
+            mProgress.add(channel, mChannelsScanned.incrementAndGet(), channelCount);
+        }
+
         @Override
         public void onPostExecute(Void success) {
-            finishEpgSync(params);
+            finishEpgSync(params, mYielded);
         }
 
         @Override
         public void onCancelled(Void ignore) {
-            finishEpgSync(params);
+            finishEpgSync(params, false);
         }
 
-        private void finishEpgSync(JobParameters jobParams) {
+        private void finishEpgSync(JobParameters jobParams, boolean continues) {
             if (DEBUG) {
                 Log.d(TAG, "taskFinished(" + jobParams.getJobId() + ")");
             }
             mTaskArray.delete(jobParams.getJobId());
             jobFinished(jobParams, false);
+            if (continues) {
+                // The sync continues right away in a one-off job. Rescheduling this job would
+                // delay it with the backoff of a failed job.
+                scheduleJob(mContext, new JobInfo.Builder(CONTINUE_SYNC_JOB_ID,
+                        new ComponentName(mContext, EpgSyncJobService.this.getClass()))
+                        .setExtras(jobParams.getExtras())
+                        .setOverrideDeadline(OVERRIDE_DEADLINE_MILLIS)
+                        .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                        .build());
+            }
+            if (mProgress != null) {
+                mProgress.flush();
+            }
+            String inputId = jobParams.getExtras().getString(BUNDLE_KEY_INPUT_ID);
+            mStats.finish(System.currentTimeMillis());
+            if (DEBUG) {
+                Log.d(TAG, mStats.toString());
+            }
+            if (inputId != null) {
+                mContext.getSharedPreferences(PREFERENCE_SYNC_STATS, Context.MODE_PRIVATE).edit()
+                        .putString(inputId, mStats.flatten()).apply();
+            }
+            if (continues) {
+                // The sync is not finished yet.
+                return;
+            }
             if (DEBUG) {
                 Log.d(TAG, "Send out broadcast");
             }
             Intent intent = new Intent(ACTION_SYNC_STATUS_CHANGED);
-            intent.putExtra(
-                    BUNDLE_KEY_INPUT_ID, jobParams.getExtras().getString(BUNDLE_KEY_INPUT_ID));
+            intent.putExtra(BUNDLE_KEY_INPUT_ID, inputId);
             intent.putExtra(SYNC_STATUS, SYNC_FINISHED);
+            intent.putExtra(BUNDLE_KEY_SYNC_STATS, mStats);
             LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
         }
 
@@ -543,99 +1009,748 @@ public abstract class EpgSyncJobService extends JobService {
         }
 
         /**
-         * Updates the system database, TvProvider, with the given programs.
+         * Returns the programs of a channel of the program feed for the given time range. The
+         * programs of a channel which does not repeat are kept at their own times, as the parser
+         * has already dropped the programs outside of the range: looping them from the epoch
+         * would depend on the range.
+         *
+         * @param repeating Whether the channel is declared with {@code repeat-programs="true"}.
+         */
+        private List<Program> getFeedPrograms(Channel channel, boolean repeating,
+                List<Program> programs, long startTimeMs, long endTimeMs) {
+            if (repeating) {
+                return getPrograms(channel, programs, startTimeMs, endTimeMs);
+            }
+            List<Program> programsForGivenTime = new ArrayList<>(programs.size());
+            for (Program program : programs) {
+                if (program.getEndTimeUtcMillis() > startTimeMs
+                        && program.getStartTimeUtcMillis() < endTimeMs) {
+                    programsForGivenTime.add(new Program.Builder(program)
+                            .setChannelId(channel.getId())
+                            .build());
+                }
+            }
+            return programsForGivenTime;
+        }
+
+        /**
+         * @return Whether the channel can be synced incrementally: the programs after the
+         * near-term window have been written up to its end at least.
+         */
+        private boolean isIncremental(long channelId) {
+            return mHorizons.getHorizonMs(channelId) >= mReconcileEndMs;
+        }
+
+        /**
+         * Returns the operations which write the given programs of a channel to the EPG. In an
+         * incremental sync, only the programs which start in the near-term window are reconciled
+         * with the EPG, and the programs after the last one written for the channel are inserted.
+         * Otherwise, or if the EPG no longer ends with that program, such as after it was cleared
+         * or edited, all programs are reconciled.
+         *
+         * @return The operations to apply, or {@code null} if the programs cannot be written.
+         */
+        private OperationBatcher.Operations getSyncOperations(long channelId,
+                List<Program> newPrograms) {
+            int nearTermCount = 0;
+            while (nearTermCount < newPrograms.size() && newPrograms.get(nearTermCount)
+                    .getStartTimeUtcMillis() < mReconcileEndMs) {
+                nearTermCount++;
+            }
+            long horizonMs = mHorizons.getHorizonMs(channelId);
+            if (nearTermCount == newPrograms.size() || nearTermCount == 0
+                    || !isIncremental(channelId) || newPrograms.get(nearTermCount - 1)
+                            .getEndTimeUtcMillis() > horizonMs
+                    || mSnapshot.getLastEndTimeMs(channelId) != horizonMs) {
+                return getUpdateOperations(channelId, newPrograms);
+            }
+            OperationBatcher.Operations ops =
+                    getUpdateOperations(channelId, newPrograms.subList(0, nearTermCount));
+            if (ops == null) {
+                return null;
+            }
+            for (int i = nearTermCount; i < newPrograms.size(); i++) {
+                Program newProgram = newPrograms.get(i);
+                if (newProgram.getStartTimeUtcMillis() >= horizonMs) {
+                    ops.addInsert(TvContract.Programs.CONTENT_URI, newProgram.toContentValues());
+                }
+            }
+            return ops;
+        }
+
+        /**
+         * Records how far the programs of a channel have been written.
+         *
+         * @param writtenPrograms The programs which have been written, or {@code null} if they
+         * could not be written.
+         */
+        private void recordHorizon(long channelId, List<Program> writtenPrograms) {
+            if (writtenPrograms == null) {
+                mHorizons.remove(channelId);
+            } else if (!writtenPrograms.isEmpty()) {
+                mHorizons.extend(channelId, writtenPrograms.get(writtenPrograms.size() - 1)
+                        .getEndTimeUtcMillis());
+            }
+        }
+
+        /**
+         * Returns the operations which update the system database, TvProvider, with the given
+         * programs.
          *
          * <p>If there is any overlap between the given and existing programs, the existing ones
          * will be updated with the given ones if they have the same title or replaced.
          *
-         * @param channelUri The channel where the program info will be added.
+         * @param channelId The row id of the channel where the program info will be added.
          * @param newPrograms A list of {@link Program} instances which includes program
          *         information.
+         * @return The operations to apply, or {@code null} if the programs cannot be written.
          */
-        private void updatePrograms(Uri channelUri, List<Program> newPrograms) {
+        private OperationBatcher.Operations getUpdateOperations(long channelId,
+                List<Program> newPrograms) {
             final int fetchedProgramsCount = newPrograms.size();
             if (fetchedProgramsCount == 0) {
                 broadcastError(ERROR_NO_PROGRAMS);
-                return;
+                return null;
             }
-            List<Program> oldPrograms = TvContractUtils.getPrograms(mContext.getContentResolver(),
-                    channelUri);
+            long startNanos = System.nanoTime();
+            ProgramRows oldPrograms = mSnapshot.take(channelId,
+                    newPrograms.get(fetchedProgramsCount - 1).getEndTimeUtcMillis());
+            if (oldPrograms == null) {
+                // The channel has been written in this sync already.
+                oldPrograms = ProgramRows.query(mContext.getContentResolver(), channelId);
+            }
+            mStats.addPhaseTime(SyncStats.PHASE_OLD_PROGRAM_READ, startNanos);
+            startNanos = System.nanoTime();
             Program firstNewProgram = newPrograms.get(0);
             int oldProgramsIndex = 0;
-            int newProgramsIndex = 0;
             // Skip the past programs. They will be automatically removed by the system.
-            for (Program program : oldPrograms) {
-                if (program.getEndTimeUtcMillis() < System.currentTimeMillis() ||
-                        program.getEndTimeUtcMillis() < firstNewProgram.getStartTimeUtcMillis()) {
+            while (oldProgramsIndex < oldPrograms.size()) {
+                long endTimeMs = oldPrograms.getEndTimeUtcMillis(oldProgramsIndex);
+                if (endTimeMs < System.currentTimeMillis()
+                        || endTimeMs < firstNewProgram.getStartTimeUtcMillis()) {
                     oldProgramsIndex++;
                 } else {
                     break;
                 }
             }
-            // Compare the new programs with old programs one by one and update/delete the old one
-            // or insert new program if there is no matching program in the database.
-            ArrayList<ContentProviderOperation> ops = new ArrayList<>();
             if (isCancelled()) {
-                return;
+                return null;
             }
-            while (newProgramsIndex < fetchedProgramsCount) {
-                Program oldProgram = oldProgramsIndex < oldPrograms.size()
-                        ? oldPrograms.get(oldProgramsIndex) : null;
-                Program newProgram = newPrograms.get(newProgramsIndex);
-                boolean addNewProgram = false;
-                if (oldProgram != null) {
-                    if (oldProgram.equals(newProgram)) {
-                        // Exact match. No need to update. Move on to the next programs.
-                        oldProgramsIndex++;
-                        newProgramsIndex++;
-                    } else if (shouldUpdateProgramMetadata(oldProgram, newProgram)) {
-                        // Partial match. Update the old program with the new one.
-                        // NOTE: Use 'update' in this case instead of 'insert' and 'delete'. There
-                        // could be application specific settings which belong to the old program.
-                        ops.add(ContentProviderOperation.newUpdate(
-                                TvContract.buildProgramUri(oldProgram.getId()))
-                                .withValues(newProgram.toContentValues())
-                                .build());
-                        oldProgramsIndex++;
-                        newProgramsIndex++;
-                    } else if (oldProgram.getEndTimeUtcMillis()
-                            < newProgram.getEndTimeUtcMillis()) {
-                        // No match. Remove the old program first to see if the next program in
-                        // {@code oldPrograms} partially matches the new program.
-                        ops.add(ContentProviderOperation.newDelete(
-                                TvContract.buildProgramUri(oldProgram.getId()))
-                                .build());
-                        oldProgramsIndex++;
-                    } else {
-                        // No match. The new program does not match any of the old programs. Insert
-                        // it as a new program.
-                        addNewProgram = true;
-                        newProgramsIndex++;
+            final ProgramRows rows = oldPrograms;
+            final int firstOldIndex = oldProgramsIndex;
+            // Old programs which start after the new ones end are left as they are.
+            long lastNewEndTimeMs = newPrograms.get(fetchedProgramsCount - 1).getEndTimeUtcMillis();
+            int lastOldIndex = firstOldIndex;
+            while (lastOldIndex < rows.size()
+                    && rows.getStartTimeUtcMillis(lastOldIndex) < lastNewEndTimeMs) {
+                lastOldIndex++;
+            }
+            long[] oldStartTimes = new long[lastOldIndex - firstOldIndex];
+            for (int i = 0; i < oldStartTimes.length; i++) {
+                oldStartTimes[i] = rows.getStartTimeUtcMillis(firstOldIndex + i);
+            }
+            ContentValues[] newValues = new ContentValues[fetchedProgramsCount];
+            final long[] newFingerprints = new long[fetchedProgramsCount];
+            long[] newStartTimes = new long[fetchedProgramsCount];
+            Set<Long> fingerprints = new HashSet<>();
+            for (int i = 0; i < fetchedProgramsCount; i++) {
+                newValues[i] = newPrograms.get(i).toContentValues();
+                newFingerprints[i] = newPrograms.get(i).getFingerprint();
+                newStartTimes[i] = newPrograms.get(i).getStartTimeUtcMillis();
+                fingerprints.add(newFingerprints[i]);
+            }
+            // Old programs which match a new program exactly are not compared with
+            // shouldUpdateProgramMetadata(), which takes all columns of the program. Decode the
+            // other ones with one query.
+            final ContentResolver resolver = mContext.getContentResolver();
+            mStats.addPhaseTime(SyncStats.PHASE_DIFF, startNanos);
+            startNanos = System.nanoTime();
+            rows.decodeChanged(resolver, firstOldIndex, lastOldIndex, fingerprints);
+            mStats.addPhaseTime(SyncStats.PHASE_OLD_PROGRAM_READ, startNanos);
+            startNanos = System.nanoTime();
+            // Pair the old programs with the new ones. A paired old program is kept or updated,
+            // and the other programs are deleted or inserted.
+            // NOTE: Use 'update' instead of 'insert' and 'delete' where possible. There could be
+            // application specific settings which belong to the old program.
+            int[] matches = ProgramMatcher.match(oldStartTimes, newStartTimes,
+                    MAX_SCHEDULE_SHIFT_MILLIS, new ProgramMatcher.Comparison() {
+                        @Override
+                        public boolean isSame(int oldIndex, int newIndex) {
+                            return rows.matches(firstOldIndex + oldIndex,
+                                    newFingerprints[newIndex]);
+                        }
+
+                        @Override
+                        public boolean canUpdate(int oldIndex, int newIndex) {
+                            Program oldProgram =
+                                    rows.getProgram(resolver, firstOldIndex + oldIndex);
+                            if (!mOverridesMetadataCheck) {
+                                // The matcher bounds the shift of the pair, so programs with
+                                // the same title are updated even if they no longer overlap.
+                                return TextUtils.equals(oldProgram.getTitle(),
+                                        newPrograms.get(newIndex).getTitle());
+                            }
+                            synchronized (mMetadataLock) {
+                                return shouldUpdateProgramMetadata(oldProgram,
+                                        newPrograms.get(newIndex));
+                            }
+                        }
+                    });
+            OperationBatcher.Operations ops = new OperationBatcher.Operations();
+            boolean[] matched = new boolean[fetchedProgramsCount];
+            for (int i = 0; i < matches.length; i++) {
+                int rowIndex = firstOldIndex + i;
+                Uri programUri = TvContract.buildProgramUri(rows.getId(rowIndex));
+                int newIndex = matches[i];
+                if (newIndex == ProgramMatcher.UNMATCHED) {
+                    ops.addDelete(programUri);
+                } else {
+                    matched[newIndex] = true;
+                    if (!rows.matches(rowIndex, newFingerprints[newIndex])) {
+                        // Only the columns which have changed are written.
+                        ops.addUpdate(programUri, ProgramRows.getUpdateValues(
+                                rows.getProgram(resolver, rowIndex), newValues[newIndex]));
+                    }
+                }
+            }
+            for (int i = 0; i < fetchedProgramsCount; i++) {
+                if (!matched[i]) {
+                    ops.addInsert(TvContract.Programs.CONTENT_URI, newValues[i]);
+                }
+            }
+            mStats.addPhaseTime(SyncStats.PHASE_DIFF, startNanos);
+            return ops;
+        }
+
+        /**
+         * Returns the operations which insert the given programs that start at or after the given
+         * time, without comparing them to the programs in the system database. This is used when
+         * the programs before that time are known to be in the database already.
+         *
+         * @param newPrograms A list of {@link Program} instances sorted by start time.
+         * @param startTimeMs The time from which programs are missing in the database.
+         * @return The operations to apply.
+         */
+        private OperationBatcher.Operations getAppendOperations(List<Program> newPrograms,
+                long startTimeMs) {
+            OperationBatcher.Operations ops = new OperationBatcher.Operations();
+            for (Program newProgram : newPrograms) {
+                if (newProgram.getStartTimeUtcMillis() >= startTimeMs) {
+                    ops.addInsert(TvContract.Programs.CONTENT_URI, newProgram.toContentValues());
+                }
+            }
+            return ops;
+        }
+
+        /**
+         * @return Whether the app overrides {@link #shouldUpdateProgramMetadata(Program, Program)},
+         * in which case it is called, one pair at a time. Otherwise the sync compares titles.
+         */
+        private boolean overridesMetadataCheck() {
+            try {
+                return EpgSyncJobService.this.getClass().getMethod("shouldUpdateProgramMetadata",
+                        Program.class, Program.class).getDeclaringClass()
+                        != EpgSyncJobService.class;
+            } catch (NoSuchMethodException e) {
+                return true;
+            }
+        }
+
+        /**
+         * Calls {@link #getProgramsForChannel(Uri, Channel, long, long)} once a fetch permit is
+         * available.
+         */
+        private List<Program> fetchPrograms(Channel channel, long startMs, long endMs) {
+            mFetchPermits.acquireUninterruptibly();
+            try {
+                return getProgramsForChannel(TvContract.buildChannelUri(channel.getId()), channel,
+                        startMs, endMs);
+            } finally {
+                mFetchPermits.release();
+            }
+        }
+
+        /**
+         * Fetches the programs of a channel from {@link #getProgramsForChannel(Uri, Channel, long,
+         * long)} and writes them to the EPG.
+         */
+        private class ChannelProgramsTask implements EpgSyncPipeline.Task {
+            private final Channel mChannel;
+            private final int mChannelCount;
+            private final long mStartMs;
+            private final long mEndMs;
+            private List<Program> mWrittenPrograms;
+
+            ChannelProgramsTask(Channel channel, int channelCount, long startMs, long endMs) {
+                mChannel = channel;
+                mChannelCount = channelCount;
+                mStartMs = startMs;
+                mEndMs = endMs;
+            }
+
+            @Override
+            public OperationBatcher.Operations prepare() {
+                long startNanos = System.nanoTime();
+                List<Program> programs = fetchPrograms(mChannel, mStartMs, mEndMs);
+                if (DEBUG) {
+                    Log.d(TAG, programs.toString());
+                }
+                for (int index = 0; index < programs.size(); index++) {
+                    if (programs.get(index).getChannelId() == -1) {
+                        // Automatically set the channel id if not set
+                        programs.set(index,
+                                new Program.Builder(programs.get(index))
+                                        .setChannelId(mChannel.getId())
+                                        .build());
+                    }
+                }
+
+                // Double check if the job is cancelled, so that this task can be finished faster
+                // after cancel() is called.
+                if (isCancelled()) {
+                    return null;
+                }
+                mWrittenPrograms = getPrograms(mChannel, programs, mStartMs, mEndMs);
+                mStats.addPhaseTime(SyncStats.PHASE_PROGRAM_FETCH, startNanos);
+                return getSyncOperations(mChannel.getId(), mWrittenPrograms);
+            }
+
+            @Override
+            public void onWritten(boolean success) {
+                recordHorizon(mChannel.getId(), success ? mWrittenPrograms : null);
+                if (success) {
+                    mCheckpoint.complete(mChannel.getId());
+                } else if (!isCancelled()) {
+                    broadcastError(ERROR_DATABASE_INSERT);
+                }
+                broadcastChannelScanned(mChannel, mChannelCount);
+            }
+        }
+
+        /**
+         * Fetches the programs of a channel which has no programs in the EPG for a short window,
+         * and inserts the current and next ones. The channel is synced over the whole window
+         * afterwards.
+         */
+        private class NowNextProgramsTask implements EpgSyncPipeline.Task {
+            private final Channel mChannel;
+            private final List<Program> mFeedPrograms;
+            private final boolean mRepeating;
+            private final long mStartMs;
+            private final long mEndMs;
+            private boolean mPrepared;
+
+            /**
+             * @param feedPrograms The programs of the channel in the program feed, or
+             * {@code null} to fetch them from
+             * {@link #getProgramsForChannel(Uri, Channel, long, long)}.
+             * @param repeating Whether the programs of the channel repeat in the feed.
+             */
+            NowNextProgramsTask(Channel channel, List<Program> feedPrograms, boolean repeating,
+                    long startMs, long endMs) {
+                mChannel = channel;
+                mFeedPrograms = feedPrograms;
+                mRepeating = repeating;
+                mStartMs = startMs;
+                mEndMs = endMs;
+            }
+
+            @Override
+            public OperationBatcher.Operations prepare() {
+                long startNanos = System.nanoTime();
+                List<Program> programs = mFeedPrograms != null ? mFeedPrograms
+                        : fetchPrograms(mChannel, mStartMs, mEndMs);
+                if (programs.isEmpty() || isCancelled()) {
+                    return null;
+                }
+                List<Program> nowNextPrograms = new ArrayList<>(NOW_NEXT_PROGRAM_COUNT);
+                long nowMs = System.currentTimeMillis();
+                List<Program> windowPrograms = mFeedPrograms != null
+                        ? getFeedPrograms(mChannel, mRepeating, programs, mStartMs, mEndMs)
+                        : getPrograms(mChannel, programs, mStartMs, mEndMs);
+                for (Program program : windowPrograms) {
+                    if (program.getEndTimeUtcMillis() > nowMs) {
+                        nowNextPrograms.add(program);
+                        if (nowNextPrograms.size() == NOW_NEXT_PROGRAM_COUNT) {
+                            break;
+                        }
+                    }
+                }
+                mStats.addPhaseTime(SyncStats.PHASE_PROGRAM_FETCH, startNanos);
+                if (nowNextPrograms.isEmpty() || !mSnapshot.isEmpty(mChannel.getId(),
+                        nowNextPrograms.get(nowNextPrograms.size() - 1).getEndTimeUtcMillis())) {
+                    // The programs could overlap ones in the EPG, so they are left to the full
+                    // sync, which compares them.
+                    return null;
+                }
+                mPrepared = true;
+                return getAppendOperations(nowNextPrograms, Long.MIN_VALUE);
+            }
+
+            @Override
+            public void onWritten(boolean success) {
+                if (mPrepared) {
+                    // The snapshot does not hold these programs, so the channel is read from the
+                    // EPG when it is synced.
+                    mSnapshot.release(mChannel.getId());
+                }
+                if (!success && !isCancelled()) {
+                    broadcastError(ERROR_DATABASE_INSERT);
+                }
+            }
+        }
+
+        /**
+         * Writes the current and next programs of the channels which have no programs in the EPG
+         * from an XMLTV feed, as it is parsed over the window of these programs. Only the programs
+         * of the channel currently being read are held in memory.
+         */
+        private class NowNextFeedHandler implements XmlTvParser.XmlTvHandler,
+                XmlTvParser.StopCondition {
+            private final LongSparseArray<Channel> mChannelsByNetworkId = new LongSparseArray<>();
+            /** The original network ids of the channels of the feed, as keys. */
+            private final LongSparseArray<Boolean> mFeedNetworkIds = new LongSparseArray<>();
+            /** The original network ids of the channels whose programs repeat, as keys. */
+            private final LongSparseArray<Boolean> mRepeatingNetworkIds = new LongSparseArray<>();
+            private final long mStartMs;
+            private final long mEndMs;
+            private final List<Program> mPrograms = new ArrayList<>();
+            private long mNetworkId;
+
+            NowNextFeedHandler(LongSparseArray<Channel> emptyChannels, long startMs, long endMs) {
+                for (int i = 0; i < emptyChannels.size(); ++i) {
+                    Channel channel = emptyChannels.valueAt(i);
+                    mChannelsByNetworkId.put(channel.getOriginalNetworkId(), channel);
+                }
+                mStartMs = startMs;
+                mEndMs = endMs;
+            }
+
+            @Override
+            public void onChannel(Channel channel) {
+                // Channels of the feed which have no programs in the window are left to the full
+                // sync, which writes them from the feed as well.
+                mFeedNetworkIds.put(channel.getOriginalNetworkId(), Boolean.TRUE);
+                InternalProviderData internalProviderData = channel.getInternalProviderData();
+                if (internalProviderData != null && internalProviderData.isRepeatable()) {
+                    mRepeatingNetworkIds.put(channel.getOriginalNetworkId(), Boolean.TRUE);
+                }
+            }
+
+            @Override
+            public void onProgram(Program program) {
+                if (program.getChannelId() != mNetworkId) {
+                    flush();
+                    mNetworkId = program.getChannelId();
+                }
+                mFeedNetworkIds.put(mNetworkId, Boolean.TRUE);
+                mPrograms.add(program);
+            }
+
+            @Override
+            public void onEnd() {
+                flush();
+            }
+
+            @Override
+            public boolean shouldStopParsing() {
+                return isCancelled();
+            }
+
+            /**
+             * @return Whether the channel is in the feed, so its programs are not fetched from
+             * {@link #getProgramsForChannel(Uri, Channel, long, long)}.
+             */
+            boolean isInFeed(Channel channel) {
+                return mFeedNetworkIds.get(channel.getOriginalNetworkId()) != null;
+            }
+
+            private void flush() {
+                if (mPrograms.isEmpty()) {
+                    return;
+                }
+                Channel channel = mChannelsByNetworkId.get(mNetworkId);
+                if (channel != null && !isCancelled()) {
+                    try {
+                        submitFeedPrograms(channel.getId(), new NowNextProgramsTask(channel,
+                                new ArrayList<>(mPrograms),
+                                mRepeatingNetworkIds.get(mNetworkId) != null, mStartMs, mEndMs));
+                    } catch (InterruptedException e) {
+                        // The sync has been cancelled, which stops the parse.
+                        mPipeline.cancel();
+                        Thread.currentThread().interrupt();
                     }
+                }
+                mPrograms.clear();
+            }
+        }
+
+        /**
+         * Writes the programs of an XMLTV feed to the EPG as they are parsed, together with the
+         * channels which are not in the feed, in the sync order of the channels.
+         * <p />
+         * The channels declared by the {@code <channel>} elements of the feed, which come before
+         * its programs, wait for their programs to be read. A {@link FeedSyncOrder} holds the
+         * programs of channels read before their turn, up to {@link #MAX_BUFFERED_FEED_PROGRAMS}.
+         * The channels which are not in the feed are passed to the pipeline on their turn, while
+         * the feed is parsed.
+         * <p />
+         * The programs of channels whose fingerprint in the feed has not changed since the last
+         * sync are already in the EPG, so only the programs after the last written one are
+         * inserted, without reading and comparing the programs in the EPG.
+         */
+        private class FeedProgramHandler implements XmlTvParser.XmlTvHandler,
+                XmlTvParser.FingerprintListener, XmlTvParser.ErrorListener,
+                XmlTvParser.StopCondition,
+                FeedSyncOrder.Callback<FeedProgramHandler.FeedProgramsTask> {
+            private final LongSparseArray<Channel> mChannelMap;
+            private final FeedSyncOrder<FeedProgramsTask> mOrder;
+            private final LongSparseArray<Channel> mChannelsByNetworkId = new LongSparseArray<>();
+            /** The original network ids of the channels declared by the feed, as keys. */
+            private final LongSparseArray<Boolean> mFeedNetworkIds = new LongSparseArray<>();
+            /** The original network ids of the channels whose programs repeat, as keys. */
+            private final LongSparseArray<Boolean> mRepeatingNetworkIds = new LongSparseArray<>();
+            /** The channels which have been passed to the pipeline or skipped. */
+            private final LongSparseArray<Channel> mSyncedChannels = new LongSparseArray<>();
+            /** The channels whose programs are fetched instead of read from the feed. */
+            private final LongSparseArray<Boolean> mFetchedChannelIds = new LongSparseArray<>();
+            private final FeedFingerprintStore mFingerprints;
+            private final int mChannelCount;
+            private final long mStartMs;
+            private final long mEndMs;
+            private final List<Program> mPrograms = new ArrayList<>();
+            private long mNetworkId;
+
+            FeedProgramHandler(LongSparseArray<Channel> channelMap, int[] syncOrder,
+                    FeedFingerprintStore fingerprints, long startMs, long endMs) {
+                mChannelMap = channelMap;
+                long[] channelIds = new long[syncOrder.length];
+                for (int rank = 0; rank < syncOrder.length; ++rank) {
+                    channelIds[rank] = channelMap.keyAt(syncOrder[rank]);
+                }
+                mOrder = new FeedSyncOrder<>(channelIds, MAX_BUFFERED_FEED_PROGRAMS, this);
+                for (int i = 0; i < channelMap.size(); ++i) {
+                    Channel channel = channelMap.valueAt(i);
+                    mChannelsByNetworkId.put(channel.getOriginalNetworkId(), channel);
+                }
+                mFingerprints = fingerprints;
+                mChannelCount = channelMap.size();
+                mStartMs = startMs;
+                mEndMs = endMs;
+            }
+
+            @Override
+            public void onChannel(Channel channel) {
+                // Channels are provided by getChannels() and have already been written.
+                mFeedNetworkIds.put(channel.getOriginalNetworkId(), Boolean.TRUE);
+                InternalProviderData internalProviderData = channel.getInternalProviderData();
+                if (internalProviderData != null && internalProviderData.isRepeatable()) {
+                    mRepeatingNetworkIds.put(channel.getOriginalNetworkId(), Boolean.TRUE);
+                }
+            }
+
+            @Override
+            public void onProgram(Program program) {
+                if (program.getChannelId() != mNetworkId) {
+                    flush(null);
+                    mNetworkId = program.getChannelId();
+                }
+                mPrograms.add(program);
+            }
+
+            @Override
+            public void onFingerprint(int originalNetworkId, long fingerprint) {
+                if (originalNetworkId == mNetworkId) {
+                    flush(fingerprint);
+                }
+            }
+
+            @Override
+            public void onErrors(XmlTvParser.ParseErrors errors) {
+                if (!errors.isEmpty()) {
+                    Log.w(TAG, "Dropped invalid records of the program feed: " + errors);
+                }
+            }
+
+            @Override
+            public void onEnd() {
+                flush(null);
+                // The channels of the feed which had no programs in it are fetched.
+                try {
+                    mOrder.end();
+                } catch (InterruptedException e) {
+                    mPipeline.cancel();
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public boolean shouldStopParsing() {
+                // The rest of the feed is read again by the job which continues the sync.
+                return isCancelled() || shouldYield();
+            }
+
+            @Override
+            public boolean onTurn(long channelId, boolean feedEnded) throws InterruptedException {
+                Channel channel = mChannelMap.get(channelId);
+                if (mSyncedChannels.get(channelId) != null
+                        || mCheckpoint.isCompleted(channelId)) {
+                    return true;
+                }
+                if (hasExternalMetadata(channel)) {
+                    // Skip program insertion for channels with external metadata
+                    mSyncedChannels.put(channelId, channel);
+                    broadcastChannelScanned(channel, mChannelCount);
+                } else if (!feedEnded && (mFeedNetworkIds.size() == 0
+                        || mFeedNetworkIds.get(channel.getOriginalNetworkId()) != null)) {
+                    // Wait for the programs of the channel. A feed which declares no channels
+                    // may have programs for any of them.
+                    return false;
                 } else {
-                    // No old programs. Just insert new programs.
-                    addNewProgram = true;
-                    newProgramsIndex++;
-                }
-                if (addNewProgram) {
-                    ops.add(ContentProviderOperation
-                            .newInsert(TvContract.Programs.CONTENT_URI)
-                            .withValues(newProgram.toContentValues())
-                            .build());
+                    mSyncedChannels.put(channelId, channel);
+                    mFetchedChannelIds.put(channelId, Boolean.TRUE);
+                    submitFeedPrograms(channelId, new ChannelProgramsTask(channel,
+                            mChannelCount, mStartMs, mEndMs));
                 }
-                // Throttle the batch operation not to cause TransactionTooLargeException.
-                if (ops.size() > BATCH_OPERATION_COUNT
-                        || newProgramsIndex >= fetchedProgramsCount) {
+                return true;
+            }
+
+            @Override
+            public void submit(long channelId, FeedProgramsTask task)
+                    throws InterruptedException {
+                task.mFirstRun = mSyncedChannels.get(channelId) == null;
+                mSyncedChannels.put(channelId, task.mChannel);
+                submitFeedPrograms(channelId, task);
+            }
+
+            @Override
+            public boolean isStopped() {
+                return isCancelled() || shouldYield();
+            }
+
+            /**
+             * Passes the programs still held to the pipeline, such as when the feed could not be
+             * read to its end.
+             */
+            void finish() throws InterruptedException {
+                mOrder.finish();
+            }
+
+            /**
+             * @return The channels which have been passed to the pipeline or skipped, keyed by
+             * their row id.
+             */
+            LongSparseArray<Channel> getSyncedChannels() {
+                return mSyncedChannels;
+            }
+
+            /**
+             * Passes the programs of the current channel to the pipeline, which writes them.
+             *
+             * @param fingerprint The fingerprint of the programs in the feed, or {@code null} if
+             * it is not known.
+             */
+            private void flush(Long fingerprint) {
+                if (mPrograms.isEmpty()) {
+                    return;
+                }
+                Channel channel = mChannelsByNetworkId.get(mNetworkId);
+                if (channel != null && mCheckpoint.isCompleted(channel.getId())) {
+                    // Written before the sync was stopped.
+                    mSyncedChannels.put(channel.getId(), channel);
+                } else if (channel != null && !hasExternalMetadata(channel) && !isCancelled()
+                        && !shouldYield()) {
                     try {
-                        mContext.getContentResolver().applyBatch(TvContract.AUTHORITY, ops);
-                    } catch (RemoteException | OperationApplicationException e) {
-                        Log.e(TAG, "Failed to insert programs.", e);
+                        submitInOrder(channel, new ArrayList<>(mPrograms), fingerprint);
+                    } catch (InterruptedException e) {
+                        // The sync has been cancelled, which stops the parse.
+                        mPipeline.cancel();
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                mPrograms.clear();
+            }
+
+            private void submitInOrder(Channel channel, List<Program> programs, Long fingerprint)
+                    throws InterruptedException {
+                long channelId = channel.getId();
+                if (mFetchedChannelIds.get(channelId) != null) {
+                    Log.w(TAG, "Ignoring the programs of channel " + channelId
+                            + ", which is not declared by the feed and has been fetched");
+                    return;
+                }
+                mOrder.add(channelId, new FeedProgramsTask(channel, programs,
+                        mRepeatingNetworkIds.get(channel.getOriginalNetworkId()) != null,
+                        fingerprint), programs.size());
+            }
+
+            /**
+             * Writes the programs of a channel which have been read from the feed.
+             */
+            private class FeedProgramsTask implements EpgSyncPipeline.Task {
+                private final Channel mChannel;
+                private final List<Program> mFeedPrograms;
+                private final boolean mRepeating;
+                private final Long mFingerprint;
+                /** Whether no other programs of the channel have been passed to the pipeline. */
+                private boolean mFirstRun;
+                private List<Program> mWrittenPrograms;
+
+                FeedProgramsTask(Channel channel, List<Program> feedPrograms, boolean repeating,
+                        Long fingerprint) {
+                    mChannel = channel;
+                    mFeedPrograms = feedPrograms;
+                    mRepeating = repeating;
+                    mFingerprint = fingerprint;
+                }
+
+                @Override
+                public OperationBatcher.Operations prepare() {
+                    long channelId = mChannel.getId();
+                    mWrittenPrograms = getFeedPrograms(mChannel, mRepeating, mFeedPrograms,
+                            mStartMs, mEndMs);
+                    // The programs of an unchanged feed are only appended if the EPG still ends
+                    // where they were last written, as it may have been cleared or edited since.
+                    if (mFingerprint != null
+                            && mFingerprints.isUnchanged(channelId, mFingerprint)
+                            && mSnapshot.getLastEndTimeMs(channelId)
+                                    == mFingerprints.getEndTimeMs(channelId)) {
+                        // The programs in the EPG are not needed.
+                        mSnapshot.release(channelId);
+                        return getAppendOperations(mWrittenPrograms,
+                                mFingerprints.getEndTimeMs(channelId));
+                    }
+                    return getSyncOperations(channelId, mWrittenPrograms);
+                }
+
+                @Override
+                public void onWritten(boolean success) {
+                    long channelId = mChannel.getId();
+                    recordHorizon(channelId, success ? mWrittenPrograms : null);
+                    if (success) {
+                        mCheckpoint.complete(channelId);
+                    } else if (!isCancelled()) {
                         broadcastError(ERROR_DATABASE_INSERT);
-                        return;
                     }
-                    ops.clear();
+                    if (success && mFingerprint != null && mWrittenPrograms != null
+                            && !mWrittenPrograms.isEmpty()) {
+                        long endTimeMs = mWrittenPrograms.get(
+                                mWrittenPrograms.size() - 1).getEndTimeUtcMillis();
+                        mFingerprints.put(channelId, mFingerprint,
+                                Math.max(endTimeMs, mFingerprints.getEndTimeMs(channelId)));
+                    } else {
+                        mFingerprints.remove(channelId);
+                    }
+                    if (mFirstRun) {
+                        broadcastChannelScanned(mChannel, mChannelCount);
+                    }
                 }
             }
         }
     }
+
+    private static boolean hasExternalMetadata(Channel channel) {
+        InternalProviderData internalProviderData = channel.getInternalProviderData();
+        return internalProviderData != null && internalProviderData.getExternalIdValue() != null;
+    }
 }
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the work of an EPG sync for each channel as a pipeline. Fetching the programs of a
+ * channel, reading its programs from the EPG and comparing them runs on a bounded pool of worker
+ * threads, so network waits and diffs of different channels overlap. The resulting operations
+ * are applied by a single writer thread through an {@link OperationBatcher}, so it owns every
+ * {@code applyBatch} call of the sync.
+ * <p>
+ * The writer packs the operations of many channels into the same transactions, so channels with
+ * a handful of changes do not cost a transaction each. A transaction is applied once it is full,
+ * once operations have been waiting for {@link #FLUSH_DELAY_MS}, and at the end of the sync, so
+ * the programs still show up in the EPG while the sync runs.
+ * <p>
+ * The channels are written in the order their work completes. At most one task per channel is in
+ * the pipeline at any time, so a channel is never read while it is being written.
+ */
+final class EpgSyncPipeline {
+    private static final String TAG = "EpgSyncPipeline";
+
+    /**
+     * The longest time operations wait in a transaction which is not full before it is applied.
+     */
+    static final long FLUSH_DELAY_MS = 1000;
+
+    /**
+     * The work of the sync for one channel.
+     */
+    interface Task {
+        /**
+         * Fetches and compares the programs of the channel. This runs on a worker thread.
+         *
+         * @return The operations which update the EPG, or {@code null} if nothing is written.
+         */
+        OperationBatcher.Operations prepare();
+
+        /**
+         * Called on the writer thread once the operations of {@link #prepare()} have been applied,
+         * or once applying them failed. This is not called for tasks which did not start before
+         * the pipeline was cancelled.
+         *
+         * @param success Whether all operations have been applied.
+         */
+        void onWritten(boolean success);
+    }
+
+    private final OperationBatcher mBatcher;
+    private final int mMaxPendingTasks;
+    private final ExecutorService mWorkers;
+    private final ScheduledExecutorService mWriter;
+    private final Object mLock = new Object();
+    /** Channels which have a task in the pipeline. Guarded by mLock. */
+    private final Set<Long> mPendingChannels = new HashSet<>();
+    /** Tasks whose operations have not been handed to the batcher yet. Guarded by mLock. */
+    private int mPreparingTaskCount;
+    /** Tasks which have not been written yet. Guarded by mLock. */
+    private int mPendingTaskCount;
+    private RuntimeException mFailure;
+    private volatile boolean mCancelled;
+    /** Whether a flush of the batcher is scheduled. Only used by the writer thread. */
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            if (mCancelled) {
+                return;
+            }
+            try {
+                mBatcher.flush();
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+    };
+
+    private final Runnable mDiscard = new Runnable() {
+        @Override
+        public void run() {
+            mBatcher.discard();
+        }
+    };
+
+    /**
+     * @param batcher Applies the operations of the tasks. It is only used by the writer thread.
+     * @param threadCount The number of worker threads.
+     */
+    EpgSyncPipeline(OperationBatcher batcher, int threadCount) {
+        mBatcher = batcher;
+        // Keep a few tasks ready for the writer, without holding the programs of every channel.
+        mMaxPendingTasks = threadCount * 2;
+        mWorkers = Executors.newFixedThreadPool(threadCount, new NamedThreadFactory("worker"));
+        mWriter = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("writer"));
+    }
+
+    /**
+     * Adds the task of a channel to the pipeline. This blocks while too many tasks, or a task of
+     * the same channel, are in the pipeline.
+     *
+     * @param channelId The row id of the channel.
+     * @return Whether the task has been added. It is not added once the pipeline is cancelled.
+     */
+    boolean submit(final long channelId, final Task task) throws InterruptedException {
+        synchronized (mLock) {
+            boolean flushRequested = false;
+            while (!mCancelled && (mPreparingTaskCount >= mMaxPendingTasks
+                    || mPendingChannels.contains(channelId))) {
+                if (!flushRequested && mPendingChannels.contains(channelId)) {
+                    // Don't wait for the flush delay if the channel only waits in the batcher.
+                    execute(mFlush);
+                    flushRequested = true;
+                }
+                mLock.wait();
+            }
+            if (mCancelled) {
+                return false;
+            }
+            mPreparingTaskCount++;
+            mPendingTaskCount++;
+            mPendingChannels.add(channelId);
+        }
+        mWorkers.execute(new Runnable() {
+            @Override
+            public void run() {
+                final OperationBatcher.Operations operations;
+                try {
+                    operations = mCancelled ? null : task.prepare();
+                } catch (RuntimeException e) {
+                    fail(e);
+                    finish(channelId, true);
+                    return;
+                }
+                if (mCancelled) {
+                    finish(channelId, true);
+                    return;
+                }
+                boolean queued = execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (mLock) {
+                            // The batcher holds the operations from now on.
+                            mPreparingTaskCount--;
+                            mLock.notifyAll();
+                        }
+                        write(channelId, task, operations);
+                    }
+                });
+                if (!queued) {
+                    finish(channelId, true);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Waits until every task in the pipeline has been written. The operations which are still
+     * waiting in the batcher are applied right away.
+     *
+     * @throws RuntimeException The first exception thrown by a task, after which the pipeline is
+     * cancelled.
+     */
+    void await() throws InterruptedException {
+        synchronized (mLock) {
+            while (mPreparingTaskCount > 0) {
+                mLock.wait();
+            }
+            // The end of the sync: write the last transaction, which is not full.
+            execute(mFlush);
+            while (mPendingTaskCount > 0) {
+                mLock.wait();
+            }
+            if (mFailure != null) {
+                throw mFailure;
+            }
+        }
+    }
+
+    /**
+     * Stops the pipeline. Tasks which have not started yet are dropped, and no more operations
+     * are applied.
+     */
+    void cancel() {
+        mCancelled = true;
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+        execute(mDiscard);
+    }
+
+    /**
+     * Releases the threads of the pipeline. Tasks which are still in the pipeline are dropped.
+     */
+    void shutdown() {
+        cancel();
+        mWorkers.shutdownNow();
+        mWriter.shutdownNow();
+    }
+
+    private void write(final long channelId, final Task task,
+            OperationBatcher.Operations operations) {
+        if (mCancelled || operations == null) {
+            onWritten(channelId, task, !mCancelled);
+            return;
+        }
+        try {
+            mBatcher.add(operations, new OperationBatcher.Callback() {
+                @Override
+                public void onApplied(boolean success) {
+                    onWritten(channelId, task, success && !mCancelled);
+                }
+            });
+        } catch (RuntimeException e) {
+            fail(e);
+            return;
+        }
+        if (mBatcher.hasPendingOperations() && !mFlushScheduled) {
+            mFlushScheduled = true;
+            try {
+                mWriter.schedule(mFlush, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // The pipeline has been shut down.
+            }
+        }
+    }
+
+    private void onWritten(long channelId, Task task, boolean success) {
+        try {
+            task.onWritten(success);
+        } catch (RuntimeException e) {
+            fail(e);
+        } finally {
+            finish(channelId, false);
+        }
+    }
+
+    /**
+     * @return Whether the runnable has been queued on the writer thread. It is not once the
+     * pipeline has been shut down.
+     */
+    private boolean execute(Runnable runnable) {
+        try {
+            mWriter.execute(runnable);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private void fail(RuntimeException e) {
+        synchronized (mLock) {
+            if (mFailure == null) {
+                mFailure = e;
+            }
+        }
+        cancel();
+    }
+
+    private void finish(long channelId, boolean preparing) {
+        synchronized (mLock) {
+            if (preparing) {
+                mPreparingTaskCount--;
+            }
+            mPendingTaskCount--;
+            mPendingChannels.remove(channelId);
+            mLock.notifyAll();
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+        private final String mName;
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, TAG + "-" + mName + "-" + mCount.incrementAndGet());
+        }
+    }
+}
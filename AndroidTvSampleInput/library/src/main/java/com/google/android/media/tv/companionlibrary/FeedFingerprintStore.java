@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary;
+
+import android.content.Context;
+import android.util.LongSparseArray;
+
+/**
+ * Remembers, for each channel of an input, the fingerprint of its programs in the program feed
+ * and the end time of the last program written to the EPG for it. Channels whose programs have
+ * not changed since the last sync only need their new programs appended.
+ * <p>
+ * The store is thread safe, as channels are written by the threads of an {@link EpgSyncPipeline}.
+ */
+final class FeedFingerprintStore {
+    private static final String PREFERENCE_FEED_FINGERPRINTS =
+            EpgSyncJobService.PREFERENCE_EPG_SYNC + ".feed_fingerprints";
+    private static final int FINGERPRINT = 0;
+    private static final int END_TIME = 1;
+
+    /** Fingerprint and end time of the last written program of each channel. */
+    private final ChannelValueStore mEntries;
+
+    private FeedFingerprintStore(ChannelValueStore entries) {
+        mEntries = entries;
+    }
+
+    /**
+     * Loads the fingerprints of the given input.
+     */
+    static FeedFingerprintStore load(Context context, String inputId) {
+        return new FeedFingerprintStore(ChannelValueStore.load(context.getSharedPreferences(
+                PREFERENCE_FEED_FINGERPRINTS, Context.MODE_PRIVATE), inputId, 2));
+    }
+
+    /**
+     * @return Whether the programs of the channel had the given fingerprint when they were last
+     * written.
+     */
+    boolean isUnchanged(long channelId, long fingerprint) {
+        long[] entry = mEntries.get(channelId);
+        return entry != null && entry[FINGERPRINT] == fingerprint;
+    }
+
+    /**
+     * @return The end time of the last program written for the channel.
+     */
+    long getEndTimeMs(long channelId) {
+        long[] entry = mEntries.get(channelId);
+        return entry != null ? entry[END_TIME] : Long.MIN_VALUE;
+    }
+
+    /**
+     * Records that the programs of the channel with the given fingerprint have been written up to
+     * the given time.
+     */
+    void put(long channelId, long fingerprint, long endTimeMs) {
+        mEntries.put(channelId, fingerprint, endTimeMs);
+    }
+
+    /**
+     * Forgets the channel, for instance when its programs could not be written, so they are
+     * compared with the EPG on the next sync.
+     */
+    void remove(long channelId) {
+        mEntries.remove(channelId);
+    }
+
+    /**
+     * Keeps only the given channels, and saves the fingerprints if they have changed.
+     */
+    void save(LongSparseArray<?> channels) {
+        mEntries.save(channels);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Passes the programs of the channels of a program feed to the sync in the sync order of the
+ * channels, while the feed is parsed in its own order.
+ * <p>
+ * The programs of a channel which are read before its turn are held until it comes. The channel
+ * whose turn it is waits for its programs to be read, unless the feed has ended. Once more than
+ * a maximum number of programs are held, the channel whose turn it is loses its turn and is
+ * passed on as soon as it is read, so the memory of the sync does not grow with the size of the
+ * feed. The programs of a channel which is split in the feed are passed on in the order they
+ * are read.
+ *
+ * @param <T> The programs of a channel, as passed on to the sync.
+ */
+final class FeedSyncOrder<T> {
+
+    /** Receives the channels in the sync order. */
+    interface Callback<T> {
+        /**
+         * Called when the turn of a channel comes and none of its programs are held.
+         *
+         * @param channelId The row id of the channel.
+         * @param feedEnded Whether the whole feed has been read.
+         * @return Whether the turn of the channel is over, or {@code false} to wait for its
+         * programs in the feed.
+         */
+        boolean onTurn(long channelId, boolean feedEnded) throws InterruptedException;
+
+        /**
+         * Passes the programs of a channel on to the sync.
+         *
+         * @param channelId The row id of the channel.
+         * @param programs The programs given to {@link #add(long, Object, int)}.
+         */
+        void submit(long channelId, T programs) throws InterruptedException;
+
+        /**
+         * @return Whether the sync stops, in which case no more channels are passed on.
+         */
+        boolean isStopped();
+    }
+
+    private final long[] mChannelIds;
+    /** The position of each channel in mChannelIds, by its row id. */
+    private final Map<Long, Integer> mRanks = new HashMap<>();
+    /** The programs of channels read before their turn, keyed by their rank. */
+    private final TreeMap<Integer, Held<T>> mHeld = new TreeMap<>();
+    private final int mMaxHeldPrograms;
+    private final Callback<T> mCallback;
+    private int mHeldProgramCount;
+    /** The rank of the next channel to pass on. */
+    private int mNextRank;
+    private boolean mEnded;
+
+    /**
+     * @param channelIds The row ids of the channels, in the order to sync them.
+     * @param maxHeldPrograms The most programs held until the turn of their channel comes.
+     */
+    FeedSyncOrder(long[] channelIds, int maxHeldPrograms, Callback<T> callback) {
+        mChannelIds = channelIds;
+        for (int rank = 0; rank < channelIds.length; rank++) {
+            mRanks.put(channelIds[rank], rank);
+        }
+        mMaxHeldPrograms = maxHeldPrograms;
+        mCallback = callback;
+    }
+
+    /**
+     * Adds the programs of a channel which have been read from the feed. They are passed on now
+     * if the turn of the channel has come, or has been lost, and are held otherwise.
+     *
+     * @param channelId The row id of the channel, which is one of the channels to sync.
+     * @param programs The programs of the channel.
+     * @param programCount The number of programs, which counts towards the programs held.
+     */
+    void add(long channelId, T programs, int programCount) throws InterruptedException {
+        // Catch up with the channels which are not in the feed.
+        advance();
+        int rank = mRanks.get(channelId);
+        if (mHeld.containsKey(rank)) {
+            // The programs of the channel are split in the feed.
+            submitHeld(rank);
+        }
+        if (rank < mNextRank) {
+            // The channel lost its turn, or its programs are split in the feed.
+            mCallback.submit(channelId, programs);
+        } else if (rank == mNextRank) {
+            mCallback.submit(channelId, programs);
+            mNextRank++;
+            advance();
+        } else {
+            mHeld.put(rank, new Held<>(programs, programCount));
+            mHeldProgramCount += programCount;
+            while (mHeldProgramCount > mMaxHeldPrograms && mNextRank < mChannelIds.length
+                    && !mCallback.isStopped()) {
+                // The channel whose turn it is is passed on once it is read.
+                mNextRank++;
+                advance();
+            }
+        }
+    }
+
+    /**
+     * Called once the whole feed has been read, so no channel waits for its programs anymore.
+     */
+    void end() throws InterruptedException {
+        mEnded = true;
+        advance();
+    }
+
+    /**
+     * Passes on the programs still held, in the sync order, such as when the feed could not be
+     * read to its end.
+     */
+    void finish() throws InterruptedException {
+        while (!mHeld.isEmpty() && !mCallback.isStopped()) {
+            submitHeld(mHeld.firstKey());
+        }
+    }
+
+    /**
+     * @return The number of programs held until the turn of their channel comes.
+     */
+    int getHeldProgramCount() {
+        return mHeldProgramCount;
+    }
+
+    /**
+     * Passes on the channels whose turn has come, up to the next channel which waits for its
+     * programs.
+     */
+    private void advance() throws InterruptedException {
+        while (mNextRank < mChannelIds.length && !mCallback.isStopped()) {
+            if (mHeld.containsKey(mNextRank)) {
+                submitHeld(mNextRank);
+            } else if (!mCallback.onTurn(mChannelIds[mNextRank], mEnded)) {
+                return;
+            }
+            mNextRank++;
+        }
+    }
+
+    private void submitHeld(int rank) throws InterruptedException {
+        Held<T> held = mHeld.remove(rank);
+        mHeldProgramCount -= held.mProgramCount;
+        mCallback.submit(mChannelIds[rank], held.mPrograms);
+    }
+
+    private static final class Held<T> {
+        final T mPrograms;
+        final int mProgramCount;
+
+        Held(T programs, int programCount) {
+            mPrograms = programs;
+            mProgramCount = programCount;
+        }
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Applies {@link ContentProviderOperation ContentProviderOperations} in transactions which are
+ * filled up to a byte budget, using an estimate of the parcelled size of each operation. Small
+ * rows share a transaction, while rows with long descriptions or large internal provider data
+ * are spread over several, so they do not cause a {@link TransactionTooLargeException}.
+ * <p>
+ * Operations added for different channels are accumulated and packed into the same
+ * transactions. Operations are applied in the order they were added, so the operations of each
+ * channel keep their order. A transaction is applied as soon as enough operations have been
+ * added to fill it; the remaining operations are applied by {@link #flush()}.
+ * <p>
+ * If a transaction is still too large, it is split in half and retried, and the budget of the
+ * following transactions is lowered accordingly.
+ * <p>
+ * The batcher is not thread safe.
+ */
+final class OperationBatcher {
+    private static final String TAG = "OperationBatcher";
+
+    /**
+     * The default byte budget of a transaction. The binder buffer of a process is 1MB, and is
+     * shared by all of its transactions in flight.
+     */
+    static final int DEFAULT_MAX_TRANSACTION_SIZE = 256 * 1024;
+    /**
+     * The default maximum number of operations per transaction, which bounds how long the
+     * provider holds its database transaction.
+     */
+    static final int DEFAULT_MAX_TRANSACTION_OPERATIONS = 500;
+
+    // Estimated parcel sizes in bytes
+    private static final int OPERATION_OVERHEAD_SIZE = 64;
+    private static final int ENTRY_OVERHEAD_SIZE = 4;
+    private static final int NUMBER_SIZE = 8;
+    private static final int MIN_TRANSACTION_SIZE = 4 * 1024;
+
+    // Kinds of operations
+    private static final int KIND_OTHER = 0;
+    private static final int KIND_INSERT = 1;
+    private static final int KIND_UPDATE = 2;
+    private static final int KIND_DELETE = 3;
+    private static final int KIND_COUNT = 4;
+
+    /**
+     * Applies a batch of operations to the EPG.
+     */
+    interface BatchWriter {
+        void applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws RemoteException, OperationApplicationException;
+    }
+
+    /**
+     * Receives the result of a list of operations added to the batcher.
+     */
+    interface Callback {
+        /**
+         * Called once every operation of the list has been applied, or once one of them failed.
+         * The operations of the list after a failed one are not applied.
+         *
+         * @param success Whether all operations have been applied.
+         */
+        void onApplied(boolean success);
+    }
+
+    /**
+     * A list of operations along with their estimated parcelled sizes.
+     */
+    static final class Operations {
+        private final ArrayList<ContentProviderOperation> mOperations = new ArrayList<>();
+        private int[] mSizes = new int[16];
+        private int[] mKinds = new int[16];
+
+        void addInsert(Uri uri, ContentValues values) {
+            add(ContentProviderOperation.newInsert(uri).withValues(values).build(),
+                    estimateSize(uri, values), KIND_INSERT);
+        }
+
+        void addUpdate(Uri uri, ContentValues values) {
+            add(ContentProviderOperation.newUpdate(uri).withValues(values).build(),
+                    estimateSize(uri, values), KIND_UPDATE);
+        }
+
+        void addDelete(Uri uri) {
+            add(ContentProviderOperation.newDelete(uri).build(), estimateSize(uri, null),
+                    KIND_DELETE);
+        }
+
+        /**
+         * @param estimatedSize The estimated parcelled size of the operation in bytes.
+         */
+        void add(ContentProviderOperation operation, int estimatedSize) {
+            add(operation, estimatedSize, KIND_OTHER);
+        }
+
+        private void add(ContentProviderOperation operation, int estimatedSize, int kind) {
+            if (mOperations.size() == mSizes.length) {
+                mSizes = Arrays.copyOf(mSizes, mSizes.length * 2);
+                mKinds = Arrays.copyOf(mKinds, mKinds.length * 2);
+            }
+            mSizes[mOperations.size()] = estimatedSize;
+            mKinds[mOperations.size()] = kind;
+            mOperations.add(operation);
+        }
+
+        int size() {
+            return mOperations.size();
+        }
+
+        boolean isEmpty() {
+            return mOperations.isEmpty();
+        }
+
+        ContentProviderOperation get(int index) {
+            return mOperations.get(index);
+        }
+
+        int getEstimatedSize(int index) {
+            return mSizes[index];
+        }
+
+        int getKind(int index) {
+            return mKinds[index];
+        }
+    }
+
+    private final BatchWriter mBatchWriter;
+    private final int mMaxTransactionOperations;
+    private int mMaxTransactionSize;
+    /** Operations which have been added but not applied yet, in order. */
+    private final ArrayDeque<Entry> mEntries = new ArrayDeque<>();
+    private int mPendingSize;
+    private int mTransactionCount;
+    private int mOperationCount;
+    private int mSplitCount;
+    private long mByteCount;
+    private final int[] mKindCounts = new int[KIND_COUNT];
+
+    /**
+     * @param batchWriter Applies the transactions.
+     * @param maxTransactionSize The byte budget of a transaction.
+     * @param maxTransactionOperations The maximum number of operations of a transaction.
+     */
+    OperationBatcher(BatchWriter batchWriter, int maxTransactionSize,
+            int maxTransactionOperations) {
+        mBatchWriter = batchWriter;
+        mMaxTransactionSize = maxTransactionSize;
+        mMaxTransactionOperations = maxTransactionOperations;
+    }
+
+    /**
+     * Adds operations which are applied after the operations added before. Transactions which
+     * have been filled are applied right away.
+     *
+     * @param callback Receives the result once the operations have been applied. It is called
+     * right away if there are no operations.
+     */
+    void add(Operations operations, Callback callback) {
+        if (operations.isEmpty()) {
+            callback.onApplied(true);
+            return;
+        }
+        Owner owner = new Owner(callback, operations.size());
+        for (int i = 0; i < operations.size(); i++) {
+            mEntries.add(new Entry(operations.get(i), operations.getEstimatedSize(i),
+                    operations.getKind(i), owner));
+            mPendingSize += operations.getEstimatedSize(i);
+        }
+        while (mPendingSize >= mMaxTransactionSize
+                || mEntries.size() >= mMaxTransactionOperations) {
+            applyNextTransaction();
+        }
+    }
+
+    /**
+     * Applies all operations which have been added, including a last transaction which is not
+     * full.
+     */
+    void flush() {
+        while (!mEntries.isEmpty()) {
+            applyNextTransaction();
+        }
+    }
+
+    /**
+     * Drops all operations which have not been applied yet. Their callbacks are told that they
+     * failed.
+     */
+    void discard() {
+        while (!mEntries.isEmpty()) {
+            Entry entry = mEntries.poll();
+            mPendingSize -= entry.size;
+            entry.owner.failed = true;
+            complete(entry);
+        }
+    }
+
+    /**
+     * @return Whether there are operations which have not been applied yet.
+     */
+    boolean hasPendingOperations() {
+        return !mEntries.isEmpty();
+    }
+
+    /**
+     * Applies the operations in order, in as few transactions as the budget allows, along with
+     * any operations added before.
+     *
+     * @return Whether all operations have been applied. The operations after a transaction which
+     * failed are not applied.
+     */
+    boolean apply(Operations operations) {
+        final boolean[] result = new boolean[1];
+        add(operations, new Callback() {
+            @Override
+            public void onApplied(boolean success) {
+                result[0] = success;
+            }
+        });
+        flush();
+        return result[0];
+    }
+
+    /**
+     * @return The number of transactions which have been applied.
+     */
+    int getTransactionCount() {
+        return mTransactionCount;
+    }
+
+    /**
+     * @return The number of operations which have been applied.
+     */
+    int getOperationCount() {
+        return mOperationCount;
+    }
+
+    /**
+     * @return The number of inserts which have been applied.
+     */
+    int getInsertCount() {
+        return mKindCounts[KIND_INSERT];
+    }
+
+    /**
+     * @return The number of updates which have been applied.
+     */
+    int getUpdateCount() {
+        return mKindCounts[KIND_UPDATE];
+    }
+
+    /**
+     * @return The number of deletes which have been applied.
+     */
+    int getDeleteCount() {
+        return mKindCounts[KIND_DELETE];
+    }
+
+    /**
+     * @return The estimated parcelled size of the operations which have been applied in bytes.
+     */
+    long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * @return The number of transactions which were too large, and were split and retried.
+     */
+    int getSplitCount() {
+        return mSplitCount;
+    }
+
+    /**
+     * @return The average number of operations per applied transaction.
+     */
+    float getOperationsPerTransaction() {
+        return mTransactionCount == 0 ? 0 : (float) mOperationCount / mTransactionCount;
+    }
+
+    private void applyNextTransaction() {
+        List<Entry> transaction = new ArrayList<>();
+        int size = 0;
+        // Every transaction takes at least one operation, whatever its size.
+        while (!mEntries.isEmpty() && (transaction.isEmpty()
+                || (transaction.size() < mMaxTransactionOperations
+                && size + mEntries.peek().size <= mMaxTransactionSize))) {
+            Entry entry = mEntries.poll();
+            mPendingSize -= entry.size;
+            if (entry.owner.failed) {
+                // An earlier operation of the same list failed.
+                complete(entry);
+                continue;
+            }
+            transaction.add(entry);
+            size += entry.size;
+        }
+        applyTransaction(transaction);
+    }
+
+    private void applyTransaction(List<Entry> transaction) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(transaction.size());
+        int size = 0;
+        for (int i = transaction.size() - 1; i >= 0; i--) {
+            Entry entry = transaction.get(i);
+            if (entry.owner.failed) {
+                // Failed in the other half of a split transaction.
+                complete(entry);
+                transaction.remove(i);
+            }
+        }
+        for (Entry entry : transaction) {
+            operations.add(entry.operation);
+            size += entry.size;
+        }
+        if (operations.isEmpty()) {
+            return;
+        }
+        try {
+            mBatchWriter.applyBatch(operations);
+        } catch (TransactionTooLargeException e) {
+            if (transaction.size() == 1) {
+                Log.e(TAG, "Operation of about " + size + " bytes is too large.", e);
+                fail(transaction);
+                return;
+            }
+            // Nothing has been applied, as the transaction was not delivered. Retry in halves,
+            // and keep the following transactions below the size which failed.
+            mSplitCount++;
+            mMaxTransactionSize = Math.max(MIN_TRANSACTION_SIZE,
+                    Math.min(mMaxTransactionSize, size / 2));
+            int middle = transaction.size() / 2;
+            applyTransaction(new ArrayList<>(transaction.subList(0, middle)));
+            applyTransaction(new ArrayList<>(transaction.subList(middle, transaction.size())));
+            return;
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Failed to insert programs.", e);
+            fail(transaction);
+            return;
+        } catch (RuntimeException e) {
+            fail(transaction);
+            throw e;
+        }
+        mTransactionCount++;
+        mOperationCount += transaction.size();
+        mByteCount += size;
+        for (Entry entry : transaction) {
+            mKindCounts[entry.kind]++;
+            complete(entry);
+        }
+    }
+
+    private static void fail(List<Entry> transaction) {
+        for (Entry entry : transaction) {
+            entry.owner.failed = true;
+        }
+        for (Entry entry : transaction) {
+            complete(entry);
+        }
+    }
+
+    private static void complete(Entry entry) {
+        if (--entry.owner.remaining == 0) {
+            entry.owner.callback.onApplied(!entry.owner.failed);
+        }
+    }
+
+    private static int estimateSize(Uri uri, ContentValues values) {
+        int size = OPERATION_OVERHEAD_SIZE + estimateStringSize(uri.toString());
+        if (values != null) {
+            size += estimateSize(values.valueSet());
+        }
+        return size;
+    }
+
+    /**
+     * Estimates the size of the values of a {@link ContentValues} in a {@link android.os.Parcel}.
+     */
+    static int estimateSize(Set<Map.Entry<String, Object>> values) {
+        int size = 0;
+        for (Map.Entry<String, Object> entry : values) {
+            size += ENTRY_OVERHEAD_SIZE + estimateStringSize(entry.getKey());
+            Object value = entry.getValue();
+            if (value instanceof String) {
+                size += estimateStringSize((String) value);
+            } else if (value instanceof byte[]) {
+                size += 4 + pad(((byte[]) value).length);
+            } else if (value != null) {
+                size += NUMBER_SIZE;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return The size of a string in a Parcel: its length, and its UTF-16 characters including a
+     * terminating null, padded to 4 bytes.
+     */
+    private static int estimateStringSize(String value) {
+        return 4 + pad((value.length() + 1) * 2);
+    }
+
+    private static int pad(int size) {
+        return (size + 3) & ~3;
+    }
+
+    private static class Owner {
+        final Callback callback;
+        int remaining;
+        boolean failed;
+
+        Owner(Callback callback, int operationCount) {
+            this.callback = callback;
+            this.remaining = operationCount;
+        }
+    }
+
+    private static class Entry {
+        final ContentProviderOperation operation;
+        final int size;
+        final int kind;
+        final Owner owner;
+
+        Entry(ContentProviderOperation operation, int size, int kind, Owner owner) {
+            this.operation = operation;
+            this.size = size;
+            this.kind = kind;
+            this.owner = owner;
+        }
+    }
+}
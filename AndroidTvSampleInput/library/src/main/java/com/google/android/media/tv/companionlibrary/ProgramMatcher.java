@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Pairs the programs of a channel in the EPG with new programs so that the EPG is updated with
+ * as few operations as possible. An old program which is paired with an identical new program is
+ * kept, one which is paired with a different one is updated in place, and the other programs are
+ * deleted or inserted.
+ * <p>
+ * Programs are paired across a shifted window: an old and a new program may be paired if their
+ * start times are less than a maximum shift apart, even if they do not overlap. When an event
+ * runs late and pushes back the rest of the schedule, the programs after it are updated instead
+ * of being deleted and inserted again, which keeps their settings, such as recordings.
+ * <p>
+ * Pairs keep the chronological order of both schedules. Among those, the matcher finds the pairs
+ * which need the fewest operations, preferring pairs which are shifted less. The programs are
+ * only compared for candidate pairs within the window, so this takes O(p log p) time for p
+ * candidate pairs.
+ */
+final class ProgramMatcher {
+    /** The old program is not paired, and is deleted. */
+    static final int UNMATCHED = -1;
+
+    // Weights of pairs: an identical pair saves a delete and an insert, an updated pair saves one
+    // operation. The shift of an updated pair in minutes lowers its weight, so that a less
+    // shifted pair is preferred, but the shifts of all pairs add up to less than one operation.
+    private static final long OPERATION_WEIGHT = 1L << 32;
+    private static final long MINUTE_MS = 60 * 1000;
+
+    /**
+     * Compares old and new programs, by their index in the schedules given to
+     * {@link #match(long[], long[], long, Comparison)}.
+     */
+    interface Comparison {
+        /**
+         * @return Whether the programs are identical, so the old one can be kept as it is.
+         */
+        boolean isSame(int oldIndex, int newIndex);
+
+        /**
+         * Called for pairs of programs which are not identical.
+         *
+         * @return Whether the old program can be updated with the new one.
+         */
+        boolean canUpdate(int oldIndex, int newIndex);
+    }
+
+    private ProgramMatcher() {
+    }
+
+    /**
+     * @param oldStartTimes The start times of the old programs, in chronological order.
+     * @param newStartTimes The start times of the new programs, in chronological order.
+     * @param maxShiftMs The largest difference between the start times of a pair of programs.
+     * @return For each old program, the index of the new program it is paired with, or
+     * {@link #UNMATCHED}. Each new program is paired with at most one old program.
+     */
+    static int[] match(long[] oldStartTimes, long[] newStartTimes, long maxShiftMs,
+            Comparison comparison) {
+        List<long[]> pairs = findPairs(oldStartTimes, newStartTimes, maxShiftMs, comparison);
+        // Find the heaviest chain of pairs in which both indexes increase. Pairs are sorted by
+        // old index, and by decreasing new index for the same old index, so that pairs of the
+        // same old program never chain. A Fenwick tree over the new index holds the heaviest
+        // chain which ends before each new program.
+        Collections.sort(pairs, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                if (a[0] != b[0]) {
+                    return Long.compare(a[0], b[0]);
+                }
+                return Long.compare(b[1], a[1]);
+            }
+        });
+        int newCount = newStartTimes.length;
+        long[] treeWeights = new long[newCount + 1];
+        int[] treePairs = new int[newCount + 1];
+        Arrays.fill(treePairs, -1);
+        long[] chainWeights = new long[pairs.size()];
+        int[] previous = new int[pairs.size()];
+        int best = -1;
+        for (int p = 0; p < pairs.size(); p++) {
+            long[] pair = pairs.get(p);
+            int newIndex = (int) pair[1];
+            // The heaviest chain which ends with a new index below this one
+            long weight = 0;
+            int previousPair = -1;
+            for (int i = newIndex; i > 0; i -= i & -i) {
+                if (treePairs[i] >= 0 && treeWeights[i] > weight) {
+                    weight = treeWeights[i];
+                    previousPair = treePairs[i];
+                }
+            }
+            chainWeights[p] = weight + pair[2];
+            previous[p] = previousPair;
+            for (int i = newIndex + 1; i <= newCount; i += i & -i) {
+                if (treePairs[i] < 0 || chainWeights[p] > treeWeights[i]) {
+                    treeWeights[i] = chainWeights[p];
+                    treePairs[i] = p;
+                }
+            }
+            if (best < 0 || chainWeights[p] > chainWeights[best]) {
+                best = p;
+            }
+        }
+        int[] matches = new int[oldStartTimes.length];
+        Arrays.fill(matches, UNMATCHED);
+        for (int p = best; p >= 0; p = previous[p]) {
+            matches[(int) pairs.get(p)[0]] = (int) pairs.get(p)[1];
+        }
+        return matches;
+    }
+
+    /**
+     * @return The candidate pairs as {old index, new index, weight}.
+     */
+    private static List<long[]> findPairs(long[] oldStartTimes, long[] newStartTimes,
+            long maxShiftMs, Comparison comparison) {
+        List<long[]> pairs = new ArrayList<>();
+        int firstNew = 0;
+        for (int oldIndex = 0; oldIndex < oldStartTimes.length; oldIndex++) {
+            long oldStartMs = oldStartTimes[oldIndex];
+            while (firstNew < newStartTimes.length
+                    && newStartTimes[firstNew] < oldStartMs - maxShiftMs) {
+                firstNew++;
+            }
+            int lastNew = firstNew;
+            while (lastNew < newStartTimes.length
+                    && newStartTimes[lastNew] <= oldStartMs + maxShiftMs) {
+                lastNew++;
+            }
+            // An identical program is always the best pair of an old program, so the others are
+            // not compared.
+            boolean same = false;
+            for (int newIndex = firstNew; newIndex < lastNew; newIndex++) {
+                if (comparison.isSame(oldIndex, newIndex)) {
+                    pairs.add(new long[] {oldIndex, newIndex, 2 * OPERATION_WEIGHT});
+                    same = true;
+                }
+            }
+            if (same) {
+                continue;
+            }
+            for (int newIndex = firstNew; newIndex < lastNew; newIndex++) {
+                if (comparison.canUpdate(oldIndex, newIndex)) {
+                    long shiftMinutes = Math.abs(newStartTimes[newIndex] - oldStartMs) / MINUTE_MS;
+                    pairs.add(new long[] {oldIndex, newIndex, OPERATION_WEIGHT - shiftMinutes});
+                }
+            }
+        }
+        return pairs;
+    }
+}
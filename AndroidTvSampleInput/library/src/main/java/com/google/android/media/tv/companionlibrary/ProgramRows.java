@@ -0,0 +1,294 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.media.tv.TvContract;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.google.android.media.tv.companionlibrary.model.Program;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The programs of a channel in the EPG, in chronological order, with only the columns which the
+ * sync needs to compare them to new programs: the row id, start and end time and title of each
+ * program, and its {@link Program#getFingerprint() fingerprint}.
+ * <p>
+ * On Android N and above, the fingerprint is stored in {@link Program#COLUMN_FINGERPRINT} when a
+ * program is written, so only these columns are read. Programs written without a fingerprint
+ * never match a new program, so they are updated once. Below Android N, every column is read
+ * to compute the fingerprint, as there is no column to store it in. Only the columns above are
+ * kept from these rows, and {@link EpgSnapshot} reads them for a few channels at a time, so the
+ * full rows only go through the cursor window of one query.
+ * <p>
+ * Rows are read from a cursor one at a time and kept in arrays, so the programs are not decoded
+ * into {@link Program} objects. A program whose fingerprint matches the one of a new program
+ * does not need to be written again. Only the programs which may be updated are decoded, with a
+ * separate query.
+ */
+final class ProgramRows {
+    private static final String TAG = "ProgramRows";
+
+    private static final boolean FINGERPRINT_STORED =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
+
+    /** The columns to read. */
+    static final String[] PROJECTION = FINGERPRINT_STORED
+            ? new String[] {
+                    TvContract.Programs._ID,
+                    TvContract.Programs.COLUMN_CHANNEL_ID,
+                    TvContract.Programs.COLUMN_TITLE,
+                    TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS,
+                    TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS,
+                    Program.COLUMN_FINGERPRINT
+            }
+            : Program.PROJECTION;
+
+    private static final int ID_INDEX = indexOf(TvContract.Programs._ID);
+    private static final int CHANNEL_ID_INDEX = indexOf(TvContract.Programs.COLUMN_CHANNEL_ID);
+    private static final int TITLE_INDEX = indexOf(TvContract.Programs.COLUMN_TITLE);
+    private static final int START_TIME_INDEX =
+            indexOf(TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS);
+    private static final int END_TIME_INDEX =
+            indexOf(TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS);
+    private static final int FINGERPRINT_INDEX = indexOf(Program.COLUMN_FINGERPRINT);
+
+    // Below the limit of 999 arguments of a SQLite statement
+    private static final int MAX_QUERY_ARGUMENTS = 500;
+
+    private final long mChannelId;
+    private int mSize;
+    private long[] mIds = new long[16];
+    private long[] mStartTimes = new long[16];
+    private long[] mEndTimes = new long[16];
+    private String[] mTitles = new String[16];
+    private long[] mFingerprints = new long[16];
+    private boolean[] mHasFingerprint = new boolean[16];
+    /** The programs which have been decoded, keyed by their row id. */
+    private final LongSparseArray<Program> mDecoded = new LongSparseArray<>();
+
+    /**
+     * @param channelId The row id of the channel of the programs.
+     */
+    ProgramRows(long channelId) {
+        mChannelId = channelId;
+    }
+
+    /**
+     * Reads the programs of a channel from the EPG.
+     *
+     * @return The programs, or no programs if they cannot be read.
+     */
+    static ProgramRows query(ContentResolver resolver, long channelId) {
+        ProgramRows rows = new ProgramRows(channelId);
+        Uri uri = TvContract.buildProgramsUriForChannel(channelId);
+        // TvProvider returns programs in chronological order by default.
+        try (Cursor cursor = resolver.query(uri, PROJECTION, null, null, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                rows.add(cursor);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to get programs for channel " + channelId, e);
+        }
+        return rows;
+    }
+
+    /**
+     * @return The channel id of the current row of a cursor over {@link #PROJECTION}.
+     */
+    static long getChannelId(Cursor cursor) {
+        return cursor.getLong(CHANNEL_ID_INDEX);
+    }
+
+    /**
+     * Adds the current row of a cursor over {@link #PROJECTION}.
+     */
+    void add(Cursor cursor) {
+        if (mSize == mIds.length) {
+            int capacity = mSize * 2;
+            mIds = Arrays.copyOf(mIds, capacity);
+            mStartTimes = Arrays.copyOf(mStartTimes, capacity);
+            mEndTimes = Arrays.copyOf(mEndTimes, capacity);
+            mTitles = Arrays.copyOf(mTitles, capacity);
+            mFingerprints = Arrays.copyOf(mFingerprints, capacity);
+            mHasFingerprint = Arrays.copyOf(mHasFingerprint, capacity);
+        }
+        mIds[mSize] = cursor.getLong(ID_INDEX);
+        mStartTimes[mSize] = cursor.getLong(START_TIME_INDEX);
+        mEndTimes[mSize] = cursor.getLong(END_TIME_INDEX);
+        mTitles[mSize] = cursor.getString(TITLE_INDEX);
+        if (!FINGERPRINT_STORED) {
+            mFingerprints[mSize] = Program.getFingerprint(cursor);
+            mHasFingerprint[mSize] = true;
+        } else if (!cursor.isNull(FINGERPRINT_INDEX)) {
+            mFingerprints[mSize] = cursor.getLong(FINGERPRINT_INDEX);
+            mHasFingerprint[mSize] = true;
+        } else {
+            mHasFingerprint[mSize] = false;
+        }
+        mSize++;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    long getId(int index) {
+        return mIds[index];
+    }
+
+    long getStartTimeUtcMillis(int index) {
+        return mStartTimes[index];
+    }
+
+    long getEndTimeUtcMillis(int index) {
+        return mEndTimes[index];
+    }
+
+    /**
+     * @return Whether the program of a row has the given fingerprint.
+     */
+    boolean matches(int index, long fingerprint) {
+        return mHasFingerprint[index] && mFingerprints[index] == fingerprint;
+    }
+
+    /**
+     * Decodes the programs in the given rows which do not have any of the given fingerprints,
+     * with one query. These are the programs which may be updated by the sync, while the other
+     * ones are left as they are.
+     *
+     * @param fromIndex The first row to decode.
+     * @param toIndex The row after the last one to decode.
+     * @param fingerprints The fingerprints of the new programs.
+     */
+    void decodeChanged(ContentResolver resolver, int fromIndex, int toIndex,
+            Set<Long> fingerprints) {
+        List<String> ids = new ArrayList<>();
+        for (int i = fromIndex; i < toIndex; i++) {
+            if ((!mHasFingerprint[i] || !fingerprints.contains(mFingerprints[i]))
+                    && mDecoded.get(mIds[i]) == null) {
+                ids.add(String.valueOf(mIds[i]));
+            }
+        }
+        for (int start = 0; start < ids.size(); start += MAX_QUERY_ARGUMENTS) {
+            List<String> args = ids.subList(start,
+                    Math.min(ids.size(), start + MAX_QUERY_ARGUMENTS));
+            StringBuilder selection = new StringBuilder(TvContract.Programs._ID).append(" IN (");
+            for (int i = 0; i < args.size(); i++) {
+                selection.append(i == 0 ? "?" : ",?");
+            }
+            selection.append(')');
+            decode(resolver, TvContract.Programs.CONTENT_URI, selection.toString(),
+                    args.toArray(new String[args.size()]));
+        }
+    }
+
+    /**
+     * @return The program of a row with all of its columns. It is read from the EPG if it has
+     * not been decoded yet.
+     */
+    Program getProgram(ContentResolver resolver, int index) {
+        long id = mIds[index];
+        if (mDecoded.get(id) == null) {
+            decode(resolver, TvContract.buildProgramUri(id), null, null);
+        }
+        Program program = mDecoded.get(id);
+        if (program == null) {
+            // The program has been removed since it was read.
+            program = new Program.Builder()
+                    .setChannelId(mChannelId)
+                    .setTitle(mTitles[index])
+                    .setStartTimeUtcMillis(mStartTimes[index])
+                    .setEndTimeUtcMillis(mEndTimes[index])
+                    .build();
+        }
+        return program;
+    }
+
+    /**
+     * Returns the values which update a program to a new one: the columns whose new value differs
+     * from the old program, and the fingerprint of the new program. Unchanged columns, which may
+     * hold long descriptions and blobs, are not written again.
+     *
+     * @param oldProgram The program in the EPG, with all of its columns.
+     * @param newValues The values of the new program, from {@link Program#toContentValues()}.
+     * @return The values to update the row of the old program with.
+     */
+    static ContentValues getUpdateValues(Program oldProgram, ContentValues newValues) {
+        ContentValues oldValues = oldProgram.toContentValues();
+        ContentValues values = new ContentValues();
+        for (Map.Entry<String, Object> entry : newValues.valueSet()) {
+            String column = entry.getKey();
+            Object value = entry.getValue();
+            if (TvContract.Programs._ID.equals(column)) {
+                continue;
+            }
+            // The old row may have been written without a fingerprint.
+            if (Program.COLUMN_FINGERPRINT.equals(column) || !oldValues.containsKey(column)
+                    || !Objects.deepEquals(oldValues.get(column), value)) {
+                putValue(values, column, value);
+            }
+        }
+        return values;
+    }
+
+    private static void putValue(ContentValues values, String column, Object value) {
+        if (value == null) {
+            values.putNull(column);
+        } else if (value instanceof String) {
+            values.put(column, (String) value);
+        } else if (value instanceof Long) {
+            values.put(column, (Long) value);
+        } else if (value instanceof Integer) {
+            values.put(column, (Integer) value);
+        } else if (value instanceof byte[]) {
+            values.put(column, (byte[]) value);
+        } else if (value instanceof Boolean) {
+            values.put(column, (Boolean) value);
+        } else {
+            values.put(column, value.toString());
+        }
+    }
+
+    private void decode(ContentResolver resolver, Uri uri, String selection,
+            String[] selectionArgs) {
+        try (Cursor cursor = resolver.query(uri, Program.PROJECTION, selection, selectionArgs,
+                null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                Program program = Program.fromCursor(cursor);
+                mDecoded.put(program.getId(), program);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to get programs of channel " + mChannelId, e);
+        }
+    }
+
+    private static int indexOf(String column) {
+        return Arrays.asList(PROJECTION).indexOf(column);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+
+import com.google.android.media.tv.companionlibrary.model.Channel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends {@link EpgSyncJobService#SYNC_SCANNED} broadcasts for the channels of a sync, at most one
+ * every {@link #INTERVAL_MILLIS}. Each broadcast holds all channels scanned since the previous
+ * one, so a large lineup does not send a broadcast, and update the setup UI, per channel.
+ * <p>
+ * Channels can be added from any thread. Broadcasts are sent on the main thread.
+ */
+final class ScanProgressReporter {
+    /** The minimum interval between two broadcasts. */
+    static final long INTERVAL_MILLIS = 250;
+
+    private final Context mContext;
+    private final String mInputId;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mSend = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private List<String> mDisplayNames = new ArrayList<>();
+    private List<String> mDisplayNumbers = new ArrayList<>();
+    private int mChannelsScanned;
+    private int mChannelCount;
+    private boolean mSendScheduled;
+    private long mLastSendTimeMs = Long.MIN_VALUE / 2;
+
+    ScanProgressReporter(Context context, String inputId) {
+        mContext = context;
+        mInputId = inputId;
+    }
+
+    /**
+     * Reports that a channel has been scanned. It is sent with the next broadcast.
+     *
+     * @param channelsScanned The number of channels which have been scanned, including this one.
+     * @param channelCount The number of channels of the input.
+     */
+    synchronized void add(Channel channel, int channelsScanned, int channelCount) {
+        mDisplayNames.add(channel.getDisplayName());
+        mDisplayNumbers.add(channel.getDisplayNumber());
+        mChannelsScanned = Math.max(mChannelsScanned, channelsScanned);
+        mChannelCount = channelCount;
+        if (!mSendScheduled) {
+            mSendScheduled = true;
+            mHandler.postDelayed(mSend, Math.max(0,
+                    mLastSendTimeMs + INTERVAL_MILLIS - SystemClock.uptimeMillis()));
+        }
+    }
+
+    /**
+     * Sends the channels which have been scanned since the last broadcast right away.
+     */
+    void flush() {
+        List<String> displayNames;
+        List<String> displayNumbers;
+        int channelsScanned;
+        int channelCount;
+        synchronized (this) {
+            mHandler.removeCallbacks(mSend);
+            mSendScheduled = false;
+            if (mDisplayNames.isEmpty()) {
+                return;
+            }
+            displayNames = mDisplayNames;
+            displayNumbers = mDisplayNumbers;
+            mDisplayNames = new ArrayList<>();
+            mDisplayNumbers = new ArrayList<>();
+            channelsScanned = mChannelsScanned;
+            channelCount = mChannelCount;
+            mLastSendTimeMs = SystemClock.uptimeMillis();
+        }
+        int last = displayNames.size() - 1;
+        Intent intent = new Intent(EpgSyncJobService.ACTION_SYNC_STATUS_CHANGED);
+        intent.putExtra(EpgSyncJobService.BUNDLE_KEY_INPUT_ID, mInputId);
+        // The index of the last channel, as in a broadcast for a single channel.
+        intent.putExtra(EpgSyncJobService.BUNDLE_KEY_CHANNELS_SCANNED, channelsScanned - 1);
+        intent.putExtra(EpgSyncJobService.BUNDLE_KEY_CHANNEL_COUNT, channelCount);
+        intent.putExtra(EpgSyncJobService.BUNDLE_KEY_SCANNED_CHANNEL_DISPLAY_NAME,
+                displayNames.get(last));
+        intent.putExtra(EpgSyncJobService.BUNDLE_KEY_SCANNED_CHANNEL_DISPLAY_NUMBER,
+                displayNumbers.get(last));
+        intent.putExtra(EpgSyncJobService.BUNDLE_KEY_SCANNED_CHANNEL_DISPLAY_NAMES,
+                displayNames.toArray(new String[displayNames.size()]));
+        intent.putExtra(EpgSyncJobService.BUNDLE_KEY_SCANNED_CHANNEL_DISPLAY_NUMBERS,
+                displayNumbers.toArray(new String[displayNumbers.size()]));
+        intent.putExtra(EpgSyncJobService.SYNC_STATUS, EpgSyncJobService.SYNC_SCANNED);
+        LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
+    }
+}
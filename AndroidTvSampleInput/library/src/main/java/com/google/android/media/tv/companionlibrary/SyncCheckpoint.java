@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+/**
+ * Remembers the progress of a sync of an input which has not completed: its time window and the
+ * channels whose programs have been written for it. When the job is stopped, or the process dies,
+ * the next sync of the same duration resumes in the same window and skips those channels. The
+ * {@link SyncStats} of the runs so far are kept with the progress, so that they add up over the
+ * whole sync.
+ * <p>
+ * Progress is saved at most every {@link #SAVE_INTERVAL_MILLIS} while the sync runs, and when it
+ * stops. The store is thread safe, as channels are written by the threads of an
+ * {@link EpgSyncPipeline}.
+ */
+final class SyncCheckpoint {
+    private static final String TAG = "SyncCheckpoint";
+    private static final String PREFERENCE_SYNC_CHECKPOINTS =
+            EpgSyncJobService.PREFERENCE_EPG_SYNC + ".sync_checkpoints";
+    private static final char SEPARATOR = '/';
+    private static final char CHANNEL_SEPARATOR = ',';
+
+    /** The interval between saves of the progress while a sync runs. */
+    static final long SAVE_INTERVAL_MILLIS = 1000 * 5; // 5 seconds
+    /**
+     * The age after which a checkpoint is dropped, and the sync starts over. The programs of the
+     * window change over time, so the channels written long ago should be written again.
+     */
+    private static final long MAX_AGE_MILLIS = 1000 * 60 * 60 * 6; // 6 hours
+
+    private final SharedPreferences mPreferences;
+    private final String mKey;
+    private long mStartMs;
+    private long mEndMs;
+    /** The channels which have been written in the window, as keys. */
+    private final LongSparseArray<Boolean> mCompletedChannels = new LongSparseArray<>();
+    /** The flattened stats of the runs of the sync so far, or {@code null}. */
+    private String mStats;
+    private boolean mDirty;
+    private long mLastSaveTimeMs;
+
+    private SyncCheckpoint(SharedPreferences preferences, String inputId) {
+        mPreferences = preferences;
+        mKey = inputId;
+    }
+
+    /**
+     * Loads the checkpoint of an input, or starts a new one if there is none for a sync of the
+     * given duration which started recently.
+     *
+     * @param nowMs The current time.
+     * @param durationMs The duration of the window of the sync.
+     */
+    static SyncCheckpoint load(Context context, String inputId, long nowMs, long durationMs) {
+        SyncCheckpoint checkpoint = new SyncCheckpoint(context.getSharedPreferences(
+                PREFERENCE_SYNC_CHECKPOINTS, Context.MODE_PRIVATE), inputId);
+        String value = checkpoint.mPreferences.getString(inputId, null);
+        if (value != null && !checkpoint.parse(value)) {
+            Log.w(TAG, "Ignoring checkpoint " + inputId + "=" + value);
+        }
+        if (checkpoint.mEndMs - checkpoint.mStartMs != durationMs
+                || nowMs - checkpoint.mStartMs >= MAX_AGE_MILLIS
+                || nowMs < checkpoint.mStartMs) {
+            checkpoint.mStartMs = nowMs;
+            checkpoint.mEndMs = nowMs + durationMs;
+            checkpoint.mCompletedChannels.clear();
+            checkpoint.mStats = null;
+        }
+        return checkpoint;
+    }
+
+    /**
+     * @return The start time of the window to sync.
+     */
+    long getStartTimeMs() {
+        return mStartMs;
+    }
+
+    /**
+     * @return The end time of the window to sync.
+     */
+    long getEndTimeMs() {
+        return mEndMs;
+    }
+
+    /**
+     * @return Whether the sync resumes a sync which did not complete.
+     */
+    synchronized boolean isResumed() {
+        return mCompletedChannels.size() > 0;
+    }
+
+    /**
+     * @return The stats of the earlier runs of the sync, or {@code null} if there are none.
+     */
+    synchronized SyncStats getStats() {
+        return mStats != null ? SyncStats.unflatten(mStats) : null;
+    }
+
+    /**
+     * Records the stats of the sync so far, including the earlier runs, if it has written any
+     * channel which the next run skips. They are saved with the progress.
+     */
+    synchronized void setStats(SyncStats stats) {
+        if (mCompletedChannels.size() > 0) {
+            mStats = stats.flatten();
+            mDirty = true;
+        }
+    }
+
+    /**
+     * @return Whether the programs of the channel have been written in the window.
+     */
+    synchronized boolean isCompleted(long channelId) {
+        return mCompletedChannels.get(channelId) != null;
+    }
+
+    /**
+     * Records that the programs of the channel have been written in the window, and saves the
+     * progress if it has not been saved for a while.
+     */
+    synchronized void complete(long channelId) {
+        mCompletedChannels.put(channelId, Boolean.TRUE);
+        mDirty = true;
+        if (SystemClock.elapsedRealtime() - mLastSaveTimeMs >= SAVE_INTERVAL_MILLIS) {
+            save();
+        }
+    }
+
+    /**
+     * Saves the progress, so that the next sync resumes from it.
+     */
+    synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+        StringBuilder value = new StringBuilder()
+                .append(mStartMs).append(SEPARATOR).append(mEndMs).append(SEPARATOR);
+        for (int i = 0; i < mCompletedChannels.size(); ++i) {
+            if (i > 0) {
+                value.append(CHANNEL_SEPARATOR);
+            }
+            value.append(mCompletedChannels.keyAt(i));
+        }
+        if (mStats != null) {
+            value.append(SEPARATOR).append(mStats);
+        }
+        mPreferences.edit().putString(mKey, value.toString()).apply();
+        mDirty = false;
+        mLastSaveTimeMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Drops the checkpoint once every channel has been synced, so the next sync starts over.
+     */
+    synchronized void clear() {
+        mCompletedChannels.clear();
+        mStats = null;
+        mDirty = false;
+        mPreferences.edit().remove(mKey).apply();
+    }
+
+    private boolean parse(String value) {
+        int first = value.indexOf(SEPARATOR);
+        int second = value.indexOf(SEPARATOR, first + 1);
+        int third = value.indexOf(SEPARATOR, second + 1);
+        try {
+            mStartMs = Long.parseLong(value.substring(0, first));
+            mEndMs = Long.parseLong(value.substring(first + 1, second));
+            String channels = value.substring(second + 1, third < 0 ? value.length() : third);
+            mStats = third < 0 ? null : value.substring(third + 1);
+            int start = 0;
+            while (start < channels.length()) {
+                int end = channels.indexOf(CHANNEL_SEPARATOR, start);
+                if (end < 0) {
+                    end = channels.length();
+                }
+                mCompletedChannels.put(Long.parseLong(channels.substring(start, end)),
+                        Boolean.TRUE);
+                start = end + 1;
+            }
+            return true;
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            mStartMs = 0;
+            mEndMs = 0;
+            mCompletedChannels.clear();
+            mStats = null;
+            return false;
+        }
+    }
+}
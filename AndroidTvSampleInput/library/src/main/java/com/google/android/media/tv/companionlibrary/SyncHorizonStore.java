@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.LongSparseArray;
+
+/**
+ * Remembers, for each channel of an input, the end time of the last program written to the EPG,
+ * and when every channel of the input was last fully reconciled with the EPG. An incremental sync
+ * only reconciles the programs of the near future, and inserts the programs after this horizon.
+ * <p>
+ * The store is thread safe, as channels are written by the threads of an {@link EpgSyncPipeline}.
+ */
+final class SyncHorizonStore {
+    private static final String PREFERENCE_SYNC_HORIZONS =
+            EpgSyncJobService.PREFERENCE_EPG_SYNC + ".sync_horizons";
+    private static final String KEY_SUFFIX_LAST_FULL_SYNC = "/last_full_sync";
+
+    private final SharedPreferences mPreferences;
+    private final String mLastFullSyncKey;
+    /** End time of the last written program of each channel. */
+    private final ChannelValueStore mHorizons;
+    private long mLastFullSyncTimeMs;
+    private boolean mLastFullSyncChanged;
+
+    private SyncHorizonStore(SharedPreferences preferences, String inputId) {
+        mPreferences = preferences;
+        mLastFullSyncKey = inputId + KEY_SUFFIX_LAST_FULL_SYNC;
+        mHorizons = ChannelValueStore.load(preferences, inputId, 1);
+        mLastFullSyncTimeMs = preferences.getLong(mLastFullSyncKey, Long.MIN_VALUE);
+    }
+
+    /**
+     * Loads the horizons of the given input.
+     */
+    static SyncHorizonStore load(Context context, String inputId) {
+        return new SyncHorizonStore(context.getSharedPreferences(PREFERENCE_SYNC_HORIZONS,
+                Context.MODE_PRIVATE), inputId);
+    }
+
+    /**
+     * @return The start time of the last sync which reconciled every channel with the EPG over its
+     * whole window, or {@link Long#MIN_VALUE} if there has been none.
+     */
+    synchronized long getLastFullSyncTimeMs() {
+        return mLastFullSyncTimeMs;
+    }
+
+    /**
+     * Records that every channel has been reconciled by a sync which started at the given time.
+     */
+    synchronized void setLastFullSyncTimeMs(long startTimeMs) {
+        mLastFullSyncChanged |= startTimeMs != mLastFullSyncTimeMs;
+        mLastFullSyncTimeMs = startTimeMs;
+    }
+
+    /**
+     * @return The end time of the last program written for the channel, or {@link Long#MIN_VALUE}
+     * if it is not known.
+     */
+    long getHorizonMs(long channelId) {
+        long[] horizon = mHorizons.get(channelId);
+        return horizon != null ? horizon[0] : Long.MIN_VALUE;
+    }
+
+    /**
+     * Records that programs have been written for the channel up to the given time. The horizon
+     * never moves back, as the programs after the new ones are left in the EPG.
+     */
+    synchronized void extend(long channelId, long endTimeMs) {
+        mHorizons.put(channelId, Math.max(getHorizonMs(channelId), endTimeMs));
+    }
+
+    /**
+     * Forgets the channel, for instance when its programs could not be written, so it is fully
+     * reconciled on the next sync.
+     */
+    synchronized void remove(long channelId) {
+        mHorizons.remove(channelId);
+    }
+
+    /**
+     * Keeps only the given channels, and saves the horizons if they have changed.
+     */
+    synchronized void save(LongSparseArray<?> channels) {
+        mHorizons.save(channels);
+        if (mLastFullSyncChanged) {
+            mPreferences.edit().putLong(mLastFullSyncKey, mLastFullSyncTimeMs).apply();
+            mLastFullSyncChanged = false;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where a run of {@link EpgSyncJobService} spent its time, and how much it wrote to the EPG.
+ * <p>
+ * The stats of a run are sent with {@link EpgSyncJobService#SYNC_FINISHED} as the extra
+ * {@link EpgSyncJobService#BUNDLE_KEY_SYNC_STATS}, and the stats of the last run of an input can
+ * be read with {@link EpgSyncJobService#getLastSyncStats(android.content.Context, String)}.
+ * <p>
+ * Channels are synced on several threads, so the time of a phase is summed over all threads, and
+ * the times of the phases may add up to more than the duration of the run.
+ * <p>
+ * A sync which continues in a new job, because the previous one ran out of time, is reported as
+ * one run: its stats are the totals of all of its jobs, from the start of the first one.
+ */
+public final class SyncStats implements Parcelable {
+    /**
+     * Fetching and parsing {@link EpgSyncJobService#openProgramFeed()}, including the callbacks
+     * of the parse. The time the parse waits for the programs it has read to be taken by the
+     * pipeline, while other channels are compared and written, is not included.
+     */
+    public static final int PHASE_FEED_FETCH = 0;
+    /** {@link EpgSyncJobService#getChannels()}. */
+    public static final int PHASE_GET_CHANNELS = 1;
+    /** Inserting, updating and deleting channels. */
+    public static final int PHASE_CHANNEL_UPSERT = 2;
+    /** Writing the TIF extension of channels. */
+    public static final int PHASE_TIF_EXTENSION_INSERT = 3;
+    /** Fetching the programs of channels from the app. */
+    public static final int PHASE_PROGRAM_FETCH = 4;
+    /** Reading the programs which are in the EPG. */
+    public static final int PHASE_OLD_PROGRAM_READ = 5;
+    /** Comparing the programs with the ones in the EPG. */
+    public static final int PHASE_DIFF = 6;
+    /** Applying transactions to the EPG. */
+    public static final int PHASE_APPLY_BATCH = 7;
+    private static final int PHASE_COUNT = 8;
+
+    /** Programs inserted into the EPG. */
+    public static final int COUNTER_ROWS_INSERTED = 0;
+    /** Programs updated in the EPG. */
+    public static final int COUNTER_ROWS_UPDATED = 1;
+    /** Programs deleted from the EPG. */
+    public static final int COUNTER_ROWS_DELETED = 2;
+    /** Transactions applied to the EPG. */
+    public static final int COUNTER_TRANSACTIONS = 3;
+    /** Estimated size of the transactions applied to the EPG in bytes. */
+    public static final int COUNTER_TRANSACTION_BYTES = 4;
+    private static final int COUNTER_COUNT = 5;
+
+    private static final String[] PHASE_NAMES = {"feedFetch", "getChannels", "channelUpsert",
+            "tifExtensionInsert", "programFetch", "oldProgramRead", "diff", "applyBatch"};
+    private static final String[] COUNTER_NAMES = {"rowsInserted", "rowsUpdated", "rowsDeleted",
+            "transactions", "transactionBytes"};
+    private static final char SEPARATOR = ',';
+
+    private volatile long mStartTimeMs;
+    private volatile long mDurationMs;
+    private final AtomicLongArray mPhaseNanos = new AtomicLongArray(PHASE_COUNT);
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+
+    /**
+     * @param startTimeMs The time at which the run started.
+     * @hide
+     */
+    public SyncStats(long startTimeMs) {
+        mStartTimeMs = startTimeMs;
+    }
+
+    /**
+     * @return The time at which the run started.
+     */
+    public long getStartTimeMs() {
+        return mStartTimeMs;
+    }
+
+    /**
+     * @return How long the run took in milliseconds.
+     */
+    public long getDurationMs() {
+        return mDurationMs;
+    }
+
+    /**
+     * @param phase One of the {@code PHASE_} constants.
+     * @return The time spent in the phase in milliseconds, summed over all threads.
+     */
+    public long getPhaseMs(int phase) {
+        return mPhaseNanos.get(phase) / 1000000;
+    }
+
+    /**
+     * @param counter One of the {@code COUNTER_} constants.
+     * @return The value of the counter.
+     */
+    public long getCount(int counter) {
+        return mCounters.get(counter);
+    }
+
+    /**
+     * Adds the time since the given start time to a phase.
+     *
+     * @param phase One of the {@code PHASE_} constants.
+     * @param startNanos The value of {@link System#nanoTime()} when the phase started.
+     * @hide
+     */
+    public void addPhaseTime(int phase, long startNanos) {
+        mPhaseNanos.addAndGet(phase, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @param counter One of the {@code COUNTER_} constants.
+     * @hide
+     */
+    public void addCount(int counter, long delta) {
+        mCounters.addAndGet(counter, delta);
+    }
+
+    /**
+     * Adds the stats of the earlier jobs of a sync which this job continues.
+     */
+    void addEarlierJobs(SyncStats stats) {
+        mStartTimeMs = Math.min(mStartTimeMs, stats.mStartTimeMs);
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mPhaseNanos.addAndGet(i, stats.mPhaseNanos.get(i));
+        }
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            mCounters.addAndGet(i, stats.mCounters.get(i));
+        }
+    }
+
+    /**
+     * Records the end of the run.
+     *
+     * @param endTimeMs The time at which the run ended.
+     */
+    void finish(long endTimeMs) {
+        mDurationMs = endTimeMs - mStartTimeMs;
+    }
+
+    /**
+     * @return The stats as a string which {@link #unflatten(String)} reads.
+     */
+    String flatten() {
+        StringBuilder builder = new StringBuilder()
+                .append(mStartTimeMs).append(SEPARATOR).append(mDurationMs);
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            builder.append(SEPARATOR).append(mPhaseNanos.get(i));
+        }
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            builder.append(SEPARATOR).append(mCounters.get(i));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return The stats written by {@link #flatten()}, or {@code null} if the string is not valid.
+     */
+    static SyncStats unflatten(String value) {
+        String[] values = value.split(String.valueOf(SEPARATOR));
+        if (values.length != 2 + PHASE_COUNT + COUNTER_COUNT) {
+            return null;
+        }
+        try {
+            SyncStats stats = new SyncStats(Long.parseLong(values[0]));
+            stats.mDurationMs = Long.parseLong(values[1]);
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                stats.mPhaseNanos.set(i, Long.parseLong(values[2 + i]));
+            }
+            for (int i = 0; i < COUNTER_COUNT; i++) {
+                stats.mCounters.set(i, Long.parseLong(values[2 + PHASE_COUNT + i]));
+            }
+            return stats;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("SyncStats{durationMs=").append(mDurationMs);
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            builder.append(", ").append(PHASE_NAMES[i]).append("Ms=").append(getPhaseMs(i));
+        }
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            builder.append(", ").append(COUNTER_NAMES[i]).append('=').append(getCount(i));
+        }
+        return builder.append('}').toString();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(flatten());
+    }
+
+    public static final Creator<SyncStats> CREATOR = new Creator<SyncStats>() {
+        @Override
+        public SyncStats createFromParcel(Parcel in) {
+            return unflatten(in.readString());
+        }
+
+        @Override
+        public SyncStats[] newArray(int size) {
+            return new SyncStats[size];
+        }
+    };
+}
@@ -0,0 +1,552 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary;
+
+import android.media.tv.TvContentRating;
+import androidx.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.Program;
+import com.google.android.media.tv.companionlibrary.utils.ContentRatingCache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores a parsed {@link XmlTvParser.TvListing} in a compact binary file, so it can be loaded
+ * again without parsing its feed. The file holds a table of the distinct strings of the listing
+ * followed by one column per field, and is memory-mapped when it is read.
+ * <p>
+ * Every snapshot carries a key which identifies the feed it was created from, such as the ETag
+ * of the feed or a hash of its content from {@link #getContentHash(byte[])}. A snapshot is only
+ * read back for the same key. Only the fields {@link XmlTvParser} reads from a feed are stored.
+ * <p>
+ * The strings are decoded from the mapped file as the channels and programs which use them are
+ * read, so the string table is not copied to the heap.
+ */
+public final class TvListingSnapshot {
+    private static final String TAG = "TvListingSnapshot";
+
+    private static final int MAGIC = 0x54564c53; // "TVLS"
+    /** Increase when the layout of the file changes, so older snapshots are not read. */
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 6 * 4;
+    private static final int NULL_INDEX = -1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final TvContentRating[] NO_RATINGS = new TvContentRating[0];
+
+    private TvListingSnapshot() {
+    }
+
+    /**
+     * @return A key for the given feed content, for feeds which do not have an ETag.
+     */
+    public static String getContentHash(@NonNull byte[] content) {
+        MessageDigest digest = newContentDigest();
+        digest.update(content);
+        return getContentHash(digest);
+    }
+
+    /**
+     * @return A digest to pass the content of a feed to while it is read, such as through a
+     * {@link java.security.DigestInputStream}, so the feed does not have to be held in memory to
+     * get its key from {@link #getContentHash(MessageDigest)}.
+     */
+    public static MessageDigest newContentDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param digest A digest from {@link #newContentDigest()} which has been passed the whole
+     * content of a feed. It is reset.
+     * @return The same key for the feed content as {@link #getContentHash(byte[])}.
+     */
+    public static String getContentHash(@NonNull MessageDigest digest) {
+        StringBuilder hash = new StringBuilder("sha1:");
+        for (byte b : digest.digest()) {
+            hash.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Reads the key of a snapshot, for instance to make a conditional request for its feed.
+     *
+     * @param file The snapshot file.
+     * @return The key the snapshot was written with, or {@code null} if there is no readable
+     * snapshot.
+     */
+    public static String readKey(@NonNull File file) {
+        try {
+            Reader reader = Reader.open(file);
+            return reader == null ? null : reader.getKey();
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Unable to read the key of " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(File, String, XmlTvParser.TvListing)}.
+     *
+     * @param file The snapshot file.
+     * @param key The key of the current feed.
+     * @return The listing, or {@code null} if there is no snapshot for the given key.
+     */
+    public static XmlTvParser.TvListing read(@NonNull File file, @NonNull String key) {
+        try {
+            Reader reader = Reader.open(file);
+            if (reader == null || !key.equals(reader.getKey())) {
+                return null;
+            }
+            return reader.readListing();
+        } catch (IOException | RuntimeException e) {
+            // Also covers truncated files and indices out of range.
+            Log.w(TAG, "Unable to read " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads only the channels of a snapshot written by
+     * {@link #write(File, String, XmlTvParser.TvListing)}. Its programs are not read.
+     *
+     * @param file The snapshot file.
+     * @param key The key of the current feed.
+     * @return The channels, or {@code null} if there is no snapshot for the given key.
+     */
+    public static List<Channel> readChannels(@NonNull File file, @NonNull String key) {
+        try {
+            Reader reader = Reader.open(file);
+            if (reader == null || !key.equals(reader.getKey())) {
+                return null;
+            }
+            return reader.readChannels();
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Unable to read " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the listing, replacing the previous snapshot in the file.
+     *
+     * @param file The snapshot file.
+     * @param key The key of the feed the listing was parsed from.
+     * @param listing The listing.
+     * @return Whether the snapshot was written.
+     */
+    public static boolean write(@NonNull File file, @NonNull String key,
+            @NonNull XmlTvParser.TvListing listing) {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            Writer writer = new Writer(key);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                writer.write(out, listing.getChannels(), listing.getAllPrograms());
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tempFile + " to " + file);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + file, e);
+            tempFile.delete();
+            return false;
+        }
+    }
+
+    private static class Writer {
+        private final Map<Object, Integer> mValueIndices = new HashMap<>();
+        private final List<byte[]> mValues = new ArrayList<>();
+        private final int mKeyIndex;
+
+        Writer(String key) {
+            mKeyIndex = indexOf(key);
+        }
+
+        private int indexOf(String value) {
+            return value == null ? NULL_INDEX : indexOf(value, value.getBytes(UTF_8));
+        }
+
+        private int indexOf(byte[] value) {
+            return value == null ? NULL_INDEX : indexOf(new BlobKey(value), value);
+        }
+
+        private int indexOf(Object key, byte[] bytes) {
+            Integer index = mValueIndices.get(key);
+            if (index == null) {
+                index = mValues.size();
+                mValueIndices.put(key, index);
+                mValues.add(bytes);
+            }
+            return index;
+        }
+
+        void write(DataOutputStream out, List<Channel> channels, List<Program> programs)
+                throws IOException {
+            int channelCount = channels.size();
+            int[] displayNames = new int[channelCount];
+            int[] displayNumbers = new int[channelCount];
+            int[] channelLogos = new int[channelCount];
+            int[] appLinkTexts = new int[channelCount];
+            int[] appLinkIconUris = new int[channelCount];
+            int[] appLinkPosterArtUris = new int[channelCount];
+            int[] appLinkIntentUris = new int[channelCount];
+            int[] channelProviderData = new int[channelCount];
+            for (int i = 0; i < channelCount; i++) {
+                Channel channel = channels.get(i);
+                displayNames[i] = indexOf(channel.getDisplayName());
+                displayNumbers[i] = indexOf(channel.getDisplayNumber());
+                channelLogos[i] = indexOf(channel.getChannelLogo());
+                appLinkTexts[i] = indexOf(channel.getAppLinkText());
+                appLinkIconUris[i] = indexOf(channel.getAppLinkIconUri());
+                appLinkPosterArtUris[i] = indexOf(channel.getAppLinkPosterArtUri());
+                appLinkIntentUris[i] = indexOf(channel.getAppLinkIntentUri());
+                channelProviderData[i] = indexOf(channel.getInternalProviderDataByteArray());
+            }
+
+            int programCount = programs.size();
+            int[] titles = new int[programCount];
+            int[] episodeTitles = new int[programCount];
+            int[] descriptions = new int[programCount];
+            int[] longDescriptions = new int[programCount];
+            int[] posterArtUris = new int[programCount];
+            int[] thumbnailUris = new int[programCount];
+            int[] contentRatings = new int[programCount];
+            int[] programProviderData = new int[programCount];
+            for (int i = 0; i < programCount; i++) {
+                Program program = programs.get(i);
+                titles[i] = indexOf(program.getTitle());
+                episodeTitles[i] = indexOf(program.getEpisodeTitle());
+                descriptions[i] = indexOf(program.getDescription());
+                longDescriptions[i] = indexOf(program.getLongDescription());
+                posterArtUris[i] = indexOf(program.getPosterArtUri());
+                thumbnailUris[i] = indexOf(program.getThumbnailUri());
+                TvContentRating[] ratings = program.getContentRatings();
+                contentRatings[i] = ratings == null ? NULL_INDEX : indexOf(
+                        ratings.length == 0 ? "" : ContentRatingCache.flattenAll(ratings));
+                programProviderData[i] = indexOf(program.getInternalProviderDataByteArray());
+            }
+
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(mKeyIndex);
+            out.writeInt(mValues.size());
+            out.writeInt(channelCount);
+            out.writeInt(programCount);
+            int offset = 0;
+            out.writeInt(offset);
+            for (byte[] value : mValues) {
+                offset += value.length;
+                out.writeInt(offset);
+            }
+            for (byte[] value : mValues) {
+                out.write(value);
+            }
+
+            writeColumn(out, displayNames);
+            writeColumn(out, displayNumbers);
+            writeColumn(out, channelLogos);
+            writeColumn(out, appLinkTexts);
+            writeColumn(out, appLinkIconUris);
+            writeColumn(out, appLinkPosterArtUris);
+            writeColumn(out, appLinkIntentUris);
+            writeColumn(out, channelProviderData);
+            for (Channel channel : channels) {
+                out.writeInt(channel.getOriginalNetworkId());
+            }
+            for (Channel channel : channels) {
+                out.writeInt(channel.getTransportStreamId());
+            }
+            for (Channel channel : channels) {
+                out.writeInt(channel.getServiceId());
+            }
+            for (Channel channel : channels) {
+                out.writeInt(channel.getAppLinkColor());
+            }
+
+            writeColumn(out, titles);
+            writeColumn(out, episodeTitles);
+            writeColumn(out, descriptions);
+            writeColumn(out, longDescriptions);
+            writeColumn(out, posterArtUris);
+            writeColumn(out, thumbnailUris);
+            writeColumn(out, contentRatings);
+            writeColumn(out, programProviderData);
+            for (Program program : programs) {
+                out.writeLong(program.getChannelId());
+            }
+            for (Program program : programs) {
+                out.writeLong(program.getStartTimeUtcMillis());
+            }
+            for (Program program : programs) {
+                out.writeLong(program.getEndTimeUtcMillis());
+            }
+            for (Program program : programs) {
+                out.writeInt(program.getVideoWidth());
+            }
+            for (Program program : programs) {
+                out.writeInt(program.getVideoHeight());
+            }
+        }
+
+        private static void writeColumn(DataOutputStream out, int[] column) throws IOException {
+            for (int value : column) {
+                out.writeInt(value);
+            }
+        }
+    }
+
+    private static class Reader {
+        private final ByteBuffer mBuffer;
+        private final int mKeyIndex;
+        private final int mValueCount;
+        private final int mChannelCount;
+        private final int mProgramCount;
+        /** A view of the string table, whose position is the start of the values. */
+        private final ByteBuffer mValues;
+        private final int[] mValueOffsets;
+        private final String[] mStrings;
+        /** Holds the bytes of a string while it is decoded. */
+        private byte[] mStringBytes = new byte[0];
+
+        private Reader(ByteBuffer buffer) {
+            mBuffer = buffer;
+            mKeyIndex = buffer.getInt();
+            mValueCount = buffer.getInt();
+            mChannelCount = buffer.getInt();
+            mProgramCount = buffer.getInt();
+            if (mKeyIndex < 0 || mKeyIndex >= mValueCount || mValueCount > buffer.remaining() / 4
+                    || mChannelCount < 0 || mProgramCount < 0) {
+                throw new IllegalStateException("Corrupt header");
+            }
+            mValueOffsets = new int[mValueCount + 1];
+            buffer.asIntBuffer().get(mValueOffsets);
+            buffer.position(buffer.position() + mValueOffsets.length * 4);
+            mValues = buffer.slice();
+            int valuesLength = mValueOffsets[mValueCount];
+            if (valuesLength < 0 || valuesLength > buffer.remaining()) {
+                throw new IllegalStateException("Corrupt string table");
+            }
+            buffer.position(buffer.position() + valuesLength);
+            mStrings = new String[mValueCount];
+        }
+
+        /**
+         * @return A reader for the file, or {@code null} if it is not a snapshot of this version.
+         */
+        static Reader open(File file) throws IOException {
+            if (!file.exists()) {
+                return null;
+            }
+            ByteBuffer buffer;
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+                FileChannel channel = randomAccessFile.getChannel();
+                if (channel.size() < HEADER_SIZE) {
+                    return null;
+                }
+                // The mapping stays valid after the file is closed.
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            return new Reader(buffer);
+        }
+
+        String getKey() {
+            return getString(mKeyIndex);
+        }
+
+        private String getString(int index) {
+            if (index == NULL_INDEX) {
+                return null;
+            }
+            String value = mStrings[index];
+            if (value == null) {
+                int length = mValueOffsets[index + 1] - mValueOffsets[index];
+                if (mStringBytes.length < length) {
+                    mStringBytes = new byte[Math.max(length, mStringBytes.length * 2)];
+                }
+                readValue(index, mStringBytes, length);
+                value = new String(mStringBytes, 0, length, UTF_8);
+                mStrings[index] = value;
+            }
+            return value;
+        }
+
+        private byte[] getBytes(int index) {
+            if (index == NULL_INDEX) {
+                return null;
+            }
+            byte[] value = new byte[mValueOffsets[index + 1] - mValueOffsets[index]];
+            readValue(index, value, value.length);
+            return value;
+        }
+
+        private void readValue(int index, byte[] destination, int length) {
+            mValues.position(mValueOffsets[index]);
+            mValues.get(destination, 0, length);
+        }
+
+        private int[] readColumn(int count) {
+            int[] column = new int[count];
+            mBuffer.asIntBuffer().get(column);
+            mBuffer.position(mBuffer.position() + count * 4);
+            return column;
+        }
+
+        private long[] readLongColumn(int count) {
+            long[] column = new long[count];
+            mBuffer.asLongBuffer().get(column);
+            mBuffer.position(mBuffer.position() + count * 8);
+            return column;
+        }
+
+        XmlTvParser.TvListing readListing() {
+            List<Channel> channels = readChannels();
+            List<Program> programs = readPrograms();
+            return new XmlTvParser.TvListing(channels, programs);
+        }
+
+        /**
+         * Reads the channel columns, which come first after the values.
+         */
+        List<Channel> readChannels() {
+            int[] displayNames = readColumn(mChannelCount);
+            int[] displayNumbers = readColumn(mChannelCount);
+            int[] channelLogos = readColumn(mChannelCount);
+            int[] appLinkTexts = readColumn(mChannelCount);
+            int[] appLinkIconUris = readColumn(mChannelCount);
+            int[] appLinkPosterArtUris = readColumn(mChannelCount);
+            int[] appLinkIntentUris = readColumn(mChannelCount);
+            int[] channelProviderData = readColumn(mChannelCount);
+            int[] originalNetworkIds = readColumn(mChannelCount);
+            int[] transportStreamIds = readColumn(mChannelCount);
+            int[] serviceIds = readColumn(mChannelCount);
+            int[] appLinkColors = readColumn(mChannelCount);
+            List<Channel> channels = new ArrayList<>(mChannelCount);
+            for (int i = 0; i < mChannelCount; i++) {
+                channels.add(new Channel.Builder()
+                        .setDisplayName(getString(displayNames[i]))
+                        .setDisplayNumber(getString(displayNumbers[i]))
+                        .setChannelLogo(getString(channelLogos[i]))
+                        .setAppLinkText(getString(appLinkTexts[i]))
+                        .setAppLinkIconUri(getString(appLinkIconUris[i]))
+                        .setAppLinkPosterArtUri(getString(appLinkPosterArtUris[i]))
+                        .setAppLinkIntentUri(getString(appLinkIntentUris[i]))
+                        .setInternalProviderData(getBytes(channelProviderData[i]))
+                        .setOriginalNetworkId(originalNetworkIds[i])
+                        .setTransportStreamId(transportStreamIds[i])
+                        .setServiceId(serviceIds[i])
+                        .setAppLinkColor(appLinkColors[i])
+                        .build());
+            }
+            return channels;
+        }
+
+        /**
+         * Reads the program columns, which follow the channel columns.
+         */
+        private List<Program> readPrograms() {
+            int[] titles = readColumn(mProgramCount);
+            int[] episodeTitles = readColumn(mProgramCount);
+            int[] descriptions = readColumn(mProgramCount);
+            int[] longDescriptions = readColumn(mProgramCount);
+            int[] posterArtUris = readColumn(mProgramCount);
+            int[] thumbnailUris = readColumn(mProgramCount);
+            int[] contentRatings = readColumn(mProgramCount);
+            int[] programProviderData = readColumn(mProgramCount);
+            long[] channelIds = readLongColumn(mProgramCount);
+            long[] startTimes = readLongColumn(mProgramCount);
+            long[] endTimes = readLongColumn(mProgramCount);
+            int[] videoWidths = readColumn(mProgramCount);
+            int[] videoHeights = readColumn(mProgramCount);
+            List<Program> programs = new ArrayList<>(mProgramCount);
+            for (int i = 0; i < mProgramCount; i++) {
+                programs.add(new Program.Builder()
+                        .setChannelId(channelIds[i])
+                        .setTitle(getString(titles[i]))
+                        .setEpisodeTitle(getString(episodeTitles[i]))
+                        .setDescription(getString(descriptions[i]))
+                        .setLongDescription(getString(longDescriptions[i]))
+                        .setPosterArtUri(getString(posterArtUris[i]))
+                        .setThumbnailUri(getString(thumbnailUris[i]))
+                        .setContentRatings(getContentRatings(contentRatings[i]))
+                        .setInternalProviderData(getBytes(programProviderData[i]))
+                        .setStartTimeUtcMillis(startTimes[i])
+                        .setEndTimeUtcMillis(endTimes[i])
+                        .setVideoWidth(videoWidths[i])
+                        .setVideoHeight(videoHeights[i])
+                        .build());
+            }
+            return programs;
+        }
+
+        private TvContentRating[] getContentRatings(int index) {
+            String ratings = getString(index);
+            if (ratings == null) {
+                return null;
+            }
+            return ratings.isEmpty() ? NO_RATINGS : ContentRatingCache.unflattenAll(ratings);
+        }
+    }
+
+    /**
+     * Compares byte arrays by their content.
+     */
+    private static final class BlobKey {
+        private final byte[] mBytes;
+        private final int mHashCode;
+
+        BlobKey(byte[] bytes) {
+            mBytes = bytes;
+            mHashCode = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof BlobKey && Arrays.equals(mBytes, ((BlobKey) other).mBytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+}
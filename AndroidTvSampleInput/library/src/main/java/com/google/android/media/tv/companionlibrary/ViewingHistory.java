@@ -0,0 +1,262 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.media.tv.companionlibrary;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Remembers which channels the user tunes to, so that a sync writes the programs of the channels
+ * the user actually watches first. Each channel has a score which grows by one with every tune,
+ * and halves every {@link #HALF_LIFE_MILLIS}, so it reflects both how often and how recently the
+ * channel has been watched.
+ * <p>
+ * The history is kept in a small binary file of fixed size records, and holds at most
+ * {@link #MAX_CHANNELS} channels. When it is full, the channel with the lowest score is dropped.
+ */
+final class ViewingHistory {
+    private static final String TAG = "ViewingHistory";
+
+    private static final String FILE_NAME = "viewing_history";
+    private static final int MAGIC = 0x54565648; // "TVVH"
+    /** Increase when the layout of the file changes, so older files are not read. */
+    private static final int FORMAT_VERSION = 1;
+
+    /** The largest number of channels in the history. */
+    static final int MAX_CHANNELS = 256;
+    /** The time after which the score of a channel has halved. */
+    static final long HALF_LIFE_MILLIS = 1000 * 60 * 60 * 24 * 7; // 1 week
+
+    private static final Object sFileLock = new Object();
+
+    private int mSize;
+    private long[] mChannelIds = new long[16];
+    private long[] mLastTuneTimes = new long[16];
+    private float[] mScores = new float[16];
+
+    /**
+     * @return The file of the history of the app.
+     */
+    static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Records that the user tuned to a channel, in the history of the app. This reads and writes
+     * a file, so it should not be called on the main thread.
+     */
+    static void recordTune(Context context, long channelId) {
+        File file = getFile(context);
+        synchronized (sFileLock) {
+            ViewingHistory history = read(file);
+            history.recordTune(channelId, System.currentTimeMillis());
+            history.write(file);
+        }
+    }
+
+    /**
+     * Reads a history written by {@link #write(File)}.
+     *
+     * @return The history, which is empty if the file does not exist or cannot be read.
+     */
+    static ViewingHistory read(File file) {
+        ViewingHistory history = new ViewingHistory();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return history;
+            }
+            int size = in.readInt();
+            if (size < 0 || size > MAX_CHANNELS) {
+                return history;
+            }
+            history.ensureCapacity(size);
+            for (int i = 0; i < size; i++) {
+                history.mChannelIds[i] = in.readLong();
+                history.mLastTuneTimes[i] = in.readLong();
+                history.mScores[i] = in.readFloat();
+            }
+            history.mSize = size;
+        } catch (FileNotFoundException e) {
+            // No channel has been tuned yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + file, e);
+        }
+        return history;
+    }
+
+    /**
+     * Writes the history, replacing the previous one in the file.
+     *
+     * @return Whether the history was written.
+     */
+    boolean write(File file) {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(mSize);
+                for (int i = 0; i < mSize; i++) {
+                    out.writeLong(mChannelIds[i]);
+                    out.writeLong(mLastTuneTimes[i]);
+                    out.writeFloat(mScores[i]);
+                }
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tempFile + " to " + file);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + file, e);
+            tempFile.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Records that the user tuned to a channel at the given time.
+     */
+    void recordTune(long channelId, long timeMs) {
+        int index = indexOf(channelId);
+        if (index < 0) {
+            if (mSize == MAX_CHANNELS) {
+                index = lowestScoreIndex(timeMs);
+            } else {
+                ensureCapacity(mSize + 1);
+                index = mSize++;
+            }
+            mChannelIds[index] = channelId;
+            mLastTuneTimes[index] = timeMs;
+            mScores[index] = 0;
+        }
+        mScores[index] = getScore(index, timeMs) + 1;
+        mLastTuneTimes[index] = Math.max(mLastTuneTimes[index], timeMs);
+    }
+
+    /**
+     * @return The score of the channel at the given time, or {@code 0} if it is not in the
+     * history.
+     */
+    float getScore(long channelId, long timeMs) {
+        int index = indexOf(channelId);
+        return index < 0 ? 0 : getScore(index, timeMs);
+    }
+
+    /**
+     * Returns the order in which to sync channels: the channel tuned to last first, as it is
+     * likely to still be watched, then the other channels in the history by decreasing score,
+     * then the channels which have not been watched, in their original order.
+     *
+     * @param channels The channels to sync.
+     * @param timeMs The current time.
+     * @return The indexes of the channels in the array, in the order to sync them.
+     */
+    int[] getSyncOrder(LongSparseArray<?> channels, long timeMs) {
+        long[] channelIds = new long[channels.size()];
+        for (int i = 0; i < channelIds.length; i++) {
+            channelIds[i] = channels.keyAt(i);
+        }
+        return getSyncOrder(channelIds, timeMs);
+    }
+
+    /**
+     * @see #getSyncOrder(LongSparseArray, long)
+     */
+    int[] getSyncOrder(long[] channelIds, long timeMs) {
+        int last = -1;
+        for (int i = 0; i < mSize; i++) {
+            if (last < 0 || mLastTuneTimes[i] > mLastTuneTimes[last]) {
+                last = i;
+            }
+        }
+        final long lastChannelId = last < 0 ? 0 : mChannelIds[last];
+        final float[] scores = new float[channelIds.length];
+        final boolean[] isLast = new boolean[channelIds.length];
+        List<Integer> order = new ArrayList<>(channelIds.length);
+        for (int i = 0; i < channelIds.length; i++) {
+            scores[i] = getScore(channelIds[i], timeMs);
+            isLast[i] = last >= 0 && channelIds[i] == lastChannelId;
+            order.add(i);
+        }
+        // The sort is stable, so channels with the same score keep their order.
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                if (isLast[a] != isLast[b]) {
+                    return isLast[a] ? -1 : 1;
+                }
+                return Float.compare(scores[b], scores[a]);
+            }
+        });
+        int[] result = new int[order.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = order.get(i);
+        }
+        return result;
+    }
+
+    private float getScore(int index, long timeMs) {
+        long elapsedMs = Math.max(0, timeMs - mLastTuneTimes[index]);
+        return (float) (mScores[index] * Math.pow(0.5, (double) elapsedMs / HALF_LIFE_MILLIS));
+    }
+
+    private int indexOf(long channelId) {
+        for (int i = 0; i < mSize; i++) {
+            if (mChannelIds[i] == channelId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int lowestScoreIndex(long timeMs) {
+        int lowest = 0;
+        for (int i = 1; i < mSize; i++) {
+            if (getScore(i, timeMs) < getScore(lowest, timeMs)) {
+                lowest = i;
+            }
+        }
+        return lowest;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mChannelIds.length) {
+            int newCapacity = Math.max(capacity, mChannelIds.length * 2);
+            mChannelIds = Arrays.copyOf(mChannelIds, newCapacity);
+            mLastTuneTimes = Arrays.copyOf(mLastTuneTimes, newCapacity);
+            mScores = Arrays.copyOf(mScores, newCapacity);
+        }
+    }
+}
@@ -26,7 +26,10 @@ import android.util.Xml;
 import com.google.android.media.tv.companionlibrary.model.Channel;
 import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
 import com.google.android.media.tv.companionlibrary.model.Program;
+import com.google.android.media.tv.companionlibrary.utils.ContentRatingCache;
+import com.google.android.media.tv.companionlibrary.utils.InternPool;
 import com.google.android.media.tv.companionlibrary.utils.TvContractUtils;
+import com.google.android.media.tv.companionlibrary.utils.XmlTvTimestampDecoder;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -34,12 +37,14 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 /**
  * XMLTV document parser which conforms to http://wiki.xmltv.org/index.php/Main_Page
@@ -109,6 +114,37 @@ public class XmlTvParser {
     private static final String TAG_DISPLAY_NUMBER = "display-number";
     private static final String TAG_REQUEST_URL = "request-url";
 
+    // Elements which are decoded. Any other element is skipped with all of its children.
+    private static final int ELEMENT_UNKNOWN = 0;
+    private static final int ELEMENT_CHANNEL = 1;
+    private static final int ELEMENT_PROGRAM = 2;
+    private static final int ELEMENT_DISPLAY_NAME = 3;
+    private static final int ELEMENT_DISPLAY_NUMBER = 4;
+    private static final int ELEMENT_ICON = 5;
+    private static final int ELEMENT_APP_LINK = 6;
+    private static final int ELEMENT_TITLE = 7;
+    private static final int ELEMENT_DESC = 8;
+    private static final int ELEMENT_LONG_DESC = 9;
+    private static final int ELEMENT_EPISODE_TITLE = 10;
+    private static final int ELEMENT_RATING = 11;
+    private static final int ELEMENT_VALUE = 12;
+    private static final HashMap<String, Integer> ELEMENTS = new HashMap<>();
+
+    static {
+        ELEMENTS.put(TAG_CHANNEL, ELEMENT_CHANNEL);
+        ELEMENTS.put(TAG_PROGRAM, ELEMENT_PROGRAM);
+        ELEMENTS.put(TAG_DISPLAY_NAME, ELEMENT_DISPLAY_NAME);
+        ELEMENTS.put(TAG_DISPLAY_NUMBER, ELEMENT_DISPLAY_NUMBER);
+        ELEMENTS.put(TAG_ICON, ELEMENT_ICON);
+        ELEMENTS.put(TAG_APP_LINK, ELEMENT_APP_LINK);
+        ELEMENTS.put(TAG_TITLE, ELEMENT_TITLE);
+        ELEMENTS.put(TAG_DESC, ELEMENT_DESC);
+        ELEMENTS.put(TAG_LONG_DESC, ELEMENT_LONG_DESC);
+        ELEMENTS.put(TAG_EPISODE_TITLE, ELEMENT_EPISODE_TITLE);
+        ELEMENTS.put(TAG_RATING, ELEMENT_RATING);
+        ELEMENTS.put(TAG_VALUE, ELEMENT_VALUE);
+    }
+
     private static final String ATTR_ID = "id";
     private static final String ATTR_START = "start";
     private static final String ATTR_STOP = "stop";
@@ -128,10 +164,13 @@ public class XmlTvParser {
     private static final String VALUE_VIDEO_TYPE_HLS = "HLS";
     private static final String VALUE_VIDEO_TYPE_MPEG_DASH = "MPEG_DASH";
 
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyyMMddHHmmss Z",
-            Locale.US);
     private static final String TAG = "XmlTvParser";
 
+    // Fingerprints of the programs of a channel are folded with a multiplicative hash.
+    private static final long FINGERPRINT_SEED = 0xcbf29ce484222325L;
+    private static final long FINGERPRINT_MULTIPLIER = 0x9e3779b97f4a7c15L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
     //The Standard "domain" string for Android Content TV Rating
     public static final String ANDROID_TV_RATING = "com.android.tv";
 
@@ -147,7 +186,7 @@ public class XmlTvParser {
     private static TvContentRating xmlTvRatingToTvContentRating(
             XmlTvParser.XmlTvRating rating) {
         if (ANDROID_TV_RATING.equals(rating.system)) {
-            return TvContentRating.unflattenFromString(rating.value);
+            return ContentRatingCache.unflatten(rating.value);
         }
         return null;
     }
@@ -159,7 +198,20 @@ public class XmlTvParser {
      * @return A TvListing containing your channels and programs
      */
     public static TvListing parse(@NonNull InputStream inputStream) throws XmlTvParseException {
-        return parse(inputStream, Xml.newPullParser());
+        return parse(inputStream, ParseOptions.DEFAULT);
+    }
+
+    /**
+     * Reads an InputStream and parses the data to identify the channels and programs selected by
+     * the given options.
+     *
+     * @param inputStream The InputStream of your data
+     * @param options The ParseOptions which select the channels and programs to return
+     * @return A TvListing containing your channels and programs
+     */
+    public static TvListing parse(@NonNull InputStream inputStream,
+            @NonNull ParseOptions options) throws XmlTvParseException {
+        return parse(inputStream, Xml.newPullParser(), options);
     }
 
     /**
@@ -167,42 +219,258 @@ public class XmlTvParser {
      *
      * @param inputStream The InputStream of your data
      * @param parser The XmlPullParser the developer selects to parse this data
+     * @param options The ParseOptions which select the channels and programs to return
      * @return A TvListing containing your channels and programs
      */
-    private static TvListing parse(@NonNull InputStream inputStream, @NonNull XmlPullParser parser)
+    private static TvListing parse(@NonNull InputStream inputStream, @NonNull XmlPullParser parser,
+            @NonNull ParseOptions options) throws XmlTvParseException {
+        TvListingHandler handler = new TvListingHandler();
+        // The values repeated by the programs of the listing are shared while it is alive.
+        if (!parse(inputStream, parser, handler,
+                new ParseContext(options, new InternPool()))) {
+            return null;
+        }
+        return handler.getTvListing();
+    }
+
+    /**
+     * Reads an InputStream and passes each channel and program to the given handler as soon as it
+     * has been parsed. Unlike {@link #parse(InputStream)}, nothing is retained by the parser, so
+     * the memory needed to read a feed does not grow with the size of the feed.
+     *
+     * @param inputStream The InputStream of your data
+     * @param handler The XmlTvHandler which receives the channels and programs
+     * @return {@code true} if the whole document was parsed and {@link XmlTvHandler#onEnd()} has
+     * been called, {@code false} if an error or a {@link StopCondition} stopped the parsing
+     */
+    public static boolean parse(@NonNull InputStream inputStream, @NonNull XmlTvHandler handler)
+            throws XmlTvParseException {
+        return parse(inputStream, handler, ParseOptions.DEFAULT);
+    }
+
+    /**
+     * Reads an InputStream and passes each channel and program selected by the given options to
+     * the handler as soon as it has been parsed. See {@link #parse(InputStream, XmlTvHandler)}.
+     *
+     * @param inputStream The InputStream of your data
+     * @param handler The XmlTvHandler which receives the channels and programs
+     * @param options The ParseOptions which select the channels and programs to pass on
+     * @return {@code true} if the whole document was parsed and {@link XmlTvHandler#onEnd()} has
+     * been called, {@code false} if an error or a {@link StopCondition} stopped the parsing
+     */
+    public static boolean parse(@NonNull InputStream inputStream, @NonNull XmlTvHandler handler,
+            @NonNull ParseOptions options) throws XmlTvParseException {
+        return parse(inputStream, Xml.newPullParser(), handler, new ParseContext(options, null));
+    }
+
+    private static boolean parse(@NonNull InputStream inputStream, @NonNull XmlPullParser parser,
+            @NonNull XmlTvHandler handler, @NonNull ParseContext context)
             throws XmlTvParseException {
         try {
+            context.fingerprinting = handler instanceof FingerprintListener;
+            if (handler instanceof StopCondition) {
+                context.stopCondition = (StopCondition) handler;
+            }
             parser.setInput(inputStream, null);
             int eventType = parser.next();
             if (eventType != XmlPullParser.START_TAG || !TAG_TV.equals(parser.getName())) {
                 throw new XmlTvParseException(
                         "Input stream does not contain an XMLTV description");
             }
-            return parseTvListings(parser);
+            return parseTvListings(parser, handler, context);
         } catch (XmlPullParserException | IOException | ParseException e) {
             Log.w(TAG, e.getMessage());
         }
-        return null;
+        return false;
     }
 
-    private static TvListing parseTvListings(XmlPullParser parser)
-            throws IOException, XmlPullParserException, ParseException {
-        List<Channel> channels = new ArrayList<>();
-        List<Program> programs = new ArrayList<>();
-        while (parser.next() != XmlPullParser.END_DOCUMENT) {
-            if (parser.getEventType() == XmlPullParser.START_TAG
-                    && TAG_CHANNEL.equalsIgnoreCase(parser.getName())) {
-                channels.add(parseChannel(parser));
+    /**
+     * @return Whether the whole document was parsed, {@code false} if the handler stopped the
+     * parse.
+     */
+    private static boolean parseTvListings(XmlPullParser parser, XmlTvHandler handler,
+            ParseContext context) throws IOException, XmlPullParserException, ParseException {
+        while (nextChildElement(parser)) {
+            if (context.stopCondition != null && context.stopCondition.shouldStopParsing()) {
+                return false;
+            }
+            switch (getElement(parser)) {
+                case ELEMENT_CHANNEL:
+                    Channel channel = null;
+                    int channelDepth = parser.getDepth();
+                    try {
+                        channel = parseChannel(parser, context);
+                    } catch (ParseException | RuntimeException e) {
+                        dropRecord(parser, channelDepth, context, e);
+                        context.errors.mDroppedChannelCount++;
+                    }
+                    if (channel != null) {
+                        handler.onChannel(channel);
+                    }
+                    break;
+                case ELEMENT_PROGRAM:
+                    Program program = null;
+                    int programDepth = parser.getDepth();
+                    context.hasProgramFingerprint = false;
+                    try {
+                        program = parseProgram(parser, context);
+                    } catch (ParseException | RuntimeException e) {
+                        dropRecord(parser, programDepth, context, e);
+                        context.errors.mDroppedProgramCount++;
+                    }
+                    if (!TextUtils.equals(context.blockChannelId, context.programChannelId)) {
+                        // The programs of the previous channel have been read
+                        notifyFingerprint(handler, context);
+                        context.blockChannelId = context.programChannelId;
+                    }
+                    if (context.hasProgramFingerprint) {
+                        context.blockFingerprint = foldFingerprint(context.blockFingerprint,
+                                context.programFingerprint);
+                    }
+                    if (program != null) {
+                        handler.onProgram(program);
+                    }
+                    break;
+                default:
+                    skipElement(parser);
+                    break;
+            }
+        }
+        notifyFingerprint(handler, context);
+        if (context.options.mLenient && handler instanceof ErrorListener) {
+            ((ErrorListener) handler).onErrors(context.errors);
+        }
+        handler.onEnd();
+        return true;
+    }
+
+    /**
+     * Drops the channel or program which could not be parsed, if the parse is lenient. The rest of
+     * its element is skipped, so the parse continues with the next one.
+     *
+     * @param depth The depth of the element of the record.
+     * @param e The error the record could not be parsed with. It is thrown again if the parse is
+     * not lenient.
+     */
+    private static void dropRecord(XmlPullParser parser, int depth, ParseContext context,
+            Exception e) throws IOException, XmlPullParserException, ParseException {
+        if (!context.options.mLenient) {
+            if (e instanceof ParseException) {
+                throw (ParseException) e;
+            }
+            throw (RuntimeException) e;
+        }
+        int errorType;
+        if (e instanceof InvalidRecordException) {
+            errorType = ((InvalidRecordException) e).errorType;
+        } else if (e instanceof ParseException) {
+            errorType = ParseErrors.ERROR_INVALID_TIME;
+        } else {
+            errorType = ParseErrors.ERROR_INVALID_VALUE;
+        }
+        context.errors.mCounts[errorType]++;
+        int eventType = parser.getEventType();
+        while ((eventType != XmlPullParser.END_TAG || parser.getDepth() != depth)
+                && eventType != XmlPullParser.END_DOCUMENT) {
+            eventType = parser.next();
+        }
+    }
+
+    /**
+     * Passes the fingerprint of the programs of the channel which have just been read to the
+     * handler, if it is a {@link FingerprintListener}. Whether the programs of the channel repeat
+     * is part of the fingerprint, as it changes the schedule of the programs.
+     */
+    private static void notifyFingerprint(XmlTvHandler handler, ParseContext context) {
+        if (!context.fingerprinting || context.blockChannelId == null) {
+            return;
+        }
+        long fingerprint = foldFingerprint(context.blockFingerprint,
+                context.repeatingChannelIds.contains(context.blockChannelId) ? 1 : 0);
+        ((FingerprintListener) handler).onFingerprint(context.blockChannelId.hashCode(),
+                fingerprint);
+        context.blockFingerprint = FINGERPRINT_SEED;
+    }
+
+    private static long foldFingerprint(long fingerprint, long value) {
+        return (Long.rotateLeft(fingerprint, 31) ^ value) * FINGERPRINT_MULTIPLIER;
+    }
+
+    /**
+     * Folds a string, which may be {@code null}, into a fingerprint with a 64-bit FNV-1a hash of
+     * its characters.
+     */
+    private static long foldFingerprint(long fingerprint, String value) {
+        if (value == null) {
+            return foldFingerprint(fingerprint, -1);
+        }
+        long hash = FINGERPRINT_SEED;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return foldFingerprint(foldFingerprint(fingerprint, value.length()), hash);
+    }
+
+    /**
+     * Moves to the start tag of the next child of the current element. Text between the children
+     * is ignored.
+     *
+     * @return {@code false} once the end tag of the current element has been reached instead.
+     */
+    private static boolean nextChildElement(XmlPullParser parser)
+            throws IOException, XmlPullParserException {
+        while (true) {
+            switch (parser.next()) {
+                case XmlPullParser.START_TAG:
+                    return true;
+                case XmlPullParser.END_TAG:
+                case XmlPullParser.END_DOCUMENT:
+                    return false;
             }
-            if (parser.getEventType() == XmlPullParser.START_TAG
-                    && TAG_PROGRAM.equalsIgnoreCase(parser.getName())) {
-                programs.add(parseProgram(parser));
+        }
+    }
+
+    /**
+     * @return The ELEMENT_* constant of the element whose start tag is the current event, or
+     * {@code ELEMENT_UNKNOWN} if it is not decoded. Names are not case sensitive.
+     */
+    private static int getElement(XmlPullParser parser) {
+        String name = parser.getName();
+        Integer element = ELEMENTS.get(name);
+        if (element == null) {
+            // Names are almost always lower case already, in which case no new string is created.
+            element = ELEMENTS.get(name.toLowerCase(Locale.US));
+        }
+        return element != null ? element : ELEMENT_UNKNOWN;
+    }
+
+    /**
+     * Skips the element whose start tag is the current event, including all of its children.
+     */
+    private static void skipElement(XmlPullParser parser)
+            throws IOException, XmlPullParserException {
+        int depth = 1;
+        while (depth > 0) {
+            switch (parser.next()) {
+                case XmlPullParser.START_TAG:
+                    depth++;
+                    break;
+                case XmlPullParser.END_TAG:
+                    depth--;
+                    break;
+                case XmlPullParser.END_DOCUMENT:
+                    return;
             }
         }
-        return new TvListing(channels, programs);
     }
 
-    private static Channel parseChannel(XmlPullParser parser)
+    /**
+     * Parses a channel element.
+     *
+     * @return The channel, or {@code null} if it is not selected by the parse options. Its
+     * children have been skipped in that case.
+     */
+    private static Channel parseChannel(XmlPullParser parser, ParseContext context)
             throws IOException, XmlPullParserException, ParseException {
         String id = null;
         boolean repeatPrograms = false;
@@ -215,34 +483,39 @@ public class XmlTvParser {
                 repeatPrograms = "TRUE".equalsIgnoreCase(value);
             }
         }
+        if (id != null && !context.options.isChannelSelected(id)) {
+            skipElement(parser);
+            return null;
+        }
+        if (repeatPrograms) {
+            context.repeatingChannelIds.add(id);
+        }
         String displayName = null;
         String displayNumber = null;
         XmlTvIcon icon = null;
         XmlTvAppLink appLink = null;
-        while (parser.next() != XmlPullParser.END_DOCUMENT) {
-            if (parser.getEventType() == XmlPullParser.START_TAG) {
-                if (TAG_DISPLAY_NAME.equalsIgnoreCase(parser.getName())
-                        && displayName == null) {
-                    displayName = parser.nextText();
-                } else if (TAG_DISPLAY_NUMBER.equalsIgnoreCase(parser.getName())
-                        && displayNumber == null) {
-                    displayNumber = parser.nextText();
-                } else if (TAG_ICON.equalsIgnoreCase(parser.getName()) && icon == null) {
-                    icon = parseIcon(parser);
-                } else if (TAG_APP_LINK.equalsIgnoreCase(parser.getName()) && appLink == null) {
-                    appLink = parseAppLink(parser);
-                }
-            } else if (TAG_CHANNEL.equalsIgnoreCase(parser.getName())
-                    && parser.getEventType() == XmlPullParser.END_TAG) {
-                break;
+        while (nextChildElement(parser)) {
+            int element = getElement(parser);
+            if (element == ELEMENT_DISPLAY_NAME && displayName == null) {
+                displayName = parser.nextText();
+            } else if (element == ELEMENT_DISPLAY_NUMBER && displayNumber == null) {
+                displayNumber = parser.nextText();
+            } else if (element == ELEMENT_ICON && icon == null) {
+                icon = parseIcon(parser);
+            } else if (element == ELEMENT_APP_LINK && appLink == null) {
+                appLink = parseAppLink(parser);
+            } else {
+                skipElement(parser);
             }
         }
         if (TextUtils.isEmpty(id) || TextUtils.isEmpty(displayName)) {
-            throw new IllegalArgumentException("id and display-name can not be null.");
+            throw new InvalidRecordException(ParseErrors.ERROR_MISSING_FIELD,
+                    "id and display-name can not be null.");
         }
 
         // Developers should assign original network ID in the right way not using the fake ID.
         InternalProviderData internalProviderData = new InternalProviderData();
+        internalProviderData.setRepeatable(repeatPrograms);
         Channel.Builder builder = new Channel.Builder()
                 .setDisplayName(displayName)
                 .setDisplayNumber(displayNumber)
@@ -264,11 +537,20 @@ public class XmlTvParser {
         return builder.build();
     }
 
-    private static Program parseProgram(XmlPullParser parser)
+    /**
+     * Parses a programme element. If the programs are fingerprinted, the fingerprint of the
+     * program is set in the context, including for a program which is not selected by its time.
+     * Such a program is fingerprinted from the values of its element as they are read: it is
+     * neither validated nor built.
+     *
+     * @return The program, or {@code null} if it is not selected by the parse options. Its
+     * children have been skipped in that case, unless the program is fingerprinted.
+     */
+    private static Program parseProgram(XmlPullParser parser, ParseContext context)
             throws IOException, XmlPullParserException, ParseException {
         String channelId = null;
-        Long startTimeUtcMillis = null;
-        Long endTimeUtcMillis = null;
+        String startTime = null;
+        String endTime = null;
         String thumbnailUri = null;
         String videoSrc = null;
         int videoType = TvContractUtils.SOURCE_TYPE_HTTP_PROGRESSIVE;
@@ -280,9 +562,9 @@ public class XmlTvParser {
             } else if (ATTR_THUMBNAIL_URI.equalsIgnoreCase(attr)) {
                 thumbnailUri = value;
             } else if (ATTR_START.equalsIgnoreCase(attr)) {
-                startTimeUtcMillis = DATE_FORMAT.parse(value).getTime();
+                startTime = value;
             } else if (ATTR_STOP.equalsIgnoreCase(attr)) {
-                endTimeUtcMillis = DATE_FORMAT.parse(value).getTime();
+                endTime = value;
             } else if (ATTR_VIDEO_SRC.equalsIgnoreCase(attr)) {
                 videoSrc = value;
             } else if (ATTR_VIDEO_TYPE.equalsIgnoreCase(attr)) {
@@ -295,51 +577,96 @@ public class XmlTvParser {
                 }
             }
         }
+        context.programChannelId = channelId;
+        Long startTimeUtcMillis =
+                startTime != null ? XmlTvTimestampDecoder.decode(startTime) : null;
+        Long endTimeUtcMillis = endTime != null ? XmlTvTimestampDecoder.decode(endTime) : null;
+        boolean selected =
+                context.isProgramSelected(channelId, startTimeUtcMillis, endTimeUtcMillis);
+        // The fingerprint covers the programs outside of the time window too, so that it does not
+        // change as the window moves.
+        if (!selected && (!context.fingerprinting
+                || !context.options.isChannelSelected(channelId))) {
+            skipElement(parser);
+            return null;
+        }
         String title = null;
         String shortDescription = null;
         String longDescription = null;
         String episodeTitle = null;
-        XmlTvIcon icon = null;
-        List<String> category = new ArrayList<>();
+        String posterArtUri = null;
         List<TvContentRating> rating = new ArrayList<>();
-        while (parser.next() != XmlPullParser.END_DOCUMENT) {
-            String tagName = parser.getName();
-            if (parser.getEventType() == XmlPullParser.START_TAG) {
-                if (TAG_TITLE.equalsIgnoreCase(parser.getName())) {
-                    title = parser.nextText();
-                } else if (TAG_DESC.equalsIgnoreCase(tagName)) {
-                    shortDescription = parser.nextText();
-                } else if (TAG_LONG_DESC.equalsIgnoreCase(tagName)) {
-                    longDescription = parser.nextText();
-                } else if (TAG_EPISODE_TITLE.equalsIgnoreCase(tagName)) {
-                    episodeTitle = parser.nextText();
-                } else if (TAG_ICON.equalsIgnoreCase(tagName)) {
-                    icon = parseIcon(parser);
-                } else if (TAG_RATING.equalsIgnoreCase(tagName)) {
-                    TvContentRating xmlTvRating = xmlTvRatingToTvContentRating(parseRating(parser));
-                    if (xmlTvRating != null)
-                        rating.add(xmlTvRating);
+        // The flattened ratings of the program, which are fingerprinted
+        List<String> ratingValues = new ArrayList<>();
+        int fields = context.options.mProgramFields;
+        while (nextChildElement(parser)) {
+            int element = getElement(parser);
+            if (element == ELEMENT_TITLE) {
+                title = parser.nextText();
+            } else if (element == ELEMENT_DESC
+                    && (fields & ParseOptions.FIELD_DESCRIPTION) != 0) {
+                shortDescription = parser.nextText();
+            } else if (element == ELEMENT_LONG_DESC
+                    && (fields & ParseOptions.FIELD_LONG_DESCRIPTION) != 0) {
+                longDescription = parser.nextText();
+            } else if (element == ELEMENT_EPISODE_TITLE
+                    && (fields & ParseOptions.FIELD_EPISODE_TITLE) != 0) {
+                episodeTitle = parser.nextText();
+            } else if (element == ELEMENT_ICON
+                    && (fields & ParseOptions.FIELD_POSTER_ART) != 0) {
+                posterArtUri = selected ? parseIcon(parser).src : readIconSrc(parser);
+            } else if (element == ELEMENT_RATING
+                    && (fields & ParseOptions.FIELD_CONTENT_RATINGS) != 0) {
+                XmlTvRating xmlTvRating = selected ? parseRating(parser) : readRating(parser);
+                if (ANDROID_TV_RATING.equals(xmlTvRating.system)) {
+                    if (selected) {
+                        rating.add(xmlTvRatingToTvContentRating(xmlTvRating));
+                    }
+                    ratingValues.add(xmlTvRating.value);
                 }
-            } else if (TAG_PROGRAM.equalsIgnoreCase(tagName)
-                    && parser.getEventType() == XmlPullParser.END_TAG) {
-                break;
+            } else {
+                // Credits, categories and other elements which are not stored in the EPG
+                skipElement(parser);
             }
         }
-        if (TextUtils.isEmpty(channelId) || startTimeUtcMillis == null
-                || endTimeUtcMillis == null) {
-            throw new IllegalArgumentException("channel, start, and end can not be null.");
+        if (selected && (TextUtils.isEmpty(channelId) || startTimeUtcMillis == null
+                || endTimeUtcMillis == null)) {
+            throw new InvalidRecordException(ParseErrors.ERROR_MISSING_FIELD,
+                    "channel, start, and end can not be null.");
+        }
+        if (context.fingerprinting) {
+            long fingerprint = foldFingerprint(FINGERPRINT_SEED, channelId);
+            fingerprint = foldFingerprint(fingerprint, startTimeUtcMillis);
+            fingerprint = foldFingerprint(fingerprint, endTimeUtcMillis);
+            fingerprint = foldFingerprint(fingerprint, videoType);
+            fingerprint = foldFingerprint(fingerprint, videoSrc);
+            fingerprint = foldFingerprint(fingerprint, thumbnailUri);
+            fingerprint = foldFingerprint(fingerprint, title);
+            fingerprint = foldFingerprint(fingerprint, shortDescription);
+            fingerprint = foldFingerprint(fingerprint, longDescription);
+            fingerprint = foldFingerprint(fingerprint, episodeTitle);
+            fingerprint = foldFingerprint(fingerprint, posterArtUri);
+            fingerprint = foldFingerprint(fingerprint, ratingValues.size());
+            for (String ratingValue : ratingValues) {
+                fingerprint = foldFingerprint(fingerprint, ratingValue);
+            }
+            context.programFingerprint = fingerprint;
+            context.hasProgramFingerprint = true;
+        }
+        if (!selected) {
+            return null;
         }
         InternalProviderData internalProviderData = new InternalProviderData();
         internalProviderData.setVideoType(videoType);
         internalProviderData.setVideoUrl(videoSrc);
-        return new Program.Builder()
+        Program program = new Program.Builder()
                 .setChannelId(channelId.hashCode())
-                .setTitle(title)
-                .setDescription(shortDescription)
-                .setLongDescription(longDescription)
-                .setEpisodeTitle(episodeTitle)
-                .setPosterArtUri(icon.src)
-                .setThumbnailUri(thumbnailUri)
+                .setTitle(context.intern(title))
+                .setDescription(context.intern(shortDescription))
+                .setLongDescription(context.intern(longDescription))
+                .setEpisodeTitle(context.intern(episodeTitle))
+                .setPosterArtUri(context.intern(posterArtUri))
+                .setThumbnailUri(context.intern(thumbnailUri))
                 .setStartTimeUtcMillis(startTimeUtcMillis)
                 .setEndTimeUtcMillis(endTimeUtcMillis)
                 .setContentRatings(rating.toArray(new TvContentRating[rating.size()]))
@@ -349,10 +676,24 @@ public class XmlTvParser {
                 // video later with this field.
                 .setInternalProviderData(internalProviderData)
                 .build();
+        return program;
     }
 
     private static XmlTvIcon parseIcon(XmlPullParser parser)
             throws IOException, XmlPullParserException {
+        String src = readIconSrc(parser);
+        if (TextUtils.isEmpty(src)) {
+            throw new InvalidRecordException(ParseErrors.ERROR_MISSING_FIELD,
+                    "Icon src cannot be null.");
+        }
+        return new XmlTvIcon(src);
+    }
+
+    /**
+     * Reads the src of an icon element, which is not validated, and skips the element.
+     */
+    private static String readIconSrc(XmlPullParser parser)
+            throws IOException, XmlPullParserException {
         String src = null;
         for (int i = 0; i < parser.getAttributeCount(); ++i) {
             String attr = parser.getAttributeName(i);
@@ -361,16 +702,8 @@ public class XmlTvParser {
                 src = value;
             }
         }
-        while (parser.next() != XmlPullParser.END_DOCUMENT) {
-            if (TAG_ICON.equalsIgnoreCase(parser.getName())
-                    && parser.getEventType() == XmlPullParser.END_TAG) {
-                break;
-            }
-        }
-        if (TextUtils.isEmpty(src)) {
-            throw new IllegalArgumentException("Icon src cannot be null.");
-        }
-        return new XmlTvIcon(src);
+        skipElement(parser);
+        return src;
     }
 
     private static XmlTvAppLink parseAppLink(XmlPullParser parser)
@@ -394,13 +727,11 @@ public class XmlTvParser {
         }
 
         XmlTvIcon icon = null;
-        while (parser.next() != XmlPullParser.END_DOCUMENT) {
-            if (parser.getEventType() == XmlPullParser.START_TAG
-                    && TAG_ICON.equalsIgnoreCase(parser.getName()) && icon == null) {
+        while (nextChildElement(parser)) {
+            if (getElement(parser) == ELEMENT_ICON && icon == null) {
                 icon = parseIcon(parser);
-            } else if (TAG_APP_LINK.equalsIgnoreCase(parser.getName())
-                    && parser.getEventType() == XmlPullParser.END_TAG) {
-                break;
+            } else {
+                skipElement(parser);
             }
         }
 
@@ -409,6 +740,19 @@ public class XmlTvParser {
 
     private static XmlTvRating parseRating(XmlPullParser parser)
             throws IOException, XmlPullParserException {
+        XmlTvRating rating = readRating(parser);
+        if (TextUtils.isEmpty(rating.system) || TextUtils.isEmpty(rating.value)) {
+            throw new InvalidRecordException(ParseErrors.ERROR_MISSING_FIELD,
+                    "system and value cannot be null.");
+        }
+        return rating;
+    }
+
+    /**
+     * Reads a rating element, whose values are not validated.
+     */
+    private static XmlTvRating readRating(XmlPullParser parser)
+            throws IOException, XmlPullParserException {
         String system = null;
         for (int i = 0; i < parser.getAttributeCount(); ++i) {
             String attr = parser.getAttributeName(i);
@@ -418,19 +762,13 @@ public class XmlTvParser {
             }
         }
         String value = null;
-        while (parser.next() != XmlPullParser.END_DOCUMENT) {
-            if (parser.getEventType() == XmlPullParser.START_TAG) {
-                if (TAG_VALUE.equalsIgnoreCase(parser.getName())) {
-                    value = parser.nextText();
-                }
-            } else if (TAG_RATING.equalsIgnoreCase(parser.getName())
-                    && parser.getEventType() == XmlPullParser.END_TAG) {
-                break;
+        while (nextChildElement(parser)) {
+            if (getElement(parser) == ELEMENT_VALUE) {
+                value = parser.nextText();
+            } else {
+                skipElement(parser);
             }
         }
-        if (TextUtils.isEmpty(system) || TextUtils.isEmpty(value)) {
-            throw new IllegalArgumentException("system and value cannot be null.");
-        }
         return new XmlTvRating(system, value);
     }
 
@@ -442,25 +780,40 @@ public class XmlTvParser {
         private List<Channel> mChannels;
         private List<Program> mPrograms;
         private HashMap<Integer, List<Program>> mProgramMap;
+        private ParseErrors mParseErrors = new ParseErrors();
 
-        private TvListing(List<Channel> channels, List<Program> programs) {
+        /**
+         * Creates a listing of the given channels, and groups their programs by channel. The
+         * channel id of each program is the original network id of its channel, as the parser
+         * sets it.
+         */
+        TvListing(List<Channel> channels, List<Program> programs) {
             this.mChannels = channels;
             this.mPrograms = new ArrayList<>(programs);
-            // Place programs into the epg map
-            mProgramMap = new HashMap<>();
-            for (Channel channel: channels) {
-                List<Program> programsForChannel = new ArrayList<>();
-                Iterator<Program> programIterator = programs.iterator();
-                while (programIterator.hasNext()) {
-                    Program program = programIterator.next();
-                    if (program.getChannelId() == channel.getOriginalNetworkId()) {
-                        programsForChannel.add(new Program.Builder(program)
-                            .setChannelId(channel.getId())
-                            .build());
-                        programIterator.remove();
-                    }
+            // Place programs into the epg map with a single pass over all programs. Until a
+            // channel's programs have been sorted, they are indexed by its original network id.
+            mProgramMap = new HashMap<>(channels.size() * 2);
+            HashMap<Integer, Channel> channelMap = new HashMap<>(channels.size() * 2);
+            for (Channel channel : channels) {
+                channelMap.put(channel.getOriginalNetworkId(), channel);
+                mProgramMap.put(channel.getOriginalNetworkId(), new ArrayList<Program>());
+            }
+            for (Program program : programs) {
+                long channelId = program.getChannelId();
+                if (channelId != (int) channelId) {
+                    continue;
+                }
+                Channel channel = channelMap.get((int) channelId);
+                if (channel != null) {
+                    mProgramMap.get(channel.getOriginalNetworkId()).add(
+                            new Program.Builder(program)
+                                    .setChannelId(channel.getId())
+                                    .build());
                 }
-                mProgramMap.put(channel.getOriginalNetworkId(), programsForChannel);
+            }
+            for (List<Program> programsForChannel : mProgramMap.values()) {
+                // Programs of a channel are usually already in order, which the sort detects.
+                Collections.sort(programsForChannel);
             }
         }
 
@@ -481,11 +834,384 @@ public class XmlTvParser {
         /**
          * Returns a list of programs found by the XmlTvParser for a given channel.
          * @param channel The channel to obtain programs for.
-         * @return A list of programs that belong to that channel.
+         * @return A list of programs that belong to that channel, sorted by start time.
          */
         public List<Program> getPrograms(Channel channel) {
             return mProgramMap.get(channel.getOriginalNetworkId());
         }
+
+        /**
+         * @return The channels and programs which were dropped by a lenient parse. Nothing is
+         * dropped by a parse which is not lenient.
+         */
+        public ParseErrors getParseErrors() {
+            return mParseErrors;
+        }
+    }
+
+    /**
+     * Receives the channels and programs of an XMLTV document while it is being parsed by
+     * {@link #parse(InputStream, XmlTvHandler)}.
+     * <p>
+     * Callbacks are made in document order on the thread which called the parser. XMLTV lists all
+     * channels before any program, and feeds conventionally group the programs of a channel
+     * together, so a handler can process one channel's programs at a time.
+     */
+    public interface XmlTvHandler {
+        /**
+         * Called when a channel has been parsed.
+         *
+         * @param channel The channel. Its original network id identifies the programs which
+         * belong to it.
+         */
+        void onChannel(Channel channel);
+
+        /**
+         * Called when a program has been parsed.
+         *
+         * @param program The program. Its channel id is the original network id of the channel it
+         * belongs to, see {@link Channel#getOriginalNetworkId()}.
+         */
+        void onProgram(Program program);
+
+        /**
+         * Called once after the whole document has been parsed. This is not called if parsing
+         * failed.
+         */
+        void onEnd();
+    }
+
+    /**
+     * Implemented by an {@link XmlTvHandler} to receive a fingerprint of the programs of each
+     * channel in the document.
+     */
+    public interface FingerprintListener {
+        /**
+         * Called once all programs of a channel have been read, before the first program of the
+         * next channel is passed to {@link XmlTvHandler#onProgram(Program)}, or before
+         * {@link XmlTvHandler#onEnd()}. Programs are expected to be grouped by channel.
+         * <p>
+         * The fingerprint covers the content of the programs of the channel, as they would be
+         * written to the EPG, and whether they repeat. Programs outside of the time window of the
+         * {@link ParseOptions} are covered as well, so the fingerprint only changes when the
+         * programs of the channel change in the document, not as the window moves. They are
+         * fingerprinted from the values read from their elements, without being validated or
+         * built. Invalid programs inside of the window, which a lenient parse drops, are not
+         * covered.
+         * <p>
+         * If the programs of a channel are split into several runs in the document, each run is
+         * fingerprinted and reported on its own.
+         *
+         * @param originalNetworkId The original network id of the channel.
+         * @param fingerprint A 64-bit fingerprint of the programs of the channel.
+         */
+        void onFingerprint(int originalNetworkId, long fingerprint);
+    }
+
+    /**
+     * Implemented by an {@link XmlTvHandler} to learn about the channels and programs which were
+     * dropped by a lenient parse, see {@link ParseOptions.Builder#setLenient(boolean)}.
+     */
+    public interface ErrorListener {
+        /**
+         * Called once before {@link XmlTvHandler#onEnd()} if the parse is lenient.
+         *
+         * @param errors The channels and programs which could not be parsed and were dropped.
+         */
+        void onErrors(ParseErrors errors);
+    }
+
+    /**
+     * Implemented by an {@link XmlTvHandler} which may stop a parse before the end of the
+     * document, such as when the work it does with the channels and programs has been cancelled.
+     */
+    public interface StopCondition {
+        /**
+         * Called before each channel and program is parsed.
+         *
+         * @return Whether to stop the parse. The parse then returns {@code false}, and
+         * {@link XmlTvHandler#onEnd()} is not called.
+         */
+        boolean shouldStopParsing();
+    }
+
+    /**
+     * Counts the channels and programs a lenient parse dropped, by the type of error which made
+     * them invalid.
+     */
+    public static final class ParseErrors {
+        /** A required attribute or element, such as the start time of a program, is missing. */
+        public static final int ERROR_MISSING_FIELD = 0;
+        /** A start or stop time is not a valid XMLTV timestamp. */
+        public static final int ERROR_INVALID_TIME = 1;
+        /** Any other value which is not valid, such as a color or content rating. */
+        public static final int ERROR_INVALID_VALUE = 2;
+        private static final int ERROR_TYPE_COUNT = 3;
+
+        private final int[] mCounts = new int[ERROR_TYPE_COUNT];
+        private int mDroppedChannelCount;
+        private int mDroppedProgramCount;
+
+        ParseErrors() {
+        }
+
+        /**
+         * @param errorType One of the ERROR_* constants.
+         * @return The number of records which were dropped because of the given type of error.
+         */
+        public int getCount(int errorType) {
+            return mCounts[errorType];
+        }
+
+        /**
+         * @return The number of channels which were dropped.
+         */
+        public int getDroppedChannelCount() {
+            return mDroppedChannelCount;
+        }
+
+        /**
+         * @return The number of programs which were dropped.
+         */
+        public int getDroppedProgramCount() {
+            return mDroppedProgramCount;
+        }
+
+        /**
+         * @return Whether no record was dropped.
+         */
+        public boolean isEmpty() {
+            return mDroppedChannelCount == 0 && mDroppedProgramCount == 0;
+        }
+
+        void add(ParseErrors other) {
+            for (int i = 0; i < ERROR_TYPE_COUNT; i++) {
+                mCounts[i] += other.mCounts[i];
+            }
+            mDroppedChannelCount += other.mDroppedChannelCount;
+            mDroppedProgramCount += other.mDroppedProgramCount;
+        }
+
+        @Override
+        public String toString() {
+            return "ParseErrors{"
+                    + "droppedChannels=" + mDroppedChannelCount
+                    + ", droppedPrograms=" + mDroppedProgramCount
+                    + ", missingField=" + mCounts[ERROR_MISSING_FIELD]
+                    + ", invalidTime=" + mCounts[ERROR_INVALID_TIME]
+                    + ", invalidValue=" + mCounts[ERROR_INVALID_VALUE]
+                    + "}";
+        }
+    }
+
+    /**
+     * Selects the channels and programs a parse returns. Programs which are not selected are
+     * skipped on the attributes of their {@code <programme>} element, without decoding their
+     * children.
+     */
+    public static final class ParseOptions {
+        /** The {@code <desc>} of a program. */
+        public static final int FIELD_DESCRIPTION = 1;
+        /** The {@code <long-desc>} of a program. */
+        public static final int FIELD_LONG_DESCRIPTION = 1 << 1;
+        /** The {@code <episode-title>} of a program. */
+        public static final int FIELD_EPISODE_TITLE = 1 << 2;
+        /** The {@code <icon>} of a program, which is its poster art. */
+        public static final int FIELD_POSTER_ART = 1 << 3;
+        /** The {@code <rating>} elements of a program. */
+        public static final int FIELD_CONTENT_RATINGS = 1 << 4;
+        /** All optional fields of a program. */
+        public static final int FIELD_ALL = FIELD_DESCRIPTION | FIELD_LONG_DESCRIPTION
+                | FIELD_EPISODE_TITLE | FIELD_POSTER_ART | FIELD_CONTENT_RATINGS;
+
+        /** Selects every channel and program, with all of their fields. */
+        public static final ParseOptions DEFAULT = new Builder().build();
+
+        private long mStartTimeUtcMillis = Long.MIN_VALUE;
+        private long mEndTimeUtcMillis = Long.MAX_VALUE;
+        private Set<String> mChannelIds;
+        private int mProgramFields = FIELD_ALL;
+        private boolean mLenient;
+
+        private ParseOptions() {
+        }
+
+        /**
+         * @return Whether the channel with the given XMLTV id is selected.
+         */
+        boolean isChannelSelected(String channelId) {
+            return mChannelIds == null || mChannelIds.contains(channelId);
+        }
+
+        /**
+         * @return Whether a program which does not repeat is selected by its time.
+         */
+        boolean isTimeSelected(long startTimeUtcMillis, long endTimeUtcMillis) {
+            return endTimeUtcMillis > mStartTimeUtcMillis
+                    && startTimeUtcMillis <= mEndTimeUtcMillis;
+        }
+
+        /**
+         * This Builder class simplifies the creation of a {@link ParseOptions} object.
+         */
+        public static final class Builder {
+            private final ParseOptions mOptions = new ParseOptions();
+
+            /**
+             * Selects only programs which are on the air between the given times. Programs of
+             * channels with {@code repeat-programs="true"} are always selected, as their times
+             * only describe the loop they are scheduled in.
+             *
+             * @param startTimeUtcMillis The start of the time window in milliseconds since the
+             * epoch. Programs which end before this time are skipped.
+             * @param endTimeUtcMillis The end of the time window in milliseconds since the epoch.
+             * Programs which start after this time are skipped.
+             * @return This Builder object to allow for chaining of calls to builder methods.
+             */
+            public Builder setTimeWindow(long startTimeUtcMillis, long endTimeUtcMillis) {
+                if (startTimeUtcMillis > endTimeUtcMillis) {
+                    throw new IllegalArgumentException("Start time must be before end time");
+                }
+                mOptions.mStartTimeUtcMillis = startTimeUtcMillis;
+                mOptions.mEndTimeUtcMillis = endTimeUtcMillis;
+                return this;
+            }
+
+            /**
+             * Selects only the channels with the given XMLTV ids, and their programs.
+             *
+             * @param channelIds The values of the {@code id} attribute of the channels to select.
+             * @return This Builder object to allow for chaining of calls to builder methods.
+             */
+            public Builder setChannelIds(Collection<String> channelIds) {
+                mOptions.mChannelIds = new HashSet<>(channelIds);
+                return this;
+            }
+
+            /**
+             * Sets the optional fields which are extracted from the programs. The elements of the
+             * other fields are skipped without being decoded, and the fields are left empty. The
+             * title, times, thumbnail and video of a program are always extracted.
+             *
+             * @param fields A combination of the FIELD_* constants. {@link #FIELD_ALL} by default.
+             * @return This Builder object to allow for chaining of calls to builder methods.
+             */
+            public Builder setProgramFields(int fields) {
+                mOptions.mProgramFields = fields;
+                return this;
+            }
+
+            /**
+             * Sets whether channels and programs which cannot be parsed, for instance because
+             * their start time is missing or invalid, are dropped while the rest of the document
+             * is parsed. The dropped records are counted in {@link TvListing#getParseErrors()}, or
+             * passed to a handler which is an {@link ErrorListener}. Otherwise, such a record
+             * fails the whole parse. Documents which are not well-formed XML always fail.
+             *
+             * @param lenient Whether to drop invalid records. {@code false} by default.
+             * @return This Builder object to allow for chaining of calls to builder methods.
+             */
+            public Builder setLenient(boolean lenient) {
+                mOptions.mLenient = lenient;
+                return this;
+            }
+
+            /**
+             * @return A new ParseOptions with values supplied by the Builder.
+             */
+            public ParseOptions build() {
+                ParseOptions options = new ParseOptions();
+                options.mStartTimeUtcMillis = mOptions.mStartTimeUtcMillis;
+                options.mEndTimeUtcMillis = mOptions.mEndTimeUtcMillis;
+                options.mChannelIds = mOptions.mChannelIds;
+                options.mProgramFields = mOptions.mProgramFields;
+                options.mLenient = mOptions.mLenient;
+                return options;
+            }
+        }
+    }
+
+    /**
+     * The state of a single parse.
+     */
+    private static class ParseContext {
+        final ParseOptions options;
+        /**
+         * Shares the values of the programs of a listing, or {@code null} if the programs are
+         * passed to a handler, which does not keep them.
+         */
+        final InternPool internPool;
+        /** XMLTV ids of the channels whose programs repeat. */
+        final Set<String> repeatingChannelIds = new HashSet<>();
+        /** Stops the parse, if the handler is a {@link StopCondition}. */
+        StopCondition stopCondition;
+        /** Whether programs are fingerprinted, for a {@link FingerprintListener}. */
+        boolean fingerprinting;
+        /** The fingerprint of the programs of blockChannelId which have been read so far. */
+        long blockFingerprint = FINGERPRINT_SEED;
+        /** The fingerprint of the last program, if hasProgramFingerprint is set. */
+        long programFingerprint;
+        boolean hasProgramFingerprint;
+        /** XMLTV id of the channel of the last program. */
+        String programChannelId;
+        /** XMLTV id of the channel whose programs are being read. */
+        String blockChannelId;
+        /** The records which have been dropped, if the parse is lenient. */
+        final ParseErrors errors = new ParseErrors();
+
+        ParseContext(ParseOptions options, InternPool internPool) {
+            this.options = options;
+            this.internPool = internPool;
+        }
+
+        String intern(String value) {
+            return internPool != null ? internPool.intern(value) : value;
+        }
+
+        boolean isProgramSelected(String channelId, Long startTimeUtcMillis,
+                Long endTimeUtcMillis) {
+            if (channelId == null || startTimeUtcMillis == null || endTimeUtcMillis == null) {
+                // Let the program be rejected as invalid
+                return true;
+            }
+            return options.isChannelSelected(channelId)
+                    && (repeatingChannelIds.contains(channelId)
+                    || options.isTimeSelected(startTimeUtcMillis, endTimeUtcMillis));
+        }
+    }
+
+    /**
+     * Collects every channel and program of a document into a {@link TvListing}.
+     */
+    private static class TvListingHandler implements XmlTvHandler, ErrorListener {
+        private final List<Channel> mChannels = new ArrayList<>();
+        private final List<Program> mPrograms = new ArrayList<>();
+        private final ParseErrors mErrors = new ParseErrors();
+
+        @Override
+        public void onChannel(Channel channel) {
+            mChannels.add(channel);
+        }
+
+        @Override
+        public void onProgram(Program program) {
+            mPrograms.add(program);
+        }
+
+        @Override
+        public void onErrors(ParseErrors errors) {
+            mErrors.add(errors);
+        }
+
+        @Override
+        public void onEnd() {
+        }
+
+        TvListing getTvListing() {
+            TvListing listing = new TvListing(mChannels, mPrograms);
+            listing.mParseErrors = mErrors;
+            return listing;
+        }
     }
 
     private static class XmlTvIcon {
@@ -523,6 +1249,18 @@ public class XmlTvParser {
         }
     }
 
+    /**
+     * Thrown when a channel or program lacks a required field.
+     */
+    private static class InvalidRecordException extends IllegalArgumentException {
+        final int errorType;
+
+        InvalidRecordException(int errorType, String msg) {
+            super(msg);
+            this.errorType = errorType;
+        }
+    }
+
     /**
      * An exception that indicates the provided XMLTV file is invalid or improperly formatted.
      */
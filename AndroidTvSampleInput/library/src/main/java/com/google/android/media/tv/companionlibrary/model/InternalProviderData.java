@@ -55,6 +55,12 @@ public class InternalProviderData {
     private static final String KEY_VIDEO_TYPE = "type";
     private static final String KEY_VIDEO_URL = "url";
 
+    /**
+     * Key used to store whether the programs of a channel are scheduled in a loop.
+     * This key is set on channels.
+     */
+    private static final String KEY_REPEATABLE = "repeatable";
+
     /**
      * Key used to support storage of arbitrary data.
      */
@@ -295,6 +301,34 @@ public class InternalProviderData {
         }
     }
 
+    /**
+     * Gets whether the programs of the channel are scheduled sequentially in a loop.
+     *
+     * @return Whether the programs repeat, false if no value has been given.
+     */
+    public boolean isRepeatable() {
+        if (mJsonObject.has(KEY_REPEATABLE)) {
+            try {
+                return mJsonObject.getBoolean(KEY_REPEATABLE);
+            } catch (JSONException ignored) {
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets whether the programs of the channel are scheduled sequentially in a loop, rather than
+     * at their own start and end times.
+     *
+     * @param repeatable Whether the programs repeat.
+     */
+    public void setRepeatable(boolean repeatable) {
+        try {
+            mJsonObject.put(KEY_REPEATABLE, repeatable);
+        } catch (JSONException ignored) {
+        }
+    }
+
     /**
      * Adds some custom data to the InternalProviderData.
      * Developers are encouraged to use this blob to store arbitrary data.
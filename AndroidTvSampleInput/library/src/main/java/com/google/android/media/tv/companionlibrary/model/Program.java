@@ -25,7 +25,8 @@ import androidx.annotation.NonNull;
 import android.text.TextUtils;
 
 import com.google.android.media.tv.companionlibrary.utils.CollectionUtils;
-import com.google.android.media.tv.companionlibrary.utils.TvContractUtils;
+import com.google.android.media.tv.companionlibrary.utils.ContentRatingCache;
+import com.google.android.media.tv.companionlibrary.utils.RowFingerprint;
 
 import java.util.Arrays;
 import java.util.Objects;
@@ -39,6 +40,17 @@ public final class Program implements Comparable<Program> {
      */
     public static final String[] PROJECTION = getProjection();
 
+    /**
+     * The column in which {@link #toContentValues()} stores the {@link #getFingerprint()
+     * fingerprint} of a program, on Android N and above. It is reserved by this library.
+     */
+    public static final String COLUMN_FINGERPRINT =
+            TvContract.Programs.COLUMN_INTERNAL_PROVIDER_FLAG4;
+
+    /** The columns of {@link #PROJECTION} which make up the content of a program. */
+    private static final String[] CONTENT_COLUMNS =
+            Arrays.copyOfRange(PROJECTION, 1, PROJECTION.length);
+
     private static final long INVALID_LONG_VALUE = -1;
     private static final int INVALID_INT_VALUE = -1;
     private static final int IS_RECORDING_PROHIBITED = 1;
@@ -66,6 +78,8 @@ public final class Program implements Comparable<Program> {
     private int mRecordingProhibited;
     private int mSearchable;
     private String mSeasonTitle;
+    /** Computed on first use, and not copied by {@link Builder}. */
+    private Long mFingerprint;
 
     private Program() {
         mChannelId = INVALID_LONG_VALUE;
@@ -344,12 +358,49 @@ public final class Program implements Comparable<Program> {
         mInternalProviderData = other.mInternalProviderData;
     }
 
+    /**
+     * Returns a 64-bit fingerprint of the content of the program: every column written by
+     * {@link #toContentValues()}, except for the row id and the fingerprint itself. Programs with
+     * the same fingerprint write the same row.
+     *
+     * @return The fingerprint.
+     * @hide
+     */
+    public long getFingerprint() {
+        if (mFingerprint == null) {
+            mFingerprint = RowFingerprint.of(getContentValues(), CONTENT_COLUMNS);
+        }
+        return mFingerprint;
+    }
+
+    /**
+     * Returns the fingerprint of a row read with {@link #PROJECTION}, which is the same as the
+     * {@link #getFingerprint()} of the program written to that row.
+     *
+     * @hide
+     */
+    public static long getFingerprint(Cursor cursor) {
+        return RowFingerprint.of(cursor, 1, CONTENT_COLUMNS.length);
+    }
+
     /**
      * @return The fields of the Program in the ContentValues format to be easily inserted into the
-     * TV Input Framework database.
+     * TV Input Framework database. On Android N and above, they include the fingerprint of the
+     * program in {@link #COLUMN_FINGERPRINT}.
      * @hide
      */
     public ContentValues toContentValues() {
+        ContentValues values = getContentValues();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            if (mFingerprint == null) {
+                mFingerprint = RowFingerprint.of(values, CONTENT_COLUMNS);
+            }
+            values.put(COLUMN_FINGERPRINT, mFingerprint);
+        }
+        return values;
+    }
+
+    private ContentValues getContentValues() {
         ContentValues values = new ContentValues();
         if (mId != INVALID_LONG_VALUE) {
             values.put(TvContract.Programs._ID, mId);
@@ -422,7 +473,7 @@ public final class Program implements Comparable<Program> {
         }
         if (mContentRatings != null && mContentRatings.length > 0) {
             values.put(TvContract.Programs.COLUMN_CONTENT_RATING,
-                    TvContractUtils.contentRatingsToString(mContentRatings));
+                    ContentRatingCache.flattenAll(mContentRatings));
         } else {
             values.putNull(TvContract.Programs.COLUMN_CONTENT_RATING);
         }
@@ -529,7 +580,7 @@ public final class Program implements Comparable<Program> {
         }
         if (!cursor.isNull(++index)) {
             builder.setContentRatings(
-                    TvContractUtils.stringToContentRatings(cursor.getString(index)));
+                    ContentRatingCache.unflattenAll(cursor.getString(index)));
         }
         if (!cursor.isNull(++index)) {
             builder.setStartTimeUtcMillis(cursor.getLong(index));
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.media.tv.companionlibrary.utils;
+
+import android.media.tv.TvContentRating;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts {@link TvContentRating ratings} to and from their flattened strings. A listing only
+ * uses a few dozen distinct ratings, so each string is parsed once and each rating is flattened
+ * once, instead of once per program.
+ * <p>
+ * Arrays returned by this class are shared by every caller and must not be modified.
+ */
+public final class ContentRatingCache {
+    /** Entries kept per map before the cache starts over. */
+    private static final int MAX_SIZE = 512;
+    private static final char DELIMITER = ',';
+
+    private static final ConcurrentHashMap<String, TvContentRating> sRatings =
+            new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<TvContentRating, String> sFlattenedRatings =
+            new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, TvContentRating[]> sRatingArrays =
+            new ConcurrentHashMap<>();
+
+    private ContentRatingCache() {
+    }
+
+    /**
+     * @param flattenedRating A string created by {@link TvContentRating#flattenToString()}.
+     * @return The rating the string represents.
+     * @throws IllegalArgumentException if the string is not a valid rating.
+     */
+    public static TvContentRating unflatten(String flattenedRating) {
+        TvContentRating rating = sRatings.get(flattenedRating);
+        if (rating == null) {
+            rating = TvContentRating.unflattenFromString(flattenedRating);
+            if (rating == null) {
+                return null;
+            }
+            trim(sRatings);
+            sRatings.put(flattenedRating, rating);
+        }
+        return rating;
+    }
+
+    /**
+     * @return The flattened string of the given rating.
+     */
+    public static String flatten(TvContentRating rating) {
+        String flattenedRating = sFlattenedRatings.get(rating);
+        if (flattenedRating == null) {
+            flattenedRating = rating.flattenToString();
+            trim(sFlattenedRatings);
+            sFlattenedRatings.put(rating, flattenedRating);
+        }
+        return flattenedRating;
+    }
+
+    /**
+     * Parses a string of comma-separated ratings into an array of {@link TvContentRating}.
+     *
+     * @param commaSeparatedRatings String containing various ratings, separated by commas.
+     * @return An array of TvContentRatings, or {@code null} if the string is empty.
+     * @throws IllegalArgumentException if the string contains an invalid rating.
+     */
+    public static TvContentRating[] unflattenAll(String commaSeparatedRatings) {
+        if (TextUtils.isEmpty(commaSeparatedRatings)) {
+            return null;
+        }
+        TvContentRating[] ratings = sRatingArrays.get(commaSeparatedRatings);
+        if (ratings == null) {
+            List<TvContentRating> ratingList = new ArrayList<>();
+            int start = 0;
+            int length = commaSeparatedRatings.length();
+            while (start <= length) {
+                int end = commaSeparatedRatings.indexOf(DELIMITER, start);
+                if (end < 0) {
+                    end = length;
+                }
+                String rating = commaSeparatedRatings.substring(start, end).trim();
+                if (!rating.isEmpty() || end < length) {
+                    ratingList.add(unflatten(rating));
+                }
+                start = end + 1;
+            }
+            ratings = ratingList.toArray(new TvContentRating[ratingList.size()]);
+            trim(sRatingArrays);
+            sRatingArrays.put(commaSeparatedRatings, ratings);
+        }
+        return ratings;
+    }
+
+    /**
+     * Flattens an array of {@link TvContentRating} into a String to be inserted into a database.
+     *
+     * @param ratings An array of TvContentRatings.
+     * @return A comma-separated String of ratings, or {@code null} if the array is empty.
+     */
+    public static String flattenAll(TvContentRating[] ratings) {
+        if (ratings == null || ratings.length == 0) {
+            return null;
+        }
+        if (ratings.length == 1) {
+            return flatten(ratings[0]);
+        }
+        StringBuilder flattenedRatings = new StringBuilder(flatten(ratings[0]));
+        for (int i = 1; i < ratings.length; ++i) {
+            flattenedRatings.append(DELIMITER).append(flatten(ratings[i]));
+        }
+        return flattenedRatings.toString();
+    }
+
+    private static void trim(ConcurrentHashMap<?, ?> cache) {
+        if (cache.size() >= MAX_SIZE) {
+            cache.clear();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.media.tv.companionlibrary.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shares equal strings between the programs of a listing. Program data repeats a lot: looping
+ * channels and long running series carry the same titles, descriptions and artwork URIs in
+ * thousands of programs, which would otherwise each hold their own copy.
+ * <p>
+ * A pool is used by one parse, and the values it holds are only shared with the listing it
+ * builds, so they are released together with the listing. A pool is not thread safe.
+ * <p>
+ * Only immutable values are shared. Arrays, such as the content ratings of a program, are handed
+ * out by its getters and stay with their program.
+ */
+public final class InternPool {
+    private final Map<String, String> mStrings = new HashMap<>();
+
+    /**
+     * @return A string equal to the given one which is shared with other callers, or
+     * {@code null} if the given string is {@code null}.
+     */
+    public String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String interned = mStrings.get(value);
+        if (interned == null) {
+            interned = value;
+            mStrings.put(value, value);
+        }
+        return interned;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.media.tv.companionlibrary.utils;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+/**
+ * Computes a 64-bit fingerprint of the columns of a database row, either from the
+ * {@link ContentValues} which write the row or from a {@link Cursor} which reads it. Both give
+ * the same fingerprint for the same values, so a row can be compared with the values which
+ * would be written without decoding it.
+ *
+ * @hide
+ */
+public final class RowFingerprint {
+    // 64-bit FNV-1a
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // Type tags, so that values of different types and null do not collide
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_INTEGER = 1;
+    private static final int TYPE_STRING = 2;
+    private static final int TYPE_BLOB = 3;
+
+    private RowFingerprint() {
+    }
+
+    /**
+     * @param columns The columns to fingerprint, in order. Columns which are not in the values
+     * count as null.
+     * @return The fingerprint of the row which the values would write.
+     */
+    public static long of(ContentValues values, String[] columns) {
+        long hash = FNV_OFFSET_BASIS;
+        for (String column : columns) {
+            Object value = values.get(column);
+            if (value == null) {
+                hash = hashNull(hash);
+            } else if (value instanceof String) {
+                hash = hashString(hash, (String) value);
+            } else if (value instanceof byte[]) {
+                hash = hashBlob(hash, (byte[]) value);
+            } else if (value instanceof Boolean) {
+                hash = hashLong(hash, (Boolean) value ? 1 : 0);
+            } else {
+                hash = hashLong(hash, ((Number) value).longValue());
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @param fromIndex The index of the first column to fingerprint.
+     * @param count The number of columns to fingerprint.
+     * @return The fingerprint of the current row of the cursor.
+     */
+    public static long of(Cursor cursor, int fromIndex, int count) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = fromIndex; i < fromIndex + count; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    hash = hashNull(hash);
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    hash = hashLong(hash, cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    hash = hashBlob(hash, cursor.getBlob(i));
+                    break;
+                default:
+                    hash = hashString(hash, cursor.getString(i));
+                    break;
+            }
+        }
+        return hash;
+    }
+
+    private static long hashNull(long hash) {
+        return hashByte(hash, TYPE_NULL);
+    }
+
+    private static long hashLong(long hash, long value) {
+        hash = hashByte(hash, TYPE_INTEGER);
+        for (int shift = 0; shift < 64; shift += 8) {
+            hash = hashByte(hash, (int) (value >>> shift));
+        }
+        return hash;
+    }
+
+    private static long hashString(long hash, String value) {
+        // The length keeps adjacent columns from shifting into each other.
+        hash = hashLength(hashByte(hash, TYPE_STRING), value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = hashByte(hashByte(hash, c), c >>> 8);
+        }
+        return hash;
+    }
+
+    private static long hashBlob(long hash, byte[] value) {
+        hash = hashLength(hashByte(hash, TYPE_BLOB), value.length);
+        for (byte b : value) {
+            hash = hashByte(hash, b);
+        }
+        return hash;
+    }
+
+    private static long hashLength(long hash, int length) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            hash = hashByte(hash, length >>> shift);
+        }
+        return hash;
+    }
+
+    private static long hashByte(long hash, int b) {
+        return (hash ^ (b & 0xff)) * FNV_PRIME;
+    }
+}
@@ -30,6 +30,7 @@ import android.util.Log;
 import android.util.LongSparseArray;
 import android.util.SparseArray;
 
+import com.google.android.media.tv.companionlibrary.SyncStats;
 import com.google.android.media.tv.companionlibrary.model.Channel;
 import com.google.android.media.tv.companionlibrary.model.Program;
 
@@ -118,9 +119,26 @@ public class TvContractUtils {
      *                 its own way to collecting those channels. Referring to the method in "getChannels()" in SampleJobService.java
      */
     public static void updateChannelsWithTif(Context context, String inputId, List<Channel> channels) {
+        updateChannelsWithTif(context, inputId, channels,
+                new SyncStats(System.currentTimeMillis()));
+    }
+
+    /**
+     * Updates the list of available channels in the TIF database, and records the time spent in
+     * {@link SyncStats#PHASE_CHANNEL_UPSERT} and {@link SyncStats#PHASE_TIF_EXTENSION_INSERT}.
+     *
+     * @see #updateChannelsWithTif(Context, String, List)
+     * @hide
+     */
+    public static void updateChannelsWithTif(Context context, String inputId,
+            List<Channel> channels, SyncStats stats) {
         ContentResolver contentResolver = context.getContentResolver();
+        long startNanos = System.nanoTime();
         processChannels(contentResolver, channels, inputId, context.getPackageName());
+        stats.addPhaseTime(SyncStats.PHASE_CHANNEL_UPSERT, startNanos);
+        startNanos = System.nanoTime();
         updateChannelMetadata(contentResolver, channels, context);
+        stats.addPhaseTime(SyncStats.PHASE_TIF_EXTENSION_INSERT, startNanos);
     }
 
     /**
@@ -413,15 +431,9 @@ public class TvContractUtils {
      * @hide
      */
     public static TvContentRating[] stringToContentRatings(String commaSeparatedRatings) {
-        if (TextUtils.isEmpty(commaSeparatedRatings)) {
-            return null;
-        }
-        String[] ratings = commaSeparatedRatings.split("\\s*,\\s*");
-        TvContentRating[] contentRatings = new TvContentRating[ratings.length];
-        for (int i = 0; i < contentRatings.length; ++i) {
-            contentRatings[i] = TvContentRating.unflattenFromString(ratings[i]);
-        }
-        return contentRatings;
+        // The cached array is shared by every caller, so it is not handed out.
+        TvContentRating[] contentRatings = ContentRatingCache.unflattenAll(commaSeparatedRatings);
+        return contentRatings == null ? null : contentRatings.clone();
     }
 
     /**
@@ -432,16 +444,7 @@ public class TvContractUtils {
      * @hide
      */
     public static String contentRatingsToString(TvContentRating[] contentRatings) {
-        if (contentRatings == null || contentRatings.length == 0) {
-            return null;
-        }
-        final String DELIMITER = ",";
-        StringBuilder ratings = new StringBuilder(contentRatings[0].flattenToString());
-        for (int i = 1; i < contentRatings.length; ++i) {
-            ratings.append(DELIMITER);
-            ratings.append(contentRatings[i].flattenToString());
-        }
-        return ratings.toString();
+        return ContentRatingCache.flattenAll(contentRatings);
     }
 
     private TvContractUtils() {
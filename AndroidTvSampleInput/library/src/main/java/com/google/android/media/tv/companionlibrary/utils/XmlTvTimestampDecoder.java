@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.media.tv.companionlibrary.utils;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decodes XMLTV timestamps of the form {@code yyyyMMddHHmmss Z}, e.g.
+ * {@code 20150817000147 +0000}, into milliseconds since the epoch.
+ * <p>
+ * Timestamps in this exact layout are decoded directly from their characters without allocating
+ * any objects, so the decoder is safe to use from any number of threads. Anything else, such as a
+ * named time zone or out-of-range fields, falls back to {@link SimpleDateFormat} so that the
+ * result is always the same as parsing with the {@code yyyyMMddHHmmss Z} pattern.
+ * <p>
+ * A feed uses only a few zone offsets, so the offsets which have been decoded are cached by the
+ * characters of their zone.
+ */
+public final class XmlTvTimestampDecoder {
+    private static final String PATTERN = "yyyyMMddHHmmss Z";
+    private static final int LENGTH = PATTERN.length() + 4;  // "Z" is written as "+HHMM"
+    private static final int SEPARATOR_INDEX = 14;
+    private static final int ZONE_INDEX = 15;
+    /** Earlier dates use the Julian calendar in {@link java.util.GregorianCalendar}. */
+    private static final int FIRST_GREGORIAN_YEAR = 1583;
+    /** No zone is further than 14 hours from UTC. Larger offsets are left to the fallback. */
+    private static final int MAX_ZONE_HOURS = 14;
+    private static final int ZONE_LENGTH = 5;
+    private static final int ZONE_CACHE_SIZE = 8;
+    /** Returned by {@link #zoneOffsetMinutes(String)} for a zone outside of the fixed layout. */
+    private static final int INVALID_ZONE = Integer.MIN_VALUE;
+
+    private static final long MILLIS_PER_SECOND = 1000;
+    private static final long MILLIS_PER_MINUTE = 60 * MILLIS_PER_SECOND;
+    private static final long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+    private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+    /**
+     * The zone offsets which have been decoded. Each entry packs the 7-bit characters of a zone
+     * above its offset in minutes, in 16 bits. An entry of 0 is empty, as no zone starts with a
+     * 0 character.
+     */
+    private static final AtomicLongArray ZONE_CACHE = new AtomicLongArray(ZONE_CACHE_SIZE);
+
+    /** Used for timestamps outside of the fixed layout. Guarded by itself. */
+    private static final SimpleDateFormat FALLBACK_FORMAT = new SimpleDateFormat(PATTERN,
+            Locale.US);
+
+    private XmlTvTimestampDecoder() {
+    }
+
+    /**
+     * Decodes an XMLTV timestamp.
+     *
+     * @param value A timestamp in the {@code yyyyMMddHHmmss Z} format.
+     * @return The timestamp in milliseconds since the epoch.
+     * @throws ParseException If the value is not a valid timestamp.
+     */
+    public static long decode(String value) throws ParseException {
+        if (value == null) {
+            throw new ParseException("Timestamp is null", 0);
+        }
+        if (value.length() == LENGTH && value.charAt(SEPARATOR_INDEX) == ' ') {
+            int year = digits(value, 0, 4);
+            int month = digits(value, 4, 2);
+            int day = digits(value, 6, 2);
+            int hour = digits(value, 8, 2);
+            int minute = digits(value, 10, 2);
+            int second = digits(value, 12, 2);
+            int zoneOffsetMinutes = zoneOffsetMinutes(value);
+            if (year >= FIRST_GREGORIAN_YEAR && month >= 1 && month <= 12 && day >= 1
+                    && day <= daysInMonth(year, month) && hour >= 0 && hour <= 23
+                    && minute >= 0 && minute <= 59 && second >= 0 && second <= 59
+                    && zoneOffsetMinutes != INVALID_ZONE) {
+                long localMillis = daysSinceEpoch(year, month, day) * MILLIS_PER_DAY
+                        + hour * MILLIS_PER_HOUR + minute * MILLIS_PER_MINUTE
+                        + second * MILLIS_PER_SECOND;
+                return localMillis - zoneOffsetMinutes * MILLIS_PER_MINUTE;
+            }
+        }
+        synchronized (FALLBACK_FORMAT) {
+            return FALLBACK_FORMAT.parse(value).getTime();
+        }
+    }
+
+    /**
+     * Returns the offset from UTC of the {@code +HHMM} zone at the end of a timestamp in minutes,
+     * or {@link #INVALID_ZONE} if the zone is not in this layout or further than
+     * {@link #MAX_ZONE_HOURS} from UTC.
+     */
+    private static int zoneOffsetMinutes(String value) {
+        long key = 0;
+        for (int i = ZONE_INDEX; i < ZONE_INDEX + ZONE_LENGTH; i++) {
+            char c = value.charAt(i);
+            if (c == 0 || c > 0x7f) {
+                return INVALID_ZONE;
+            }
+            key = key << 7 | c;
+        }
+        int slot = (int) (key ^ key >>> 21) & (ZONE_CACHE_SIZE - 1);
+        long entry = ZONE_CACHE.get(slot);
+        if (entry >>> 16 == key) {
+            return (short) entry;
+        }
+        int zoneHours = digits(value, ZONE_INDEX + 1, 2);
+        int zoneMinutes = digits(value, ZONE_INDEX + 3, 2);
+        char sign = value.charAt(ZONE_INDEX);
+        if (zoneHours < 0 || zoneHours > MAX_ZONE_HOURS || zoneMinutes < 0 || zoneMinutes > 59
+                || (sign != '+' && sign != '-')) {
+            return INVALID_ZONE;
+        }
+        int offsetMinutes = zoneHours * 60 + zoneMinutes;
+        if (sign == '-') {
+            offsetMinutes = -offsetMinutes;
+        }
+        // Another thread may replace the entry at any time, which only costs a decode.
+        ZONE_CACHE.set(slot, key << 16 | (offsetMinutes & 0xffff));
+        return offsetMinutes;
+    }
+
+    /**
+     * Returns the decimal value of {@code length} characters starting at {@code start}, or -1 if
+     * any of them is not a digit.
+     */
+    private static int digits(String value, int start, int length) {
+        int result = 0;
+        for (int i = start; i < start + length; i++) {
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                boolean leapYear = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+                return leapYear ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * Returns the number of days from 1970-01-01 to the given date of the proleptic Gregorian
+     * calendar.
+     */
+    private static long daysSinceEpoch(int year, int month, int day) {
+        // Count years from March so that the leap day is the last day of the year.
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
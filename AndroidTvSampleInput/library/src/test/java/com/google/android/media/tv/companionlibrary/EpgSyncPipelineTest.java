@@ -0,0 +1,235 @@
+package com.google.android.media.tv.companionlibrary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.ContentProviderOperation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EpgSyncPipelineTest {
+    private static final int BATCH_SIZE = 10;
+
+    @Test
+    public void testWritesInBatchesOnOneThread() throws Exception {
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Thread> writerThreads = Collections.synchronizedList(new ArrayList<Thread>());
+        EpgSyncPipeline pipeline = new EpgSyncPipeline(new OperationBatcher(
+                new OperationBatcher.BatchWriter() {
+                    @Override
+                    public void applyBatch(ArrayList<ContentProviderOperation> operations) {
+                        batchSizes.add(operations.size());
+                        writerThreads.add(Thread.currentThread());
+                    }
+                }, Integer.MAX_VALUE, BATCH_SIZE), 4);
+        final AtomicInteger written = new AtomicInteger();
+        try {
+            for (int channel = 0; channel < 20; channel++) {
+                pipeline.submit(channel, new FakeTask(25, 0) {
+                    @Override
+                    public void onWritten(boolean success) {
+                        assertTrue(success);
+                        written.incrementAndGet();
+                    }
+                });
+            }
+            pipeline.await();
+        } finally {
+            pipeline.shutdown();
+        }
+        assertEquals(20, written.get());
+        // The operations of different channels share transactions, so every one is full.
+        assertEquals(20 * 25 / BATCH_SIZE, batchSizes.size());
+        for (int size : batchSizes) {
+            assertEquals(BATCH_SIZE, size);
+        }
+        for (Thread thread : writerThreads) {
+            assertSame(writerThreads.get(0), thread);
+        }
+    }
+
+    @Test
+    public void testFlushesPartialTransactionAfterDelay() throws Exception {
+        final CountDownLatch written = new CountDownLatch(1);
+        EpgSyncPipeline pipeline = new EpgSyncPipeline(newBatcher(), 2);
+        try {
+            long startMs = System.currentTimeMillis();
+            pipeline.submit(1, new FakeTask(1, 0) {
+                @Override
+                public void onWritten(boolean success) {
+                    written.countDown();
+                }
+            });
+            // The operation is written without waiting for the end of the sync.
+            assertTrue(written.await(EpgSyncPipeline.FLUSH_DELAY_MS * 5, TimeUnit.MILLISECONDS));
+            assertTrue(System.currentTimeMillis() - startMs
+                    >= EpgSyncPipeline.FLUSH_DELAY_MS / 2);
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    public void testTasksOfOneChannelDoNotOverlap() throws Exception {
+        EpgSyncPipeline pipeline = new EpgSyncPipeline(newBatcher(), 4);
+        final AtomicBoolean inFlight = new AtomicBoolean();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        try {
+            for (int i = 0; i < 10; i++) {
+                pipeline.submit(1, new FakeTask(1, 5) {
+                    @Override
+                    public OperationBatcher.Operations prepare() {
+                        if (!inFlight.compareAndSet(false, true)) {
+                            overlapped.set(true);
+                        }
+                        return super.prepare();
+                    }
+
+                    @Override
+                    public void onWritten(boolean success) {
+                        inFlight.set(false);
+                    }
+                });
+            }
+            pipeline.await();
+        } finally {
+            pipeline.shutdown();
+        }
+        assertFalse(overlapped.get());
+    }
+
+    @Test
+    public void testPreparesChannelsInParallel() throws Exception {
+        // Each task waits until all of them are being prepared, which only completes if they
+        // run at the same time.
+        final int threadCount = 4;
+        final CountDownLatch started = new CountDownLatch(threadCount);
+        EpgSyncPipeline pipeline = new EpgSyncPipeline(newBatcher(), threadCount);
+        final AtomicInteger timedOut = new AtomicInteger();
+        try {
+            for (int channel = 0; channel < threadCount; channel++) {
+                pipeline.submit(channel, new FakeTask(1, 0) {
+                    @Override
+                    public OperationBatcher.Operations prepare() {
+                        started.countDown();
+                        try {
+                            if (!started.await(5, TimeUnit.SECONDS)) {
+                                timedOut.incrementAndGet();
+                            }
+                        } catch (InterruptedException e) {
+                            timedOut.incrementAndGet();
+                        }
+                        return super.prepare();
+                    }
+                });
+            }
+            pipeline.await();
+        } finally {
+            pipeline.shutdown();
+        }
+        assertEquals(0, timedOut.get());
+    }
+
+    @Test
+    public void testAwaitThrowsFailureOfTask() throws Exception {
+        EpgSyncPipeline pipeline = new EpgSyncPipeline(newBatcher(), 2);
+        final IllegalArgumentException failure = new IllegalArgumentException();
+        try {
+            pipeline.submit(1, new FakeTask(1, 0) {
+                @Override
+                public OperationBatcher.Operations prepare() {
+                    throw failure;
+                }
+            });
+            pipeline.await();
+            fail("The failure of the task should be thrown");
+        } catch (IllegalArgumentException e) {
+            assertSame(failure, e);
+        } finally {
+            pipeline.shutdown();
+        }
+        assertFalse(pipeline.submit(2, new FakeTask(1, 0)));
+    }
+
+    @Test
+    public void testCancelDropsWaitingTasks() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        EpgSyncPipeline pipeline = new EpgSyncPipeline(newBatcher(), 1);
+        final AtomicInteger prepared = new AtomicInteger();
+        try {
+            for (int channel = 0; channel < 2; channel++) {
+                pipeline.submit(channel, new FakeTask(1, 0) {
+                    @Override
+                    public OperationBatcher.Operations prepare() {
+                        prepared.incrementAndGet();
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return super.prepare();
+                    }
+                });
+            }
+            // The second task waits for the only worker thread, which prepares the first one.
+            started.await();
+            pipeline.cancel();
+            release.countDown();
+            pipeline.await();
+        } finally {
+            pipeline.shutdown();
+        }
+        assertEquals(1, prepared.get());
+    }
+
+    private static class FakeTask implements EpgSyncPipeline.Task {
+        private final int mOperationCount;
+        private final long mPrepareMs;
+
+        FakeTask(int operationCount, long prepareMs) {
+            mOperationCount = operationCount;
+            mPrepareMs = prepareMs;
+        }
+
+        @Override
+        public OperationBatcher.Operations prepare() {
+            if (mPrepareMs > 0) {
+                try {
+                    Thread.sleep(mPrepareMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            OperationBatcher.Operations operations = new OperationBatcher.Operations();
+            for (int i = 0; i < mOperationCount; i++) {
+                operations.add(null, 1);
+            }
+            return operations;
+        }
+
+        @Override
+        public void onWritten(boolean success) {
+        }
+    }
+
+    private static OperationBatcher newBatcher() {
+        return new OperationBatcher(new OperationBatcher.BatchWriter() {
+            @Override
+            public void applyBatch(ArrayList<ContentProviderOperation> operations) {
+            }
+        }, Integer.MAX_VALUE, BATCH_SIZE);
+    }
+}
@@ -0,0 +1,143 @@
+package com.google.android.media.tv.companionlibrary;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class FeedSyncOrderTest {
+    private static final int MAX_HELD_PROGRAMS = 10;
+
+    @Test
+    public void testPassesOnChannelsReadOutOfOrderInSyncOrder() throws Exception {
+        FakeSync sync = new FakeSync(1, 2, 3);
+        FeedSyncOrder<String> order = sync.newOrder(1, 2, 3);
+        order.add(3, "3", 1);
+        order.add(2, "2", 1);
+        assertEquals(Arrays.<String>asList(), sync.mSubmitted);
+        assertEquals(2, order.getHeldProgramCount());
+        order.add(1, "1", 1);
+        assertEquals(Arrays.asList("1", "2", "3"), sync.mSubmitted);
+        assertEquals(0, order.getHeldProgramCount());
+    }
+
+    @Test
+    public void testChannelLosesTurnOnceTooManyProgramsAreHeld() throws Exception {
+        FakeSync sync = new FakeSync(1, 2, 3);
+        FeedSyncOrder<String> order = sync.newOrder(1, 2, 3);
+        order.add(3, "3", 6);
+        assertEquals(Arrays.<String>asList(), sync.mSubmitted);
+        // Channel 1 has not been read, and loses its turn.
+        order.add(2, "2", 6);
+        assertEquals(Arrays.asList("2", "3"), sync.mSubmitted);
+        assertEquals(0, order.getHeldProgramCount());
+        order.add(1, "1", 6);
+        assertEquals(Arrays.asList("2", "3", "1"), sync.mSubmitted);
+    }
+
+    @Test
+    public void testPassesOnSplitChannelInFeedOrder() throws Exception {
+        FakeSync sync = new FakeSync(1, 2, 3);
+        FeedSyncOrder<String> order = sync.newOrder(1, 2, 3);
+        order.add(1, "1a", 1);
+        order.add(3, "3a", 1);
+        order.add(2, "2", 1);
+        // The later parts of channels which have had their turn are passed on as they are read.
+        order.add(1, "1b", 1);
+        order.add(3, "3b", 1);
+        order.add(3, "3c", 1);
+        assertEquals(Arrays.asList("1a", "2", "3a", "1b", "3b", "3c"), sync.mSubmitted);
+    }
+
+    @Test
+    public void testPassesOnHeldPartBeforeLaterPartOfSplitChannel() throws Exception {
+        FakeSync sync = new FakeSync(1, 2);
+        FeedSyncOrder<String> order = sync.newOrder(1, 2);
+        order.add(2, "2a", 1);
+        order.add(2, "2b", 1);
+        order.add(1, "1", 1);
+        assertEquals(Arrays.asList("2a", "1", "2b"), sync.mSubmitted);
+    }
+
+    @Test
+    public void testFetchesChannelsNotInFeedOnTheirTurn() throws Exception {
+        FakeSync sync = new FakeSync(2);
+        FeedSyncOrder<String> order = sync.newOrder(1, 2, 3);
+        order.add(2, "2", 1);
+        assertEquals(Arrays.asList("fetch 1", "2", "fetch 3"), sync.mSubmitted);
+    }
+
+    @Test
+    public void testFetchesChannelsMissingFromFeedAtItsEnd() throws Exception {
+        FakeSync sync = new FakeSync(1, 2, 3);
+        FeedSyncOrder<String> order = sync.newOrder(1, 2, 3);
+        order.add(2, "2", 1);
+        order.end();
+        assertEquals(Arrays.asList("fetch 1", "2", "fetch 3"), sync.mSubmitted);
+    }
+
+    @Test
+    public void testFinishPassesOnHeldProgramsInSyncOrder() throws Exception {
+        FakeSync sync = new FakeSync(1, 2, 3);
+        FeedSyncOrder<String> order = sync.newOrder(1, 2, 3);
+        order.add(3, "3", 1);
+        order.add(2, "2", 1);
+        order.finish();
+        assertEquals(Arrays.asList("2", "3"), sync.mSubmitted);
+        assertEquals(0, order.getHeldProgramCount());
+    }
+
+    @Test
+    public void testPassesNothingOnOnceStopped() throws Exception {
+        FakeSync sync = new FakeSync(1, 2);
+        FeedSyncOrder<String> order = sync.newOrder(1, 2);
+        order.add(2, "2", 1);
+        sync.mStopped = true;
+        order.end();
+        order.finish();
+        assertEquals(Arrays.<String>asList(), sync.mSubmitted);
+    }
+
+    /**
+     * Records the channels passed on, and fetches the channels which are not in the feed.
+     */
+    private static class FakeSync implements FeedSyncOrder.Callback<String> {
+        final List<String> mSubmitted = new ArrayList<>();
+        final Set<Long> mFeedChannelIds = new HashSet<>();
+        boolean mStopped;
+
+        FakeSync(long... feedChannelIds) {
+            for (long channelId : feedChannelIds) {
+                mFeedChannelIds.add(channelId);
+            }
+        }
+
+        FeedSyncOrder<String> newOrder(long... channelIds) {
+            return new FeedSyncOrder<>(channelIds, MAX_HELD_PROGRAMS, this);
+        }
+
+        @Override
+        public boolean onTurn(long channelId, boolean feedEnded) {
+            if (!feedEnded && mFeedChannelIds.contains(channelId)) {
+                return false;
+            }
+            mSubmitted.add("fetch " + channelId);
+            return true;
+        }
+
+        @Override
+        public void submit(long channelId, String programs) {
+            mSubmitted.add(programs);
+        }
+
+        @Override
+        public boolean isStopped() {
+            return mStopped;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.google.android.media.tv.companionlibrary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentProviderOperation;
+import android.content.OperationApplicationException;
+import android.os.TransactionTooLargeException;
+
+import org.junit.Test;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class OperationBatcherTest {
+
+    @Test
+    public void testFillsTransactionsUpToBudget() {
+        RecordingWriter writer = new RecordingWriter(Integer.MAX_VALUE);
+        OperationBatcher batcher = new OperationBatcher(writer, 1000, 500);
+        // 30 small rows fit in one transaction, each large row needs one of its own.
+        assertTrue(batcher.apply(operations(30, 10)));
+        assertTrue(batcher.apply(operations(3, 900)));
+        assertEquals(4, writer.mTransactionSizes.size());
+        assertEquals(30, (int) writer.mTransactionSizes.get(0));
+        assertEquals(1, (int) writer.mTransactionSizes.get(1));
+        assertEquals(33, batcher.getOperationCount());
+        assertEquals(4, batcher.getTransactionCount());
+        assertEquals(33 / 4f, batcher.getOperationsPerTransaction(), 0.001f);
+    }
+
+    @Test
+    public void testLimitsOperationsPerTransaction() {
+        RecordingWriter writer = new RecordingWriter(Integer.MAX_VALUE);
+        OperationBatcher batcher = new OperationBatcher(writer, Integer.MAX_VALUE, 100);
+        assertTrue(batcher.apply(operations(250, 1)));
+        assertEquals("[100, 100, 50]", writer.mTransactionSizes.toString());
+    }
+
+    @Test
+    public void testPacksOperationsOfSeveralListsTogether() {
+        RecordingWriter writer = new RecordingWriter(Integer.MAX_VALUE);
+        OperationBatcher batcher = new OperationBatcher(writer, Integer.MAX_VALUE, 10);
+        List<String> applied = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            batcher.add(operations(3, 1), new RecordingCallback(applied, i));
+        }
+        // The first 10 operations fill a transaction, which completes the first 3 lists and
+        // applies the first operation of the last one.
+        assertEquals("[10]", writer.mTransactionSizes.toString());
+        assertEquals("[0, 1, 2]", applied.toString());
+        assertTrue(batcher.hasPendingOperations());
+        batcher.flush();
+        assertEquals("[10, 2]", writer.mTransactionSizes.toString());
+        assertEquals("[0, 1, 2, 3]", applied.toString());
+        assertFalse(batcher.hasPendingOperations());
+    }
+
+    @Test
+    public void testFailedListSkipsItsRemainingOperations() {
+        // The first transaction fails, the following ones are applied.
+        RecordingWriter writer = new RecordingWriter(Integer.MAX_VALUE);
+        writer.mFailures = 1;
+        OperationBatcher batcher = new OperationBatcher(writer, Integer.MAX_VALUE, 4);
+        List<String> applied = new ArrayList<>();
+        batcher.add(operations(6, 1), new RecordingCallback(applied, 0));
+        batcher.add(operations(2, 1), new RecordingCallback(applied, 1));
+        batcher.flush();
+        // The last 2 operations of the first list are dropped, the second list is applied.
+        assertEquals("[2]", writer.mTransactionSizes.toString());
+        assertEquals("[!0, 1]", applied.toString());
+    }
+
+    @Test
+    public void testDiscardFailsPendingLists() {
+        RecordingWriter writer = new RecordingWriter(Integer.MAX_VALUE);
+        OperationBatcher batcher = new OperationBatcher(writer, Integer.MAX_VALUE, 10);
+        List<String> applied = new ArrayList<>();
+        batcher.add(operations(3, 1), new RecordingCallback(applied, 0));
+        batcher.discard();
+        batcher.flush();
+        assertTrue(writer.mTransactionSizes.isEmpty());
+        assertEquals("[!0]", applied.toString());
+    }
+
+    @Test
+    public void testSplitsAndRetriesTooLargeTransactions() {
+        // The writer rejects transactions of more than 20 operations, although the estimate
+        // would allow 100.
+        RecordingWriter writer = new RecordingWriter(20);
+        OperationBatcher batcher = new OperationBatcher(writer, 100 * 1000, 500);
+        OperationBatcher.Operations operations = operations(100, 1000);
+        assertTrue(batcher.apply(operations));
+        int applied = 0;
+        for (int size : writer.mTransactionSizes) {
+            assertTrue(size <= 20);
+            applied += size;
+        }
+        // Every operation is applied exactly once, in order.
+        assertEquals(100, applied);
+        assertEquals(100, batcher.getOperationCount());
+        assertTrue(batcher.getSplitCount() > 0);
+        // The budget has been lowered for the following transactions, so they are not split.
+        int splits = batcher.getSplitCount();
+        assertTrue(batcher.apply(operations(100, 1000)));
+        assertEquals(splits, batcher.getSplitCount());
+    }
+
+    @Test
+    public void testFailsOnSingleTooLargeOperation() {
+        RecordingWriter writer = new RecordingWriter(0);
+        OperationBatcher batcher = new OperationBatcher(writer, 1000, 500);
+        assertFalse(batcher.apply(operations(1, 10)));
+        assertEquals(0, batcher.getOperationCount());
+    }
+
+    @Test
+    public void testEstimateSize() {
+        Set<Map.Entry<String, Object>> values = new HashSet<>();
+        values.add(new AbstractMap.SimpleEntry<String, Object>("title", "abc"));
+        values.add(new AbstractMap.SimpleEntry<String, Object>("start_time", 1L));
+        values.add(new AbstractMap.SimpleEntry<String, Object>("data", new byte[10]));
+        values.add(new AbstractMap.SimpleEntry<String, Object>("poster", null));
+        int expected = (4 + 4 + 12) + (4 + 8)  // "title" = "abc"
+                + (4 + 4 + 24) + 8             // "start_time" = 1L
+                + (4 + 4 + 12) + (4 + 12)      // "data" = byte[10]
+                + (4 + 4 + 16);                // "poster" = null
+        assertEquals(expected, OperationBatcher.estimateSize(values));
+    }
+
+    private static OperationBatcher.Operations operations(int count, int size) {
+        OperationBatcher.Operations operations = new OperationBatcher.Operations();
+        for (int i = 0; i < count; i++) {
+            operations.add(null, size);
+        }
+        return operations;
+    }
+
+    /**
+     * Records the index of each list, prefixed with {@code !} if it failed.
+     */
+    private static class RecordingCallback implements OperationBatcher.Callback {
+        private final List<String> mApplied;
+        private final int mIndex;
+
+        RecordingCallback(List<String> applied, int index) {
+            mApplied = applied;
+            mIndex = index;
+        }
+
+        @Override
+        public void onApplied(boolean success) {
+            mApplied.add(success ? String.valueOf(mIndex) : "!" + mIndex);
+        }
+    }
+
+    private static class RecordingWriter implements OperationBatcher.BatchWriter {
+        private final int mMaxOperations;
+        final List<Integer> mTransactionSizes = new ArrayList<>();
+        int mFailures;
+
+        RecordingWriter(int maxOperations) {
+            mMaxOperations = maxOperations;
+        }
+
+        @Override
+        public void applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws TransactionTooLargeException, OperationApplicationException {
+            if (operations.size() > mMaxOperations) {
+                throw new TransactionTooLargeException();
+            }
+            if (mFailures > 0) {
+                mFailures--;
+                throw new OperationApplicationException();
+            }
+            mTransactionSizes.add(operations.size());
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.google.android.media.tv.companionlibrary;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ProgramMatcherTest {
+    private static final long MINUTE_MS = 60 * 1000;
+    private static final long MAX_SHIFT_MS = 6 * 60 * MINUTE_MS;
+    private static final int PROGRAM_COUNT = 48;
+
+    @Test
+    public void testKeepsUnchangedSchedule() {
+        List<TestProgram> programs = schedule(0, PROGRAM_COUNT);
+        int[] matches = match(programs, programs);
+        for (int i = 0; i < matches.length; i++) {
+            assertEquals(i, matches[i]);
+        }
+        assertOperations(new Operations(0, 0, 0), matcherOperations(programs, programs));
+    }
+
+    @Test
+    public void testUpdatesProgramsPushedBackWithoutOverlap() {
+        List<TestProgram> oldPrograms = schedule(0, PROGRAM_COUNT);
+        List<TestProgram> newPrograms = slip(oldPrograms, 10, 60 * MINUTE_MS);
+        // The first 10 programs are kept, the rest are updated in place.
+        assertOperations(new Operations(PROGRAM_COUNT - 10, 0, 0),
+                matcherOperations(oldPrograms, newPrograms));
+    }
+
+    @Test
+    public void testPrefersIdenticalProgram() {
+        List<TestProgram> oldPrograms = new ArrayList<>();
+        oldPrograms.add(program("News", 0, 30));
+        oldPrograms.add(program("News", 30, 60));
+        List<TestProgram> newPrograms = new ArrayList<>();
+        newPrograms.add(program("News", 30, 60));
+        assertArrayEquals(new int[] {ProgramMatcher.UNMATCHED, 0},
+                match(oldPrograms, newPrograms));
+    }
+
+    @Test
+    public void testPrefersLeastShiftedProgram() {
+        List<TestProgram> oldPrograms = new ArrayList<>();
+        oldPrograms.add(program("News", 0, 30));
+        oldPrograms.add(program("News", 120, 150));
+        List<TestProgram> newPrograms = new ArrayList<>();
+        newPrograms.add(program("News", 100, 130));
+        assertArrayEquals(new int[] {ProgramMatcher.UNMATCHED, 0},
+                match(oldPrograms, newPrograms));
+    }
+
+    @Test
+    public void testKeepsChronologicalOrder() {
+        List<TestProgram> oldPrograms = new ArrayList<>();
+        oldPrograms.add(program("A", 0, 30));
+        oldPrograms.add(program("B", 30, 60));
+        List<TestProgram> newPrograms = new ArrayList<>();
+        newPrograms.add(program("B", 0, 30));
+        newPrograms.add(program("A", 30, 60));
+        int[] matches = match(oldPrograms, newPrograms);
+        // Only one of the swapped programs can be updated.
+        assertTrue(matches[0] == ProgramMatcher.UNMATCHED
+                || matches[1] == ProgramMatcher.UNMATCHED);
+    }
+
+    @Test
+    public void testDoesNotPairBeyondMaxShift() {
+        List<TestProgram> oldPrograms = schedule(0, 1);
+        List<TestProgram> newPrograms = slip(oldPrograms, 0, MAX_SHIFT_MS + MINUTE_MS);
+        assertArrayEquals(new int[] {ProgramMatcher.UNMATCHED}, match(oldPrograms, newPrograms));
+    }
+
+    @Test
+    public void testSlippedSchedulesNeedFewerOperationsThanTwoPointerMerge() {
+        List<TestProgram> oldPrograms = schedule(0, PROGRAM_COUNT);
+        List<TestProgram> inserted = new ArrayList<>(slip(oldPrograms, 10, 45 * MINUTE_MS));
+        inserted.add(10, program("Breaking news", 10 * 30, 10 * 30 + 45));
+        List<TestProgram> replaced = new ArrayList<>();
+        for (TestProgram program : oldPrograms) {
+            replaced.add(new TestProgram(program.title + " (replaced)", program.startMs,
+                    program.endMs));
+        }
+        // The name, new programs, and operations of the two-pointer merge and of the matcher,
+        // when the sync does not override shouldUpdateProgramMetadata().
+        Object[][] scenarios = {
+                {"unchanged", oldPrograms, new Operations(0, 0, 0), new Operations(0, 0, 0)},
+                {"15 minute slip", slip(oldPrograms, 10, 15 * MINUTE_MS),
+                        new Operations(38, 0, 0), new Operations(38, 0, 0)},
+                {"60 minute slip", slip(oldPrograms, 10, 60 * MINUTE_MS),
+                        new Operations(0, 38, 38), new Operations(38, 0, 0)},
+                {"3 hour slip", slip(oldPrograms, 10, 180 * MINUTE_MS),
+                        new Operations(0, 38, 38), new Operations(38, 0, 0)},
+                {"inserted program", inserted,
+                        new Operations(0, 38, 39), new Operations(38, 0, 1)},
+                {"replaced schedule", replaced,
+                        new Operations(0, 48, 48), new Operations(0, 48, 48)},
+        };
+        for (Object[] scenario : scenarios) {
+            @SuppressWarnings("unchecked")
+            List<TestProgram> newPrograms = (List<TestProgram>) scenario[1];
+            assertEquals((String) scenario[0], scenario[2].toString(),
+                    legacyOperations(oldPrograms, newPrograms).toString());
+            assertEquals((String) scenario[0], scenario[3].toString(),
+                    matcherOperations(oldPrograms, newPrograms).toString());
+        }
+    }
+
+    /**
+     * @return Half hour programs with distinct titles, starting at the given minute.
+     */
+    private static List<TestProgram> schedule(long startMinute, int count) {
+        List<TestProgram> programs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long start = startMinute + i * 30;
+            programs.add(program("Program " + i, start, start + 30));
+        }
+        return programs;
+    }
+
+    /**
+     * @return The programs, with the ones from the given index pushed back.
+     */
+    private static List<TestProgram> slip(List<TestProgram> programs, int fromIndex,
+            long shiftMs) {
+        List<TestProgram> slipped = new ArrayList<>();
+        for (int i = 0; i < programs.size(); i++) {
+            TestProgram program = programs.get(i);
+            slipped.add(i < fromIndex ? program : new TestProgram(program.title,
+                    program.startMs + shiftMs, program.endMs + shiftMs));
+        }
+        return slipped;
+    }
+
+    private static int[] match(final List<TestProgram> oldPrograms,
+            final List<TestProgram> newPrograms) {
+        return ProgramMatcher.match(startTimes(oldPrograms), startTimes(newPrograms), MAX_SHIFT_MS,
+                new ProgramMatcher.Comparison() {
+                    @Override
+                    public boolean isSame(int oldIndex, int newIndex) {
+                        return oldPrograms.get(oldIndex).isSame(newPrograms.get(newIndex));
+                    }
+
+                    @Override
+                    public boolean canUpdate(int oldIndex, int newIndex) {
+                        // The sync's comparison if shouldUpdateProgramMetadata() is not
+                        // overridden
+                        return oldPrograms.get(oldIndex).title.equals(
+                                newPrograms.get(newIndex).title);
+                    }
+                });
+    }
+
+    private static Operations matcherOperations(List<TestProgram> oldPrograms,
+            List<TestProgram> newPrograms) {
+        int[] matches = match(oldPrograms, newPrograms);
+        Operations operations = new Operations(0, 0, 0);
+        int matched = 0;
+        for (int i = 0; i < matches.length; i++) {
+            if (matches[i] == ProgramMatcher.UNMATCHED) {
+                operations.deletes++;
+            } else {
+                matched++;
+                if (!oldPrograms.get(i).isSame(newPrograms.get(matches[i]))) {
+                    operations.updates++;
+                }
+            }
+        }
+        operations.inserts = newPrograms.size() - matched;
+        return operations;
+    }
+
+    /**
+     * Counts the operations of the merge which the sync used before, which walks both schedules
+     * once and updates programs with the same title which overlap.
+     */
+    private static Operations legacyOperations(List<TestProgram> oldPrograms,
+            List<TestProgram> newPrograms) {
+        Operations operations = new Operations(0, 0, 0);
+        int oldIndex = 0;
+        int newIndex = 0;
+        while (newIndex < newPrograms.size()) {
+            TestProgram newProgram = newPrograms.get(newIndex);
+            if (oldIndex >= oldPrograms.size()) {
+                operations.inserts++;
+                newIndex++;
+                continue;
+            }
+            TestProgram oldProgram = oldPrograms.get(oldIndex);
+            if (oldProgram.isSame(newProgram)) {
+                oldIndex++;
+                newIndex++;
+            } else if (oldProgram.title.equals(newProgram.title)
+                    && oldProgram.startMs <= newProgram.endMs
+                    && newProgram.startMs <= oldProgram.endMs) {
+                operations.updates++;
+                oldIndex++;
+                newIndex++;
+            } else if (oldProgram.endMs < newProgram.endMs) {
+                operations.deletes++;
+                oldIndex++;
+            } else {
+                operations.inserts++;
+                newIndex++;
+            }
+        }
+        // The merge left old programs which overlap with the end of the new ones. Count them as
+        // deleted, so that both merges lead to the same schedule.
+        long lastEndMs = newPrograms.get(newPrograms.size() - 1).endMs;
+        for (; oldIndex < oldPrograms.size() && oldPrograms.get(oldIndex).startMs < lastEndMs;
+                oldIndex++) {
+            operations.deletes++;
+        }
+        return operations;
+    }
+
+    private static TestProgram program(String title, long startMinute, long endMinute) {
+        return new TestProgram(title, startMinute * MINUTE_MS, endMinute * MINUTE_MS);
+    }
+
+    private static long[] startTimes(List<TestProgram> programs) {
+        long[] startTimes = new long[programs.size()];
+        for (int i = 0; i < startTimes.length; i++) {
+            startTimes[i] = programs.get(i).startMs;
+        }
+        return startTimes;
+    }
+
+    private static void assertOperations(Operations expected, Operations actual) {
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    private static final class TestProgram {
+        final String title;
+        final long startMs;
+        final long endMs;
+
+        TestProgram(String title, long startMs, long endMs) {
+            this.title = title;
+            this.startMs = startMs;
+            this.endMs = endMs;
+        }
+
+        boolean isSame(TestProgram other) {
+            return title.equals(other.title) && startMs == other.startMs
+                    && endMs == other.endMs;
+        }
+    }
+
+    private static final class Operations {
+        int updates;
+        int deletes;
+        int inserts;
+
+        Operations(int updates, int deletes, int inserts) {
+            this.updates = updates;
+            this.deletes = deletes;
+            this.inserts = inserts;
+        }
+
+        int total() {
+            return updates + deletes + inserts;
+        }
+
+        @Override
+        public String toString() {
+            return total() + " operations (" + updates + " updates, " + deletes + " deletes, "
+                    + inserts + " inserts)";
+        }
+    }
+}
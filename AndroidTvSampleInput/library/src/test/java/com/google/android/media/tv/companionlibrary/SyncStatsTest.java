@@ -0,0 +1,60 @@
+package com.google.android.media.tv.companionlibrary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SyncStatsTest {
+
+    @Test
+    public void testAccumulatesCountsAndPhases() {
+        SyncStats stats = new SyncStats(1000);
+        stats.addCount(SyncStats.COUNTER_ROWS_INSERTED, 3);
+        stats.addCount(SyncStats.COUNTER_ROWS_INSERTED, 4);
+        stats.addPhaseTime(SyncStats.PHASE_DIFF, System.nanoTime() - 5000000);
+        stats.finish(1500);
+        assertEquals(7, stats.getCount(SyncStats.COUNTER_ROWS_INSERTED));
+        assertEquals(0, stats.getCount(SyncStats.COUNTER_ROWS_DELETED));
+        assertTrue(stats.getPhaseMs(SyncStats.PHASE_DIFF) >= 5);
+        assertEquals(500, stats.getDurationMs());
+    }
+
+    @Test
+    public void testFlattenRoundTrip() {
+        SyncStats stats = new SyncStats(1000);
+        stats.addCount(SyncStats.COUNTER_TRANSACTIONS, 2);
+        stats.addCount(SyncStats.COUNTER_TRANSACTION_BYTES, 4096);
+        stats.addPhaseTime(SyncStats.PHASE_APPLY_BATCH, System.nanoTime() - 2000000);
+        stats.finish(3000);
+        SyncStats restored = SyncStats.unflatten(stats.flatten());
+        assertEquals(stats.toString(), restored.toString());
+        assertEquals(1000, restored.getStartTimeMs());
+        assertEquals(2000, restored.getDurationMs());
+        assertEquals(4096, restored.getCount(SyncStats.COUNTER_TRANSACTION_BYTES));
+    }
+
+    @Test
+    public void testAddsEarlierJobs() {
+        SyncStats earlier = new SyncStats(1000);
+        earlier.addCount(SyncStats.COUNTER_ROWS_UPDATED, 5);
+        earlier.addPhaseTime(SyncStats.PHASE_DIFF, System.nanoTime() - 3000000);
+        earlier.finish(2000);
+        SyncStats stats = new SyncStats(2500);
+        stats.addCount(SyncStats.COUNTER_ROWS_UPDATED, 2);
+        stats.addEarlierJobs(SyncStats.unflatten(earlier.flatten()));
+        stats.finish(4000);
+        assertEquals(1000, stats.getStartTimeMs());
+        assertEquals(3000, stats.getDurationMs());
+        assertEquals(7, stats.getCount(SyncStats.COUNTER_ROWS_UPDATED));
+        assertTrue(stats.getPhaseMs(SyncStats.PHASE_DIFF) >= 3);
+    }
+
+    @Test
+    public void testUnflattenRejectsInvalidValue() {
+        assertNull(SyncStats.unflatten(""));
+        assertNull(SyncStats.unflatten("1,2,3"));
+        assertNull(SyncStats.unflatten(new SyncStats(0).flatten().replace('0', 'x')));
+    }
+}
@@ -0,0 +1,86 @@
+package com.google.android.media.tv.companionlibrary;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class ViewingHistoryTest {
+    private static final long HOUR_MS = 1000 * 60 * 60;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void testOrdersLastTunedThenMostWatchedChannels() {
+        ViewingHistory history = new ViewingHistory();
+        for (int i = 0; i < 5; i++) {
+            history.recordTune(30, i * HOUR_MS);
+        }
+        history.recordTune(20, 6 * HOUR_MS);
+        history.recordTune(40, 7 * HOUR_MS);
+        long[] channelIds = {10, 20, 30, 40, 50};
+        // 40 was tuned to last, 30 was watched most, 10 and 50 were never watched.
+        assertArrayEquals(new int[] {3, 2, 1, 0, 4},
+                history.getSyncOrder(channelIds, 8 * HOUR_MS));
+    }
+
+    @Test
+    public void testScoreDecaysOverTime() {
+        ViewingHistory history = new ViewingHistory();
+        history.recordTune(10, 0);
+        history.recordTune(10, 0);
+        assertEquals(2, history.getScore(10, 0), 0.001f);
+        assertEquals(1, history.getScore(10, ViewingHistory.HALF_LIFE_MILLIS), 0.001f);
+        assertEquals(0, history.getScore(20, 0), 0);
+    }
+
+    @Test
+    public void testDropsLowestScoreWhenFull() {
+        ViewingHistory history = new ViewingHistory();
+        for (int i = 0; i < ViewingHistory.MAX_CHANNELS; i++) {
+            history.recordTune(i, 0);
+            history.recordTune(i, 0);
+        }
+        history.recordTune(0, 0);
+        history.recordTune(1000, 0);
+        // Channel 1 is the first of the channels with the lowest score.
+        assertEquals(0, history.getScore(1, 0), 0);
+        assertEquals(1, history.getScore(1000, 0), 0.001f);
+        assertEquals(3, history.getScore(0, 0), 0.001f);
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        File file = new File(mFolder.getRoot(), "history");
+        ViewingHistory history = new ViewingHistory();
+        history.recordTune(10, 0);
+        history.recordTune(20, HOUR_MS);
+        history.recordTune(20, 2 * HOUR_MS);
+        assertTrue(history.write(file));
+        ViewingHistory read = ViewingHistory.read(file);
+        assertEquals(history.getScore(10, 3 * HOUR_MS), read.getScore(10, 3 * HOUR_MS), 0);
+        assertEquals(history.getScore(20, 3 * HOUR_MS), read.getScore(20, 3 * HOUR_MS), 0);
+        long[] channelIds = {10, 20};
+        assertArrayEquals(history.getSyncOrder(channelIds, 3 * HOUR_MS),
+                read.getSyncOrder(channelIds, 3 * HOUR_MS));
+    }
+
+    @Test
+    public void testReadsInvalidFileAsEmpty() throws IOException {
+        File file = new File(mFolder.getRoot(), "history");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[] {1, 2, 3});
+        }
+        assertEquals(0, ViewingHistory.read(file).getScore(10, 0), 0);
+        assertEquals(0, ViewingHistory.read(new File(mFolder.getRoot(), "missing"))
+                .getScore(10, 0), 0);
+    }
+}
@@ -0,0 +1,205 @@
+package com.google.android.media.tv.companionlibrary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.Program;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+
+public class XmlTvParserTest {
+
+    private static final long PROGRAM_DURATION_MS = 30 * 60 * 1000;
+    private static final int PROGRAMS_PER_CHANNEL = 20;
+
+    @Test
+    public void testTvListingGroupsProgramsByChannelInStartOrder() {
+        List<Channel> channels = createChannels(3);
+        List<Program> programs = new ArrayList<>();
+        // Interleave the channels and add each channel's programs in reverse order
+        for (int i = PROGRAMS_PER_CHANNEL - 1; i >= 0; i--) {
+            for (Channel channel : channels) {
+                programs.add(createProgram(channel.getOriginalNetworkId(), i));
+            }
+        }
+        programs.add(createProgram(12345, 0));
+
+        XmlTvParser.TvListing listing = new XmlTvParser.TvListing(channels, programs);
+
+        assertEquals(programs.size(), listing.getAllPrograms().size());
+        for (Channel channel : channels) {
+            List<Program> channelPrograms = listing.getPrograms(channel);
+            assertEquals(PROGRAMS_PER_CHANNEL, channelPrograms.size());
+            for (int i = 0; i < channelPrograms.size(); i++) {
+                assertEquals(channel.getId(), channelPrograms.get(i).getChannelId());
+                assertEquals(i * PROGRAM_DURATION_MS,
+                        channelPrograms.get(i).getStartTimeUtcMillis());
+            }
+        }
+    }
+
+    @Test
+    public void testTvListingBuildScalesLinearly() {
+        int smallChannelCount = 250;
+        int scale = 8;
+        long smallAccesses = countListAccesses(smallChannelCount);
+        long largeAccesses = countListAccesses(smallChannelCount * scale);
+
+        // A build which is linear in the number of programs reads each program a fixed number of
+        // times, so its reads grow by the scale factor. A build that walks all programs once per
+        // channel grows by its square.
+        assertTrue("List accesses grew from " + smallAccesses + " to " + largeAccesses + " for "
+                + scale + "x the input", largeAccesses <= 2 * scale * smallAccesses);
+    }
+
+    /**
+     * Builds a listing of the given number of channels and returns how many times it read or
+     * removed an element of the channel and program lists it was given.
+     */
+    private static long countListAccesses(int channelCount) {
+        CountingList<Channel> channels = new CountingList<>(createChannels(channelCount));
+        CountingList<Program> programs = new CountingList<>(createPrograms(channels));
+        channels.mAccessCount = 0;
+        programs.mAccessCount = 0;
+        new XmlTvParser.TvListing(channels, programs);
+        return channels.mAccessCount + programs.mAccessCount;
+    }
+
+    private static List<Program> createPrograms(List<Channel> channels) {
+        List<Program> programs = new ArrayList<>();
+        for (Channel channel : channels) {
+            for (int i = 0; i < PROGRAMS_PER_CHANNEL; i++) {
+                programs.add(createProgram(channel.getOriginalNetworkId(), i));
+            }
+        }
+        return programs;
+    }
+
+    private static List<Channel> createChannels(int count) {
+        List<Channel> channels = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            channels.add(new Channel.Builder()
+                    .setDisplayName("Channel " + i)
+                    .setDisplayNumber(String.valueOf(i))
+                    .setOriginalNetworkId(("channel." + i).hashCode())
+                    .build());
+        }
+        return channels;
+    }
+
+    private static Program createProgram(int originalNetworkId, int slot) {
+        return new Program.Builder()
+                .setChannelId(originalNetworkId)
+                .setTitle("Program " + slot)
+                .setStartTimeUtcMillis(slot * PROGRAM_DURATION_MS)
+                .setEndTimeUtcMillis((slot + 1) * PROGRAM_DURATION_MS)
+                .build();
+    }
+
+    /**
+     * A list which counts how many of its elements are read or removed, through any of its
+     * methods.
+     */
+    private static class CountingList<E> extends ArrayList<E> {
+        long mAccessCount;
+
+        CountingList(Collection<E> elements) {
+            super(elements);
+        }
+
+        @Override
+        public E get(int index) {
+            mAccessCount++;
+            return super.get(index);
+        }
+
+        @Override
+        public E remove(int index) {
+            mAccessCount++;
+            return super.remove(index);
+        }
+
+        @Override
+        public Object[] toArray() {
+            mAccessCount += size();
+            return super.toArray();
+        }
+
+        @Override
+        public <T> T[] toArray(T[] array) {
+            mAccessCount += size();
+            return super.toArray(array);
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            return listIterator();
+        }
+
+        @Override
+        public ListIterator<E> listIterator() {
+            return listIterator(0);
+        }
+
+        @Override
+        public ListIterator<E> listIterator(int index) {
+            final ListIterator<E> iterator = super.listIterator(index);
+            return new ListIterator<E>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public E next() {
+                    mAccessCount++;
+                    return iterator.next();
+                }
+
+                @Override
+                public boolean hasPrevious() {
+                    return iterator.hasPrevious();
+                }
+
+                @Override
+                public E previous() {
+                    mAccessCount++;
+                    return iterator.previous();
+                }
+
+                @Override
+                public int nextIndex() {
+                    return iterator.nextIndex();
+                }
+
+                @Override
+                public int previousIndex() {
+                    return iterator.previousIndex();
+                }
+
+                @Override
+                public void remove() {
+                    mAccessCount++;
+                    iterator.remove();
+                }
+
+                @Override
+                public void set(E e) {
+                    iterator.set(e);
+                }
+
+                @Override
+                public void add(E e) {
+                    iterator.add(e);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.google.android.media.tv.companionlibrary.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.media.tv.TvContentRating;
+
+import com.google.android.media.tv.companionlibrary.model.Program;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class InternPoolTest {
+
+    private static final long PROGRAM_DURATION_MS = 60 * 60 * 1000;
+    /** Number of distinct shows each channel loops through. */
+    private static final int SHOWS_PER_CHANNEL = 24;
+
+    private InternPool mPool;
+
+    @Before
+    public void setUp() {
+        mPool = new InternPool();
+    }
+
+    @Test
+    public void testInternSharesEqualStrings() {
+        String first = new StringBuilder("Big Buck Bunny").toString();
+        String second = new StringBuilder("Big Buck Bunny").toString();
+        assertNotSame(first, second);
+        assertSame(mPool.intern(first), mPool.intern(second));
+        assertNull(mPool.intern((String) null));
+    }
+
+    @Test
+    public void testPoolsDoNotShareValues() {
+        String value = new StringBuilder("Big Buck Bunny").toString();
+        String other = new StringBuilder("Big Buck Bunny").toString();
+        assertSame(value, mPool.intern(value));
+        assertSame(other, new InternPool().intern(other));
+    }
+
+    @Test
+    public void testProgramsShareInternedValues() {
+        Program first = createProgram(1, 2);
+        Program second = createProgram(1, 2 + SHOWS_PER_CHANNEL);
+        assertEquals(first.getTitle(), second.getTitle());
+        assertSame(first.getTitle(), second.getTitle());
+        assertSame(first.getDescription(), second.getDescription());
+        assertSame(first.getPosterArtUri(), second.getPosterArtUri());
+        assertArrayEquals(first.getBroadcastGenres(), second.getBroadcastGenres());
+        assertSame(first.getBroadcastGenres()[0], second.getBroadcastGenres()[0]);
+        assertArrayEquals(first.getContentRatings(), second.getContentRatings());
+    }
+
+    @Test
+    public void testProgramsDoNotShareArrays() {
+        Program first = createProgram(1, 2);
+        Program second = createProgram(1, 2 + SHOWS_PER_CHANNEL);
+        assertNotSame(first.getBroadcastGenres(), second.getBroadcastGenres());
+        assertNotSame(first.getContentRatings(), second.getContentRatings());
+        first.getBroadcastGenres()[0] = "NEWS";
+        assertEquals("MOVIES", second.getBroadcastGenres()[0]);
+    }
+
+    /**
+     * Creates a program with freshly allocated values interned by the pool, as the parser would.
+     */
+    private Program createProgram(int channel, int slot) {
+        int show = slot % SHOWS_PER_CHANNEL;
+        return new Program.Builder()
+                .setChannelId(channel)
+                .setTitle(mPool.intern(new StringBuilder("Show ").append(channel).append('.')
+                        .append(show).toString()))
+                .setDescription(mPool.intern(new StringBuilder("An episode of show ")
+                        .append(show)
+                        .append(", which is about the things that happen in it and is quite"
+                                + " long for a description.").toString()))
+                .setPosterArtUri(mPool.intern(new StringBuilder("https://example.com/artwork/")
+                        .append(channel).append('/').append(show).append(".png").toString()))
+                .setBroadcastGenres(new String[] {
+                        mPool.intern(new StringBuilder("MOVIES").toString()),
+                        mPool.intern(new StringBuilder(show % 2 == 0 ? "DRAMA" : "COMEDY")
+                                .toString())})
+                .setContentRatings(new TvContentRating[] {
+                        TvContentRating.createRating("com.android.tv", "US_TV", "US_TV_PG")})
+                .setStartTimeUtcMillis(slot * PROGRAM_DURATION_MS)
+                .setEndTimeUtcMillis((slot + 1) * PROGRAM_DURATION_MS)
+                .build();
+    }
+}
@@ -0,0 +1,81 @@
+package com.google.android.media.tv.companionlibrary.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+
+public class XmlTvTimestampDecoderTest {
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmss Z",
+            Locale.US);
+
+    @Test
+    public void testDecodeMatchesSimpleDateFormat() throws ParseException {
+        String[] timestamps = {
+                "20150817000000 +0000",
+                "20150817000147 +0000",
+                "19700101000000 +0000",
+                "19691231235959 +0000",
+                "20160229123000 -0800",
+                "20001231235959 +0530",
+                "21000301000000 +1400",
+                "20240101000000 -1200",
+        };
+        for (String timestamp : timestamps) {
+            assertEquals(timestamp, dateFormat.parse(timestamp).getTime(),
+                    XmlTvTimestampDecoder.decode(timestamp));
+        }
+    }
+
+    @Test
+    public void testDecodeFallsBackOutsideOfFixedLayout() throws ParseException {
+        String[] timestamps = {
+                "20150817000000 GMT",
+                "20150817000000 +0000 trailing text",
+                "20150230000000 +0000",
+                "20150817250000 +0000",
+                "20150817000000 +1500",
+        };
+        for (String timestamp : timestamps) {
+            assertEquals(timestamp, dateFormat.parse(timestamp).getTime(),
+                    XmlTvTimestampDecoder.decode(timestamp));
+        }
+    }
+
+    @Test(expected = ParseException.class)
+    public void testDecodeInvalidTimestamp() throws ParseException {
+        XmlTvTimestampDecoder.decode("2015-08-17");
+    }
+
+    @Test(expected = ParseException.class)
+    public void testDecodeInvalidZone() throws ParseException {
+        XmlTvTimestampDecoder.decode("20150817000000 +9900");
+    }
+
+    @Test
+    public void testDecodeRandomTimestampsMatchSimpleDateFormat() throws ParseException {
+        String[] timestamps = createTimestamps(10000);
+        for (String timestamp : timestamps) {
+            assertEquals(timestamp, dateFormat.parse(timestamp).getTime(),
+                    XmlTvTimestampDecoder.decode(timestamp));
+        }
+    }
+
+    private static String[] createTimestamps(int count) {
+        Random random = new Random(0);
+        String[] zones = {"+0000", "-0500", "+0100", "+0530", "-0800", "+0930"};
+        String[] timestamps = new String[count];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = String.format(Locale.US, "%04d%02d%02d%02d%02d%02d %s",
+                    2000 + random.nextInt(40), 1 + random.nextInt(12), 1 + random.nextInt(28),
+                    random.nextInt(24), random.nextInt(60), random.nextInt(60),
+                    zones[random.nextInt(zones.length)]);
+        }
+        return timestamps;
+    }
+}